@@ -0,0 +1,90 @@
+package net.daum.remotesync;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * 벤치마크용 원본/목표파일 쌍. seed가 같으면 어느 장비에서나 같은 내용을 만든다.
+ * 목표파일은 원본에 평균 1/editDensity 바이트 간격으로 수정(덮어쓰기, 끼워넣기, 지우기)을 가해서 만든다.
+ *
+ * @author dante
+ */
+class Corpus {
+	/**
+	 * 수정 한번에 바뀌는 최대 바이트 수
+	 */
+	static final int MAX_EDIT_LENGTH = 64;
+
+	final byte[] source;
+	final byte[] target;
+
+	Corpus(long seed, int size, double editDensity) {
+		Random random = new Random(seed);
+		source = new byte[size];
+		random.nextBytes(source);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(size + size / 16);
+		int pos = 0;
+		while (pos < size) {
+			int gap = editDensity <= 0 ? size : (int)Math.min(size, -Math.log(1 - random.nextDouble()) / editDensity);
+			int copy = Math.min(gap, size - pos);
+			out.write(source, pos, copy);
+			pos += copy;
+			if (pos >= size) break;
+
+			int length = 1 + random.nextInt(MAX_EDIT_LENGTH);
+			byte[] edit = new byte[length];
+			switch (random.nextInt(3)) {
+			case 0: // 덮어쓰기
+				random.nextBytes(edit);
+				out.write(edit, 0, length);
+				pos += length;
+				break;
+			case 1: // 끼워넣기
+				random.nextBytes(edit);
+				out.write(edit, 0, length);
+				break;
+			default: // 지우기
+				pos += length;
+			}
+		}
+		target = out.toByteArray();
+	}
+
+	/**
+	 * 쓴 내용을 버리는 출력스트림
+	 */
+	static final OutputStream NULL_OUTPUT = new OutputStream() {
+		@Override
+		public void write(int b) {}
+
+		@Override
+		public void write(byte[] b, int off, int len) {}
+	};
+
+	/**
+	 * 바이트 배열을 원본파일로 사용한다. 테스트의 ByteArraySourceFileAccess와 달리 아무것도 출력하지 않는다.
+	 */
+	static class ArraySourceFileAccess implements SourceFileAccess {
+		private final byte[] content;
+		private int pos = 0;
+
+		ArraySourceFileAccess(byte[] content) {
+			this.content = content;
+		}
+
+		@Override
+		public void seek(long offset) {
+			pos = (int)offset;
+		}
+
+		@Override
+		public long read(byte[] buf) {
+			int length = Math.max(0, Math.min(buf.length, content.length - pos));
+			System.arraycopy(content, pos, buf, 0, length);
+			pos += length;
+			return length;
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package net.daum.remotesync;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 롤링하는 위치마다 원본블럭을 찾아보는 처리량. 목표파일의 앞부분을 한 바이트씩 밀면서 찾아보며, 결과는 초당 위치 수.
+ * 원본과 관계없는 내용(miss)과 원본을 약간 수정한 내용(edited)을 비교한다.
+ *
+ * @author dante
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReferenceTableBenchmark {
+	static final int POSITIONS = 64 * 1024;
+
+	@Param({"16777216"})
+	public int size;
+
+	@Param({"1024"})
+	public int blockSize;
+
+	@Param({"miss", "edited"})
+	public String target;
+
+	private ReferenceTable table;
+	private RollingSignature sign;
+	private byte[] data;
+
+	@Setup
+	public void setUp() throws Exception {
+		Corpus corpus = new Corpus(1, size, 0.001);
+		SourceCodeList sc = SourceCodeList.create(new ByteArrayInputStream(corpus.source), blockSize);
+		table = new ReferenceTable(sc);
+		sign = new RollingSignature(sc.getStrongHash());
+		data = "miss".equals(target) ? new Corpus(2, blockSize + POSITIONS, 0).source : corpus.target;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(POSITIONS)
+	public int lookup() {
+		byte[] first = new byte[blockSize];
+		System.arraycopy(data, 0, first, 0, blockSize);
+		sign.init(first);
+		int found = 0;
+		for (int i = blockSize; i < blockSize + POSITIONS; i++) {
+			if (table.lookup(sign) >= 0) found++;
+			sign.roll(data[i]);
+		}
+		return found;
+	}
+}
@@ -0,0 +1,100 @@
+package net.daum.remotesync;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 블럭 하나에 대한 해쉬코드 계산 처리량. 결과는 초당 블럭 수이며, 롤링은 초당 바이트 수.
+ *
+ * @author dante
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SignatureBenchmark {
+	static final int ROLL_LENGTH = 64 * 1024;
+
+	@Param({"1024", "8192"})
+	public int blockSize;
+
+	private byte[] block;
+	private byte[] data;
+	private RollingSignature sign;
+
+	/**
+	 * 정확한 해쉬코드 계산방식별로 비교한다.
+	 */
+	@State(Scope.Thread)
+	public static class Engine {
+		@Param({"SHA-1", "MurmurHash3-128"})
+		public String strongHash;
+
+		private StrongHash.Hasher hasher;
+		private byte[] strong;
+
+		@Setup
+		public void setUp() {
+			StrongHash hash = StrongHash.SHA1.getName().equals(strongHash) ? StrongHash.SHA1 : StrongHash.MURMUR3_128;
+			hasher = hash.newHasher();
+			strong = new byte[hash.getLength()];
+		}
+	}
+
+	@Setup
+	public void setUp() {
+		Random random = new Random(1);
+		block = new byte[blockSize];
+		random.nextBytes(block);
+		data = new byte[blockSize + ROLL_LENGTH];
+		random.nextBytes(data);
+		sign = new RollingSignature();
+	}
+
+	@Benchmark
+	public int fastSignature() {
+		return Signature.fastSignature(block);
+	}
+
+	/**
+	 * 이전 API. 쓰레드마다 재사용하는 SHA1 MessageDigest.
+	 */
+	@Benchmark
+	public byte[] strongSignature() {
+		return Signature.strongSignature(block);
+	}
+
+	@Benchmark
+	public byte[] strongHash(Engine engine) {
+		engine.hasher.update(block, 0, blockSize);
+		engine.hasher.digest(engine.strong, 0);
+		return engine.strong;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ROLL_LENGTH)
+	public int roll() {
+		sign.init(block);
+		int fast = 0;
+		for (int i = blockSize; i < data.length; i++) {
+			sign.roll(data[i]);
+			fast ^= sign.getFast();
+		}
+		return fast;
+	}
+}
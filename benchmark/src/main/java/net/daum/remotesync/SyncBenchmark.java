@@ -0,0 +1,118 @@
+package net.daum.remotesync;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 파일 하나를 동기화하는 각 단계의 처리량. 결과는 초당 처리한 파일 수이므로, size를 곱하면 초당 바이트 수가 된다.
+ * <ol>
+ * <li>원본 => {@link SourceCodeList} (create, pack, unpack)</li>
+ * <li>{@link SourceCodeList} + 목표 => {@link BuildCodeList} (create, pack, unpack)</li>
+ * <li>{@link BuildCodeList} + 원본 => 목표 (patch)</li>
+ * </ol>
+ * 입력은 {@link Corpus}로 만든다. 크기와 수정빈도는 -p size=...,editDensity=... 로 바꿀 수 있다.
+ *
+ * @author dante
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SyncBenchmark {
+	@Param({"16777216"})
+	public int size;
+
+	@Param({"0.0001", "0.001"})
+	public double editDensity;
+
+	@Param({"1024"})
+	public int blockSize;
+
+	@Param({"SHA-1", "MurmurHash3-128"})
+	public String strongHash;
+
+	@Param({"1"})
+	public long seed;
+
+	private Corpus corpus;
+	private StrongHash hash;
+	private SourceCodeList sourceCodeList;
+	private byte[] packedSourceCodeList;
+	private BuildCodeList buildCodeList;
+	private byte[] packedBuildCodeList;
+	private ByteArrayOutputStream packed;
+
+	@Setup
+	public void setUp() throws Exception {
+		corpus = new Corpus(seed, size, editDensity);
+		hash = StrongHash.SHA1.getName().equals(strongHash) ? StrongHash.SHA1 : StrongHash.MURMUR3_128;
+		sourceCodeList = SourceCodeList.create(new ByteArrayInputStream(corpus.source), blockSize, hash);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		sourceCodeList.pack(out);
+		packedSourceCodeList = out.toByteArray();
+
+		buildCodeList = sourceCodeList.generateBuildCodes(new ByteArrayInputStream(corpus.target));
+		out = new ByteArrayOutputStream();
+		buildCodeList.pack(out);
+		packedBuildCodeList = out.toByteArray();
+		packed = new ByteArrayOutputStream(Math.max(packedSourceCodeList.length, packedBuildCodeList.length));
+	}
+
+	@Benchmark
+	public SourceCodeList createSourceCodeList() throws Exception {
+		return SourceCodeList.create(new ByteArrayInputStream(corpus.source), blockSize, hash);
+	}
+
+	@Benchmark
+	public long packSourceCodeList() throws Exception {
+		packed.reset();
+		return sourceCodeList.pack(packed);
+	}
+
+	@Benchmark
+	public SourceCodeList unpackSourceCodeList() throws Exception {
+		return SourceCodeList.unpack(new ByteArrayInputStream(packedSourceCodeList), null);
+	}
+
+	@Benchmark
+	public BuildCodeList createBuildCodeList() throws Exception {
+		return sourceCodeList.generateBuildCodes(new ByteArrayInputStream(corpus.target));
+	}
+
+	@Benchmark
+	public long packBuildCodeList() throws Exception {
+		packed.reset();
+		return buildCodeList.pack(packed);
+	}
+
+	@Benchmark
+	public BuildCodeList unpackBuildCodeList() throws Exception {
+		return BuildCodeList.unpack(new ByteArrayInputStream(packedBuildCodeList), null);
+	}
+
+	@Benchmark
+	public long patch() throws Exception {
+		return buildCodeList.patch(new Corpus.ArraySourceFileAccess(corpus.source), Corpus.NULL_OUTPUT);
+	}
+
+	@Benchmark
+	public long patchFromStream() throws Exception {
+		return BuildCodeList.patch(new ByteArrayInputStream(packedBuildCodeList),
+				new Corpus.ArraySourceFileAccess(corpus.source), Corpus.NULL_OUTPUT);
+	}
+}
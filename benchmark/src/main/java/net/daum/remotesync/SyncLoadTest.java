@@ -0,0 +1,151 @@
+package net.daum.remotesync;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link SyncServer}의 부하 시험. 같은 장비의 클라이언트 쓰레드들이 127.0.0.1로 수천 개의 세션을 열어
+ * {@link ChannelSync#upload(java.nio.channels.ByteChannel, String, File)}를 실행한다.
+ * <p>
+ * 서버에는 {@link Corpus}로 만든 files개의 원본파일을 두고, 세션마다 그 중 하나의 목표파일 또는 원본을 번갈아 올린다.
+ * 따라서 세션마다 실제로 블럭을 비교하고 패치한다. 실행하는 동안 기다리는 세션, 메모리와 CPU 자리를 기다리는 세션을
+ * 주기적으로 재서 최대값을 보고한다. 예약된 메모리의 최대값은 {@link SessionScheduler}가 예약할 때마다 잰다.
+ * </p>
+ *
+ * <pre>
+ * mvn -B package
+ * java -cp target/benchmarks.jar net.daum.remotesync.SyncLoadTest [sessions] [clients] [size] [maxSessions] [memoryBudgetMB]
+ * </pre>
+ *
+ * @author dante
+ */
+public class SyncLoadTest {
+	/**
+	 * 서버에 두는 원본파일 갯수
+	 */
+	static final int FILES = 32;
+
+	public static void main(String[] args) throws Exception {
+		final int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+		int clients = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+		int size = args.length > 2 ? Integer.parseInt(args[2]) : 256 * 1024;
+		int maxSessions = args.length > 3 ? Integer.parseInt(args[3]) : 256;
+		long memoryBudget = (args.length > 4 ? Long.parseLong(args[4]) : 64) * 1024 * 1024;
+
+		File base = File.createTempFile("syncload", "");
+		base.delete();
+		final File serverDir = new File(base, "server");
+		final File clientDir = new File(base, "client");
+		serverDir.mkdirs();
+		clientDir.mkdirs();
+		for (int i = 0; i < FILES; i++) {
+			Corpus corpus = new Corpus(i, size, 0.0001);
+			write(new File(serverDir, "f" + i), corpus.source);
+			write(new File(clientDir, "f" + i + ".0"), corpus.target);
+			write(new File(clientDir, "f" + i + ".1"), corpus.source);
+		}
+
+		final SyncServer server = new SyncServer(serverDir, memoryBudget, maxSessions);
+		final InetSocketAddress address = server.start(new InetSocketAddress("127.0.0.1", 0));
+		System.out.println("sessions = " + sessions + ", clients = " + clients + ", size = " + size
+				+ ", maxSessions = " + maxSessions + ", memoryBudget = " + memoryBudget);
+
+		final AtomicInteger failed = new AtomicInteger();
+		final AtomicLong sent = new AtomicLong();
+		final long[] latencies = new long[sessions];
+		final CountDownLatch done = new CountDownLatch(sessions);
+		final long[] peaks = new long[3];
+		Thread monitor = new Thread() {
+			public void run() {
+				SessionScheduler scheduler = server.getScheduler();
+				while (done.getCount() > 0) {
+					peaks[0] = Math.max(peaks[0], server.getQueuedSessions());
+					peaks[1] = Math.max(peaks[1], scheduler.getMemoryWaiters());
+					peaks[2] = Math.max(peaks[2], scheduler.getCpuWaiters());
+					try {
+						Thread.sleep(10);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		};
+		monitor.setDaemon(true);
+		monitor.start();
+
+		long ts = System.nanoTime();
+		ExecutorService pool = Executors.newFixedThreadPool(clients);
+		for (int i = 0; i < sessions; i++) {
+			final int session = i;
+			pool.execute(new Runnable() {
+				public void run() {
+					int file = session % FILES;
+					String path = "f" + file;
+					long start = System.nanoTime();
+					try {
+						SocketChannel channel = SocketChannel.open(address);
+						try {
+							channel.socket().setTcpNoDelay(true);
+							sent.addAndGet(ChannelSync.upload(channel, path, new File(clientDir, path + "." + (session / FILES) % 2)));
+						} finally {
+							channel.close();
+						}
+					} catch (Exception e) {
+						failed.incrementAndGet();
+					} finally {
+						latencies[session] = System.nanoTime() - start;
+						done.countDown();
+					}
+				}
+			});
+		}
+		done.await();
+		long elapsed = System.nanoTime() - ts;
+		pool.shutdown();
+		server.close();
+
+		Arrays.sort(latencies);
+		double seconds = elapsed / 1e9;
+		System.out.println(server);
+		System.out.printf("elapsed = %.2fs, %.1f sessions/s, %.1f MB/s synced, %.1f MB sent%n", seconds, sessions / seconds,
+				server.getWritten() / seconds / 1024 / 1024, sent.get() / 1024.0 / 1024);
+		System.out.printf("latency p50 = %.1fms, p99 = %.1fms, max = %.1fms%n", latencies[sessions / 2] / 1e6,
+				latencies[Math.min(sessions - 1, sessions * 99 / 100)] / 1e6, latencies[sessions - 1] / 1e6);
+		System.out.println("peak active sessions = " + server.getPeakActiveSessions() + ", peak queued sessions = " + peaks[0]
+				+ ", peak memory = " + server.getScheduler().getPeakMemoryInUse() + " / " + memoryBudget + ", peak memory waiters = " + peaks[1]
+				+ ", peak cpu waiters = " + peaks[2]);
+		System.out.println("completed = " + server.getCompletedSessions() + ", failed on server = " + server.getFailedSessions()
+				+ ", failed on client = " + failed.get());
+
+		for (String name: serverDir.list()) {
+			new File(serverDir, name).delete();
+		}
+		for (String name: clientDir.list()) {
+			new File(clientDir, name).delete();
+		}
+		serverDir.delete();
+		clientDir.delete();
+		base.delete();
+		if (failed.get() > 0 || server.getFailedSessions() > 0) {
+			System.exit(1);
+		}
+	}
+
+	private static void write(File f, byte[] data) throws Exception {
+		FileOutputStream out = new FileOutputStream(f);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,172 @@
+package net.daum.remotesync;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 여러 원본파일(basis)의 {@link SourceCodeList}를 하나로 묶어, 목표파일을 그 파일들 모두와 비교한다.
+ * 이름을 바꾸거나 옮긴 파일, 여러 파일을 이어붙인 파일도 받는 쪽이 이미 가진 블럭은 참조코드로 보낸다.
+ * <p>
+ * 블럭 번호는 원본파일들의 블럭을 차례로 이어붙인 번호를 쓴다. i번째 원본파일의 k번째 블럭은
+ * {@link #getFirstBlock(int) getFirstBlock(i)} + k번이며, {@link #basisOf(int)}와 {@link #localIndex(int)}로 되돌린다.
+ * 따라서 빌드코드와 그 바이너리 포맷은 파일 하나를 동기화할 때와 같고, 패치할 때는
+ * {@link MultiSourceFileAccess}로 원본파일들을 같은 순서로 이어서 읽는다.
+ * 원본파일들의 블럭크기와 해쉬코드 종류는 같아야 한다.
+ * </p>
+ *
+ * <pre>
+ * machineA (원본파일들):
+ *   BasisSet basis = new BasisSet(Arrays.asList(SourceCodeList.create(a, blockSize), SourceCodeList.create(b, blockSize)));
+ *   basis.pack(netOut);
+ *   BuildCodeList.patch(netIn, new MultiSourceFileAccess(basis, aAccess, bAccess), newFileOut);
+ *
+ * machineB (목표파일):
+ *   BasisSet basis = BasisSet.unpack(netIn);
+ *   basis.generateBuildCodes(newFileIn, netOut);
+ * </pre>
+ *
+ * 바이너리 포맷
+ * <pre>
+ * [VERSION:8][count] [SourceCodeList]*count
+ * </pre>
+ *
+ * @author dante
+ * @see MultiSourceFileAccess
+ */
+public class BasisSet implements Packable {
+	public static final int VERSION = 0x53;
+
+	private final List<SourceCodeList> bases;
+	private final SourceCodeList combined;
+	/*
+	 * firstBlocks[i]는 i번째 원본파일의 첫 블럭 번호. 마지막은 전체 블럭 갯수다.
+	 */
+	private final int[] firstBlocks;
+
+	/**
+	 * @param bases 원본파일들의 리스트. 하나 이상이어야 한다.
+	 */
+	public BasisSet(List<SourceCodeList> bases) {
+		if (bases.isEmpty()) {
+			throw new IllegalArgumentException("at least one basis is required");
+		}
+		this.bases = new ArrayList<SourceCodeList>(bases);
+		this.combined = SourceCodeList.concat(this.bases);
+		this.firstBlocks = new int[bases.size() + 1];
+		for (int i = 0; i < bases.size(); i++) {
+			firstBlocks[i + 1] = firstBlocks[i] + bases.get(i).size();
+		}
+	}
+
+	public int getBasisCount() {
+		return bases.size();
+	}
+
+	public SourceCodeList getBasis(int basis) {
+		return bases.get(basis);
+	}
+
+	public List<SourceCodeList> getBases() {
+		return Collections.unmodifiableList(bases);
+	}
+
+	public int getBlockSize() {
+		return combined.getBlockSize();
+	}
+
+	/**
+	 * 모든 원본파일의 블럭을 이어붙인 리스트. 이 리스트로 만든 빌드코드는 이어붙인 블럭 번호를 쓴다.
+	 */
+	public SourceCodeList getSourceCodeList() {
+		return combined;
+	}
+
+	/**
+	 * basis번째 원본파일의 첫 블럭 번호
+	 */
+	public int getFirstBlock(int basis) {
+		return firstBlocks[basis];
+	}
+
+	/**
+	 * 이어붙인 블럭 번호가 속한 원본파일의 번호
+	 */
+	public int basisOf(int block) {
+		if (block < 0 || block >= combined.size()) {
+			throw new IndexOutOfBoundsException("block = " + block + ", size = " + combined.size());
+		}
+		int i = Arrays.binarySearch(firstBlocks, block);
+		if (i < 0) return -i - 2;
+		// 블럭이 없는 원본파일은 건너뛴다.
+		while (firstBlocks[i + 1] == block) i++;
+		return i;
+	}
+
+	/**
+	 * 이어붙인 블럭 번호의, 원본파일 안에서의 블럭 번호
+	 */
+	public int localIndex(int block) {
+		return block - firstBlocks[basisOf(block)];
+	}
+
+	/**
+	 * 목표파일을 모든 원본파일과 비교해서 빌드코드를 만든다.
+	 * @see SourceCodeList#generateBuildCodes(InputStream)
+	 */
+	public BuildCodeList generateBuildCodes(InputStream newFileIn) throws Exception {
+		return combined.generateBuildCodes(newFileIn);
+	}
+
+	/**
+	 * 목표파일을 모든 원본파일과 비교하며, 빌드코드를 바로 바이너리 포맷으로 출력한다.
+	 * @return 쓴 바이트 수
+	 * @see SourceCodeList#generateBuildCodes(InputStream, OutputStream)
+	 */
+	public long generateBuildCodes(InputStream newFileIn, OutputStream netOut) throws Exception {
+		return combined.generateBuildCodes(newFileIn, netOut);
+	}
+
+	@Override
+	public long pack(OutputStream out) throws Exception {
+		PackOutput po = new PackOutput(out);
+		po.write8bit(VERSION);
+		long written = 1 + po.writeNumber(bases.size());
+		po.flush();
+		for (SourceCodeList sc: bases) {
+			written += sc.pack(out);
+		}
+		return written;
+	}
+
+	public static BasisSet unpack(InputStream in) throws Exception {
+		PackInput pi = new PackInput(in, null);
+		if (pi.readByte() != VERSION) {
+			throw new RuntimeException("BASIS_SET Version mismatch");
+		}
+		long count = pi.readNumber();
+		if (count == 0 || count > 65535) {
+			throw new RuntimeException("invalid basis count = " + count);
+		}
+		List<SourceCodeList> bases = new ArrayList<SourceCodeList>((int)count);
+		// 원본들의 블럭을 하나의 색인에 모으므로, 블럭 갯수는 원본 전체로 제한한다.
+		long remaining = RemoteSync.MAX_REMOTE_BLOCKS;
+		for (int i = 0; i < count; i++) {
+			SourceCodeList sc = SourceCodeList.unpack(pi, remaining);
+			remaining -= sc.size();
+			bases.add(sc);
+		}
+		try {
+			return new BasisSet(bases);
+		} catch (IllegalArgumentException e) {
+			throw new RuntimeException(e.getMessage());
+		}
+	}
+
+	public String toString() {
+		return "BasisSet(" + bases.size() + " bases, " + combined.size() + " blocks)";
+	}
+}
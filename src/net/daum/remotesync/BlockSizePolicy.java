@@ -0,0 +1,149 @@
+package net.daum.remotesync;
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 파일크기와 이전 동기화 결과로 블럭크기를 고른다.
+ * <p>
+ * 블럭이 작으면 {@link SourceCodeList}가 커지고, 블럭이 크면 수정된 곳마다 일치하지 않는 raw 데이타가 커진다.
+ * 파일크기가 N, 블럭 하나의 해쉬코드가 h바이트, 수정된 곳이 e군데일 때 주고받는 크기는 대략
+ * (N / B) * h + e * B 이므로, B = sqrt(N * h / e)에서 가장 작다.
+ * 수정된 곳의 갯수를 모르면 rsync처럼 sqrt(N)을 쓰고, 같은 경로를 동기화한 적이 있으면
+ * 그때의 raw 코드 갯수를 e로 사용한다. ({@link #record(String, BuildCodeList)})
+ * </p>
+ * <p>
+ * 고른 크기는 가장 가까운 2의 거듭제곱으로 맞춰서, 파일크기가 조금 바뀌어도 같은 블럭크기를 쓰게 한다.
+ * 블럭이 작을수록 롤링하며 찾아보는 비용도 커지므로, {@link #MIN_BLOCK_SIZE}보다 작게 고르지는 않는다.
+ * 64KB보다 큰 블럭은 {@link SourceCodeList#VERSION4}, {@link BuildCodeList#VERSION3} 포맷을 쓰므로,
+ * 상대방이 이전 버전이면 maxBlockSize를 {@link BuildCodeList#MAX_BLOCK_SIZE_V2} 이하로 지정한다.
+ * </p>
+ * 경로별 기록은 최근 {@link #MAX_HISTORY}개까지만 보관하며, 여러 쓰레드에서 함께 사용할 수 있다.
+ *
+ * <pre>
+ * int blockSize = policy.choose(path, file.length());
+ * SourceCodeList sc = SourceCodeList.create(path, blockSize);
+ * ...
+ * policy.record(path, buildCodeList);
+ * </pre>
+ *
+ * @author dante
+ */
+public class BlockSizePolicy implements Serializable {
+	private static final long serialVersionUID = -2318470562034478153L;
+
+	public static final int MIN_BLOCK_SIZE = 512;
+	public static final int MAX_BLOCK_SIZE = 1 << 20;
+
+	/**
+	 * 블럭 하나의 해쉬코드 크기. 빠른 해쉬 4바이트 + SHA1 20바이트
+	 */
+	static final int SIGNATURE_LENGTH = 4 + 20;
+
+	/**
+	 * 기록을 보관하는 최대 경로 갯수
+	 */
+	public static final int MAX_HISTORY = 10000;
+
+	private final int minBlockSize;
+	private final int maxBlockSize;
+	private final Map<String, Double> edits = new LinkedHashMap<String, Double>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Double> eldest) {
+			return size() > MAX_HISTORY;
+		}
+	};
+
+	public BlockSizePolicy() {
+		this(MIN_BLOCK_SIZE, MAX_BLOCK_SIZE);
+	}
+
+	/**
+	 * @param minBlockSize 가장 작은 블럭크기
+	 * @param maxBlockSize 가장 큰 블럭크기. 이전 버전과 주고받으려면 {@link BuildCodeList#MAX_BLOCK_SIZE_V2} 이하.
+	 */
+	public BlockSizePolicy(int minBlockSize, int maxBlockSize) {
+		if (minBlockSize < 1 || minBlockSize > maxBlockSize) {
+			throw new IllegalArgumentException("invalid block size range = " + minBlockSize + " ~ " + maxBlockSize);
+		}
+		this.minBlockSize = minBlockSize;
+		this.maxBlockSize = maxBlockSize;
+	}
+
+	/**
+	 * 기본 범위에서 파일크기만으로 블럭크기를 고른다.
+	 */
+	public static int forSize(long fileSize) {
+		return new BlockSizePolicy().choose(fileSize);
+	}
+
+	/**
+	 * 파일크기만으로 블럭크기를 고른다. sqrt(fileSize)
+	 */
+	public int choose(long fileSize) {
+		return choose(fileSize, SIGNATURE_LENGTH);
+	}
+
+	/**
+	 * 같은 경로의 이전 동기화 결과가 있으면 이를 참고해서 블럭크기를 고른다.
+	 * @param path 파일을 구별하는 이름. 예) 상대경로
+	 */
+	public synchronized int choose(String path, long fileSize) {
+		Double e = edits.get(path);
+		return choose(fileSize, e == null ? SIGNATURE_LENGTH : e.doubleValue());
+	}
+
+	private int choose(long fileSize, double edits) {
+		double optimal = Math.sqrt((double)fileSize * SIGNATURE_LENGTH / Math.max(edits, 0.5));
+		int blockSize = roundToPowerOfTwo((long)Math.min(optimal, Integer.MAX_VALUE));
+		// 블럭 갯수는 SourceCodeList의 배열에 담을 수 있어야 한다.
+		long minForCount = fileSize / ((Integer.MAX_VALUE - 8) / SourceCodeList.MAX_STRONG_LENGTH) + 1;
+		return (int)Math.max(minForCount, Math.max(minBlockSize, Math.min(maxBlockSize, blockSize)));
+	}
+
+	/**
+	 * 동기화 결과를 기록한다. raw 코드 하나를 수정된 곳 하나로 센다.
+	 * @param path {@link #choose(String, long)}에 쓴 이름
+	 * @param buildCodes 이번 동기화에서 주고받은 빌드코드
+	 */
+	public void record(String path, BuildCodeList buildCodes) {
+		long raws = 0;
+		for (BuildCode code: buildCodes) {
+			if (code instanceof RawBuildCode) raws++;
+		}
+		record(path, raws);
+	}
+
+	/**
+	 * 동기화 결과를 기록한다. 이전 기록과 평균을 내서, 한번의 큰 변경에 지나치게 흔들리지 않게 한다.
+	 * @param rawCodes 이번 동기화에서 주고받은 raw 코드의 갯수
+	 */
+	public synchronized void record(String path, long rawCodes) {
+		Double previous = edits.get(path);
+		edits.put(path, previous == null ? rawCodes : (previous.doubleValue() + rawCodes) / 2);
+	}
+
+	/**
+	 * 기록한 경로 갯수
+	 */
+	public synchronized int getHistorySize() {
+		return edits.size();
+	}
+
+	/**
+	 * 로그 눈금으로 가장 가까운 2의 거듭제곱
+	 */
+	static int roundToPowerOfTwo(long n) {
+		if (n <= 1) return 1;
+		long p = Long.highestOneBit(n);
+		if (n * n >= 2 * p * p && p < (1 << 30)) p <<= 1;
+		return (int)Math.min(p, 1 << 30);
+	}
+
+	public String toString() {
+		return "BlockSizePolicy(" + minBlockSize + " ~ " + maxBlockSize + ")";
+	}
+}
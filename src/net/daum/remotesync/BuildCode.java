@@ -1,12 +1,12 @@
 package net.daum.remotesync;
 
-import static net.daum.remotesync.PackUtil.write16bit;
+import static net.daum.remotesync.PackUtil.read24bit;
+import static net.daum.remotesync.PackUtil.readFully;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-
-import org.apache.commons.io.output.ByteArrayOutputStream;
+import java.util.zip.Inflater;
 
 /**
  * {@link SourceCodeList}와 목표파일의 차이값을 관리하는 단위 객체. 
@@ -17,6 +17,62 @@ import org.apache.commons.io.output.ByteArrayOutputStream;
  * @see BuildCodeList SourceCodeList
  */
 abstract public class BuildCode implements Packable {
+	/**
+	 * 스트림 포맷에서 빌드코드의 끝을 알리는 헤더. 
+	 */
+	static final int END_HEADER = 0xC0;
+	
+	/**
+	 * END_HEADER 코드의 데이타 상위 6비트에 담기는 확장코드 종류. 0이면 끝 코드. 
+	 */
+	static final int DIGEST_OP = 0x01;
+	
+	/**
+	 * 압축한 raw 데이타를 담는 확장코드. {@link RawCompressor} 참조. 
+	 */
+	static final int COMPRESSED_OP = 0x02;
+	
+	/*
+	 * {@link BuildCodeList#VERSION3}, {@link BuildCodeList#STREAM_VERSION3} 포맷의 코드는 첫 바이트 상위 3비트가 종류, 
+	 * 하위 5비트가 값이다. 값이 TAG_LIMIT 이상이면 뒤따르는 1~8바이트에 담는다. {@link PackOutput#writeNumber(int, long, int)} 참조. 
+	 */
+	static final int TAG_LIMIT = 24;
+	static final int TAG_END = 0;
+	static final int TAG_REF = 1;
+	static final int TAG_RANGE = 2;
+	static final int TAG_RAW = 3;
+	static final int TAG_DIGEST = 4;
+	static final int TAG_COMPRESSED = 5;
+	
+	/**
+	 * VERSION3 포맷의 코드 헤더를 출력한다. 
+	 * @return 출력한 바이트 수
+	 */
+	static int packTag(PackOutput out, int tag, long value) throws Exception {
+		return out.writeNumber(tag << 5, value, TAG_LIMIT);
+	}
+	
+	/**
+	 * 목표파일 전체의 해쉬코드를 담는 확장코드를 출력한다. {@link BuildCodeList#VERSION2}, {@link BuildCodeList#STREAM_VERSION2} 포맷에서 
+	 * 마지막 빌드코드 뒤에 쓴다. 
+	 * <pre>
+	 * [END_HEADER|DIGEST_OP:8][length:16][digest]
+	 * VERSION3: [TAG_DIGEST|length][digest]
+	 * </pre>
+	 * @param varint VERSION3 포맷인지
+	 * @return 출력한 바이트 수
+	 */
+	static long packDigest(PackOutput out, byte[] digest, boolean varint) throws Exception {
+		if (varint) {
+			long written = packTag(out, TAG_DIGEST, digest.length);
+			out.write(digest, 0, digest.length);
+			return written + digest.length;
+		}
+		out.write8bit(END_HEADER | DIGEST_OP);
+		out.write16bit(digest.length);
+		out.write(digest, 0, digest.length);
+		return 3 + digest.length;
+	}
 	
 	/**
 	 * 원본의 특정블럭과 일치하는 영역에 대한 코드 표현.
@@ -34,58 +90,74 @@ abstract public class BuildCode implements Packable {
 		return new RawBuildCode(data);
 	}
 	
+	/**
+	 * 원본의 연속된 블럭들과 일치하는 영역에 대한 코드 표현. {@link BuildCodeList#VERSION2} 포맷부터 사용할 수 있다.
+	 * @param start 일치하는 첫번째 블럭의 인덱스
+	 * @param count 연속으로 일치하는 블럭의 갯수
+	 */
+	public static BuildCode createRangeCode(int start, int count) {
+		return new RangeBuildCode(start, count);
+	}
+	
 	
+	/**
+	 * 바이너리 포맷에서 빌드코드 하나를 읽는다. 목표파일의 해쉬코드를 담은 확장코드는 건너뛰고, 
+	 * 압축한 raw 데이타는 풀어서 raw 코드로 돌려준다. 원본블럭을 사전으로 쓴 데이타는 풀 수 없다. 
+	 * @return 읽은 빌드코드. 스트림 포맷의 끝 코드를 만나면 null
+	 */
 	public static BuildCode unpack(InputStream in, OutputStream fileOut) throws Exception {
-		int firstByte = in.read();
-		if (fileOut != null) {
-			fileOut.write(firstByte);
-		}
-		
-		int secondByte = in.read();
+		byte[] headerBytes = new byte[3];
+		readFully(in, headerBytes, 3);
 		if (fileOut != null) {
-			fileOut.write(secondByte);
+			fileOut.write(headerBytes);
 		}
-		
-		int thirdByte = in.read();
-		if (fileOut != null) {
-			fileOut.write(thirdByte);
-		}
-		
-		int headerData = firstByte << 16;
-		headerData = headerData | secondByte << 8;
-		headerData = headerData | thirdByte;
+		int headerData = (headerBytes[0] & 0xFF) << 16 | (headerBytes[1] & 0xFF) << 8 | (headerBytes[2] & 0xFF);
 		
 		int header = headerData & 0x00C00000;
 		header = header >> 16;
 		int data = headerData & 0x003FFFFF;
 				
-//		int header = first & 0xC0;
-//		int data = ((first & 0x3F) << 16) | read16bit(in);
 		if (header == RefBuildCode.HEADER) {
 			return createRefCode(data);
 		} else if (header == RawBuildCode.HEADER) {
-			ByteArrayOutputStream dynamicBuf = new ByteArrayOutputStream();
-			int readBytes = 0;
-			while (true) {
-				int r = in.read();
-				if (fileOut != null) {
-					fileOut.write(r);
-				}
-				
-				if (r == -1) {
-					break;
-				} else if (readBytes < data) {
-					dynamicBuf.write((byte)r);
-					readBytes++;
-				}
-				
-				if (readBytes == data) {
-					break;
-				}
+			byte[] content = new byte[data];
+			try {
+				readFully(in, content, data);
+			} catch (RuntimeException e) {
+				throw new RuntimeException("couldn't read enough bytes for the raw code");
 			}
-				
-			if (readBytes != data) throw new RuntimeException("couldn't read enough bytes for the raw code");
-			return createRawCode(dynamicBuf.toByteArray());
+			if (fileOut != null) {
+				fileOut.write(content);
+			}
+			return new RawBuildCode(content, false);
+		} else if (header == RangeBuildCode.HEADER) {
+			return createRangeCode(data, read24bit(in, fileOut));
+		} else if (header == END_HEADER && (data >> 16) == DIGEST_OP) {
+			byte[] digest = new byte[data & 0xFFFF];
+			readFully(in, digest, digest.length);
+			if (fileOut != null) {
+				fileOut.write(digest);
+			}
+			return unpack(in, fileOut);
+		} else if (header == END_HEADER && (data >> 16) == COMPRESSED_OP) {
+			if ((data & 0xFF) > 0) {
+				throw new RuntimeException("source file is required to decompress the raw code");
+			}
+			int rawLength = read24bit(in, fileOut);
+			int length = read24bit(in, fileOut);
+			byte[] compressed = new byte[length + 1];
+			readFully(in, compressed, length);
+			if (fileOut != null) {
+				fileOut.write(compressed, 0, length);
+			}
+			Inflater inflater = new Inflater(true);
+			try {
+				return new RawBuildCode(RawCompressor.inflate(inflater, (data >> 8) & 0xFF, compressed, length, rawLength, null), false);
+			} finally {
+				inflater.end();
+			}
+		} else if (header == END_HEADER) {
+			return null;
 		} else {
 			throw new RuntimeException("unknown header = " + header);
 		}
@@ -108,102 +180,36 @@ abstract public class BuildCode implements Packable {
 	 * @throws IOException
 	 */
 	abstract public long patch(SourceFileAccess src, int blockSize, OutputStream out) throws Exception;
-
-	public void setDebugFile(OutputStream out) {
-		debugOut = out;
-	}
-}
-
-
-/**
- * 소스파일의 참조블럭을 가리키는 빌드코드. 
- * @author dante
- *
- */
-class RefBuildCode extends BuildCode {
-	public static final int HEADER = 0x80;
-
-	private int index;
-
-	RefBuildCode(int index) {
-		this.index = index;
-	}
-
-	public int getIndex() {
-		return index;
-	}
-
-	public long length() {
-		return 3;
-	}
-
-	public String toString() {
-		return "{ref:" + index + "}";
-	}
-
-	public long pack(OutputStream out) throws Exception {
-		int header = 0x80;
-		out.write(header | ((index >>> 16) & 0x3F));
-		write16bit(out, index & 0xFFFF);
-		return 3;
-	}
 	
-	@Override
-	public long patch(SourceFileAccess src, int blockSize, OutputStream out) throws Exception {
-		src.seek(index * blockSize);
-		byte buf[] = new byte[blockSize];
-		long r = src.read(buf);
-		assert r == blockSize: "referenced block must have the block-sized length";
-		out.write(buf);
-		if (debugOut != null) {
-			Signature s = new Signature(buf);
-			debugOut.write(("" + getIndex()).getBytes());
-			debugOut.write(": ".getBytes());
-			debugOut.write(s.getStrongBase64().getBytes());
-			debugOut.write("\n".getBytes());
-		}
-		return r;
-	}
-
-}
-
-/**
- * 소스파일에서 찾을 수 없는 데이타를 표현하는 빌드코드.
- * @author dante
- */
-class RawBuildCode extends BuildCode {
-	public static final int HEADER = 0x00;
-	
-	private final byte[] content;
-	
-	RawBuildCode(byte[] buf) {
-		this.content = buf.clone();
-	}
-	
-	public byte[] getData() {
-		return content;
-	}
+	/**
+	 * 이 빌드코드를 sink에 전달한다. 
+	 */
+	abstract void emit(BuildCodeSink sink) throws Exception;
 	
-	public long length() {
-		return 3 + content.length;
+	/**
+	 * 바이너리 포맷({@link BuildCodeList#VERSION2})으로 출력한다. 
+	 * @return 출력한 바이트 수
+	 */
+	public long pack(OutputStream out) throws Exception {
+		PackOutput po = new PackOutput(out, length());
+		long written = pack(po, false);
+		po.flush();
+		return written;
 	}
 	
-	public String toString() {
-		return "{raw:" + new String(content) + "}";
-	}
+	/**
+	 * @param varint {@link BuildCodeList#VERSION3} 포맷으로 쓸지
+	 */
+	abstract long pack(PackOutput out, boolean varint) throws Exception;
 	
-	public long pack(OutputStream out) throws Exception {
-		int header = 0x00;
-		out.write(header | ((content.length >>> 16) & 0x3F));
-		write16bit(out, content.length & 0xFFFF);
-		out.write(content);
-		return 3 + content.length;
+	/**
+	 * {@link BuildCodeList#VERSION2} 포맷으로는 표현할 수 없는 값을 가졌는지. 
+	 */
+	boolean exceedsVersion2() {
+		return false;
 	}
 
-	@Override
-	public long patch(SourceFileAccess src, int blockSize, OutputStream out) throws Exception {
-		out.write(content);
-		return content.length;
+	public void setDebugFile(OutputStream out) {
+		debugOut = out;
 	}
-
-}
\ No newline at end of file
+}
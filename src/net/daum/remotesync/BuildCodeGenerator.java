@@ -0,0 +1,226 @@
+package net.daum.remotesync;
+
+import static net.daum.remotesync.PackUtil.readBlock;
+
+import java.io.InputStream;
+import java.security.MessageDigest;
+
+/**
+ * {@link SourceCodeList}와 목표파일을 비교해 빌드코드를 만들어 {@link BuildCodeSink}로 흘려보낸다. 
+ * 일치하지 않는 데이타는 rawLimit 크기까지만 모아두므로, 메모리 사용량은 파일크기와 상관없이 
+ * 블럭크기 + rawLimit 이내로 유지된다. 연속된 블럭을 가리키는 참조는 하나의 range 코드로 합친다. 
+ * 목표파일 전체의 해쉬코드도 빌드코드를 만드는 순서대로 함께 계산하므로, 파일을 다시 읽을 필요가 없다. 
+ * 
+ * @author dante
+ */
+class BuildCodeGenerator {
+	private final ReferenceTable table;
+	private final StrongHash strongHash;
+	private final int blockSize;
+	private final long rawLimit;
+	private final BuildCodeSink sink;
+	private final ReferenceContentListener listener;
+	private final MessageDigest digest;
+
+	private byte[] raw;
+	private int rawSize = 0;
+	
+	private int rangeStart;
+	private int rangeCount = 0;
+	
+	private long readSize = 0;
+	private long codeLength = 0;
+	
+	BuildCodeGenerator(SourceCodeList sourceCodeList, long rawLimit, BuildCodeSink sink) {
+		this(new ReferenceTable(sourceCodeList), sourceCodeList, rawLimit, sink, true);
+	}
+	
+	/**
+	 * 여러 생성기가 색인 하나를 함께 쓸 때. 
+	 * @param table sourceCodeList의 색인. {@link ReferenceTable#ReferenceTable(ReferenceTable)}로 쓰레드마다 따로 만든다.
+	 * @param fileDigest 목표파일의 해쉬코드를 계산할지. 계산하지 않으면 {@link #generate(InputStream)}는 null로 끝낸다.
+	 */
+	BuildCodeGenerator(ReferenceTable table, SourceCodeList sourceCodeList, long rawLimit, BuildCodeSink sink, boolean fileDigest) {
+		this.table = table;
+		this.digest = fileDigest ? Signature.fileDigest() : null;
+		this.strongHash = sourceCodeList.getStrongHash();
+		this.blockSize = sourceCodeList.getBlockSize();
+		this.rawLimit = rawLimit;
+		this.sink = sink;
+		this.listener = sink instanceof ReferenceContentListener ? (ReferenceContentListener)sink : null;
+		this.raw = new byte[(int)Math.min(rawLimit, Math.max(blockSize, 65536))];
+	}
+	
+	/**
+	 * 목표파일에서 읽은 바이트 수 
+	 */
+	long getReadSize() {
+		return readSize;
+	}
+	
+	/**
+	 * 원본블럭을 찾아본 결과 통계
+	 */
+	PrefilterStats getPrefilterStats() {
+		return table.getStats();
+	}
+	
+	/**
+	 * 생성한 빌드코드들을 pack했을 때의 크기 (헤더 제외) 
+	 */
+	long getCodeLength() {
+		return codeLength;
+	}
+	
+	private void flushRaw() throws Exception {
+		flushRange();
+		if (rawSize > 0) {
+			if (digest != null) {
+				digest.update(raw, 0, rawSize);
+			}
+			sink.raw(raw, 0, rawSize);
+			codeLength += 3 + rawSize;
+			rawSize = 0;
+		}
+	}
+	
+	private void addRaw(byte c) throws Exception {
+		if (rawSize >= rawLimit) {
+			flushRaw();
+		}
+		if (rawSize == raw.length) {
+			byte[] grown = new byte[(int)Math.min(rawLimit, (long)raw.length * 2)];
+			System.arraycopy(raw, 0, grown, 0, rawSize);
+			raw = grown;
+		}
+		raw[rawSize++] = c;
+	}
+	
+	private void addRaw(byte[] buf, int length) throws Exception {
+		for (int i = 0; i < length; i++) {
+			addRaw(buf[i]);
+		}
+	}
+	
+	/**
+	 * 일치하는 블럭을 추가한다. 앞서 모아둔 raw 데이타를 먼저 내보내므로, 해쉬코드는 파일순서대로 계산된다. 
+	 * sink가 {@link ReferenceContentListener}이면 블럭내용도 알려준다. 
+	 */
+	private void addRef(int index, RollingSignature sign) throws Exception {
+		if (rangeCount > 0 && rawSize == 0 && index == rangeStart + rangeCount && rangeCount < RangeBuildCode.MAX_COUNT) {
+			rangeCount++;
+		} else {
+			flushRaw();
+			rangeStart = index;
+			rangeCount = 1;
+		}
+		if (digest != null) {
+			sign.update(digest);
+		}
+		if (listener != null) {
+			listener.referenced(index, sign);
+		}
+	}
+	
+	/**
+	 * 모아둔 연속된 참조블럭을 하나의 코드로 내보낸다. 
+	 */
+	private void flushRange() throws Exception {
+		if (rangeCount == 1) {
+			sink.ref(rangeStart);
+			codeLength += 3;
+		} else if (rangeCount > 1) {
+			sink.refRange(rangeStart, rangeCount);
+			codeLength += 6;
+		}
+		rangeCount = 0;
+	}
+	
+	/**
+	 * 목표파일을 끝까지 읽으며 빌드코드를 만들고, 마지막으로 목표파일의 해쉬코드와 함께 {@link BuildCodeSink#finish(byte[])}를 호출한다. 
+	 * @param in 목표파일의 InputStream. 외부에서 이미 Buffered처리 되어있다면, 다시 할 필요 없다.
+	 */
+	void generate(InputStream in) throws Exception {
+		scan(in);
+		byte[] fileDigest = digest != null ? digest.digest() : null;
+		if (fileDigest != null) {
+			codeLength += 3 + fileDigest.length;
+		}
+		sink.finish(fileDigest);
+	}
+	
+	/**
+	 * 목표파일의 한 구간을 끝까지 읽으며 빌드코드를 만든다. 모아둔 코드를 모두 sink로 내보내고 끝나므로, 
+	 * 구간 사이에 다른 코드를 sink에 직접 넣을 수 있다. 여러 구간을 읽었다면 해쉬코드는 읽은 구간들만의 것이다. 
+	 * @param in 구간의 내용만 담은 InputStream
+	 */
+	void scan(InputStream in) throws Exception {
+		scan(in, 0, null);
+	}
+	
+	/**
+	 * 원본블럭을 찾아보기 전에, 그 위치에서 멈출지 정한다. 
+	 */
+	interface StopCondition {
+		/**
+		 * @param offset 찾아볼 블럭의 시작위치. 그 앞까지는 빌드코드로 정해졌다.
+		 */
+		boolean shouldStop(long offset) throws Exception;
+	}
+	
+	/**
+	 * {@link #scan(InputStream)}과 같지만, 블럭을 찾아보기 전마다 stop에 물어보고 멈출 수 있다. 
+	 * 멈추면 그 위치 앞까지의 빌드코드만 sink로 내보낸다. 
+	 * @param base 구간의 시작위치. stop에 넘기는 위치의 기준이다.
+	 * @return 멈춘 위치. 끝까지 읽었으면 -1
+	 */
+	long scan(InputStream in, long base, StopCondition stop) throws Exception {
+		RollingSignature sign = new RollingSignature(strongHash);
+		byte[] buf = new byte[blockSize];
+		long windowStart = 0;
+		
+		int r = readBlock(in, buf, blockSize);
+		readSize += r;
+		if (r < blockSize) {
+			addRaw(buf, r);
+		} else {
+			sign.init(buf);
+			while (true) {
+				if (stop != null && stop.shouldStop(base + windowStart)) {
+					flushRaw();
+					return base + windowStart;
+				}
+				int idx = table.lookup(sign);
+				if (idx < 0) {
+					// no match
+					r = in.read();
+					if (r < 0) {
+						sign.getContent(buf);
+						addRaw(buf, blockSize);
+						break;
+					} else {
+						readSize++;
+						addRaw(sign.getFirst());
+					}
+					sign.roll((byte)r);
+					windowStart++;
+				} else {
+					// match
+					addRef(idx, sign);
+					
+					r = readBlock(in, buf, blockSize);
+					
+					readSize += r;
+					if (r < blockSize) {
+						addRaw(buf, r);
+						break;
+					}
+					sign.init(buf);
+					windowStart += blockSize;
+				}
+			}
+		}
+		flushRaw();
+		return -1;
+	}
+}
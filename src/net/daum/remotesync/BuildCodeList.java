@@ -1,100 +1,15 @@
 package net.daum.remotesync;
 
-import static net.daum.remotesync.PackUtil.read16bit;
-import static net.daum.remotesync.PackUtil.read32bit;
-import static net.daum.remotesync.PackUtil.write16bit;
-import static net.daum.remotesync.PackUtil.write32bit;
-
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
-import java.util.HashMap;
-import java.util.Map;
-
-import org.apache.commons.io.output.ByteArrayOutputStream;
-
-import net.daum.disk.file.handler.stream.StreamHandler;
-import net.daum.disk.file.utils.StreamReadResult;
-
-class ReferenceTable {
-	Map<Integer, Map<String, Integer>> table;
-	
-	protected ReferenceTable() {}
-	
-	ReferenceTable(SourceCodeList sc) {
-		table = new HashMap<Integer, Map<String, Integer>>(65535);
-		int idx = 0;
-		for (Signature sign: sc) {
-			Map<String, Integer> inner = table.get(sign.getFast());
-			if (inner == null) {
-				inner = new HashMap<String, Integer>(3);
-				table.put(sign.getFast(), inner);
-			}
-			inner.put(new String(sign.getStrong()), idx++);
-		}
-	}
-	
-	int lookup(RollingSignature sign) {
-		Map<String, Integer> inner = table.get(sign.getFast());
-		if (inner == null) return -1;
-		Integer i = inner.get(new String(sign.getStrong()));
-		if (i == null) return -1;
-		return i;
-	}
-}
-
-class ArrayReferenceTable extends ReferenceTable {
-	Object[] table;
-	Integer[] index;
-	
-	ArrayReferenceTable(SourceCodeList sc) {
-		table = new Object[sc.size()];
-		index = new Integer[65536];
-		int idx = 0;
-		for (Signature sign: sc) {
-			Object[] inner = new Object[3];
-			inner[0] = new Integer(sign.getFast());
-			inner[1] = new String(sign.getStrong());
-			inner[2] = new Integer(idx);
-			table[idx++] = inner;
-		}
-		Arrays.sort(table, new Comparator<Object>() {
-			@Override
-			public int compare(Object o1, Object o2) {
-				Object[] s1 = (Object[])o1;
-				Object[] s2 = (Object[])o2;
-				return ((Integer)s1[0] & 0xFFFF) - ((Integer)s2[0] & 0xFFFF);
-			}}
-		);
-		int prevValue = -1;
-		for (int i = 0; i < table.length; i++) {
-			int value = (Integer)(((Object[])table[i])[0]) & 0xFFFF;
-			if (prevValue != value) {
-				index[value] = i;
-				prevValue = value;
-			}
-		}
-	}
-	
-	int lookup(RollingSignature sign) {
-		int base = sign.getFast() & 0xFFFF;
-		Integer idx = index[base];
-		if (idx == null) return -1;
-		while (idx < table.length) {
-			Object[] o = (Object[])table[idx];
-			int fast = (Integer)o[0];
-			if (fast == sign.getFast() && ((String)o[1]).equals(new String(sign.getStrong()))) {
-				return (Integer)o[2];
-			}
-			if ((fast & 0xFFFF) != base) return -1;
-			idx++;
-		}
-		return -1;
-	}
-}
+import java.util.concurrent.ExecutorService;
 
 /**
  * {@link SourceCodeList}와 목표파일(newFileIn)을 토대로 생성한 빌드코드 리스트. 
@@ -111,12 +26,51 @@ class ArrayReferenceTable extends ReferenceTable {
 public class BuildCodeList extends ArrayList<BuildCode> {
 
 	public static final int VERSION1 = 0x81;
+	/**
+	 * VERSION1과 같은 빌드코드를 쓰지만, 갯수와 길이를 헤더 대신 끝 코드 뒤에 쓰는 포맷. 
+	 * 생성하는 즉시 출력할 때 사용한다. {@link BuildCodeWriter} 참조.
+	 */
+	public static final int STREAM_VERSION1 = 0x91;
+	/**
+	 * VERSION1의 빌드코드에, 연속된 참조블럭을 한번에 표현하는 range 코드(start, count)를 추가한 포맷. 
+	 */
+	public static final int VERSION2 = 0x82;
+	/**
+	 * VERSION2의 빌드코드를 쓰는 스트림 포맷. 
+	 */
+	public static final int STREAM_VERSION2 = 0x92;
+	/**
+	 * 블럭 인덱스, 갯수, 길이를 모두 가변길이 정수로 쓰는 포맷. 22비트를 넘는 블럭 인덱스와 raw 데이타, 
+	 * 64KB보다 큰 블럭크기를 표현할 수 있다. 
+	 * <pre>
+	 * [VERSION3][blockSize][count][length] [code]*
+	 * code: [tag:3|value:5] ... ({@link PackOutput#writeNumber(int, long, int)})
+	 *   ref:        [TAG_REF|index]
+	 *   range:      [TAG_RANGE|start][count]
+	 *   raw:        [TAG_RAW|length][data]
+	 *   digest:     [TAG_DIGEST|length][digest]
+	 *   compressed: [TAG_COMPRESSED|rawLength][method:8][dictCount][compressedLength][dictStart]?[data]
+	 * </pre>
+	 * 헤더의 blockSize, count, length도 가변길이 정수다. 
+	 */
+	public static final int VERSION3 = 0x83;
+	/**
+	 * VERSION3의 빌드코드를 쓰는 스트림 포맷. [STREAM_VERSION3][blockSize] [code]* [TAG_END|0][count][length]
+	 */
+	public static final int STREAM_VERSION3 = 0x93;
+	
+	/**
+	 * VERSION2 포맷까지 표현할 수 있는 최대 블럭크기 (16bit)
+	 */
+	public static final int MAX_BLOCK_SIZE_V2 = 0xFFFF;
 	
 	private static final long serialVersionUID = 9134363866140763474L;
 	private static final int HEADER_SIZE = 1 + 2 + 4 + 4;
 	
 	private int blockSize = RemoteSync.DEFAULT_BLOCK_SIZE;
 	private long rawLimit = RemoteSync.DEFAULT_RAW_LIMIT;
+	private byte[] digest = null;
+	private transient PrefilterStats prefilterStats = null;
 	
 	private BuildCodeList() {}
 	
@@ -132,123 +86,183 @@ public class BuildCodeList extends ArrayList<BuildCode> {
 	public int getBlockSize() {
 		return blockSize;
 	}
-
-	private long processRawCodeIfNeeded(ByteArrayOutputStream rawbuf) {
-		if (rawbuf.size() > 0) {
-			BuildCode bc = BuildCode.createRawCode(rawbuf.toByteArray());
-			add(bc);
-			rawbuf.reset();
-			return bc.length();
-		}
-		return 0;
-	}
 	
-	private long addByteToRawBuf(ByteArrayOutputStream rawbuf, byte c) {
-		long size = 0;
-		if (rawbuf.size() >= rawLimit) {
-			size = processRawCodeIfNeeded(rawbuf);
-		}		
-		rawbuf.write(c);
-		return size;
+	/**
+	 * 목표파일 전체의 해쉬코드 ({@link RemoteSync#DEFAULT_FILE_INTEGRITY_CHECK_METHOD}). 
+	 * 생성할 때 목표파일을 읽으면서 함께 계산하며, {@link #VERSION1} 포맷에서 읽었다면 null. 
+	 */
+	public byte[] getDigest() {
+		return digest;
 	}
-	
-	private long addBytesToRawBuf(ByteArrayOutputStream rawbuf, byte[] buf, int length) {
-		long size = 0;
-		for (int i = 0; i < length; i++) {
-			size += addByteToRawBuf(rawbuf, buf[i]);
+
+	/**
+	 * 이 리스트를 생성할 때 원본블럭을 찾아본 결과 통계. 비트맵 크기를 정할 때 참고한다. 
+	 * unpack한 리스트라면 null.
+	 */
+	public PrefilterStats getPrefilterStats() {
+		return prefilterStats;
+	}
+
+	/**
+	 * 전달받은 빌드코드를 새 리스트에 모으는 sink. 
+	 */
+	static class Collector implements BuildCodeSink {
+		final BuildCodeList list;
+		
+		Collector(int blockSize, long rawLimit) throws Exception {
+			this.list = new BuildCodeList(blockSize, rawLimit);
+		}
+		
+		public void ref(int index) {
+			list.add(new RefBuildCode(index));
+		}
+		
+		public void refRange(int start, int count) {
+			list.add(new RangeBuildCode(start, count));
+		}
+		
+		public void raw(byte[] buf, int offset, int length) {
+			list.add(new RawBuildCode(Arrays.copyOfRange(buf, offset, offset + length), false));
+		}
+		
+		public void finish(byte[] digest) {
+			list.digest = digest;
 		}
-		return size;
 	}
 	
-
 	/**
 	 * {@link SourceCodeList}와 목표파일(newFileIn)을 이용해 BuildCodeList 생성하기. 
 	 * @param sourceCodeList 
 	 * @param newFileIn 목표파일의 InputStream
-	 * @param rawLimit 바이너리 포맷을 위해 제한된 값. 최대 (4M-1)의 기본값을 사용할 수 있다. 
+	 * @param rawLimit 일치하지 않는 부분의 최대크기. (4M-1)보다 크면 {@link #VERSION3} 포맷으로 pack한다. 
 	 * @return 생성된 BulidCodeList
 	 * @throws IOException
 	 */
 	static final BuildCodeList create(SourceCodeList sourceCodeList, InputStream newFileIn, long rawLimit, boolean oversizeCheck) throws Exception {
-		final int blockSize = sourceCodeList.getBlockSize();
-		BuildCodeList bc = new BuildCodeList(blockSize, rawLimit);
-		
-		ReferenceTable table = new ReferenceTable(sourceCodeList);
-		// 외부에서 이미 Buffered처리 되어있다면, 다시 할 필요 없습니다. 
-		InputStream in = newFileIn;
-
-		ByteArrayOutputStream rawbuf = new ByteArrayOutputStream();
-		RollingSignature sign = new RollingSignature();
-
-		byte[] buf = new byte[blockSize];
-		long startTimestamp = System.currentTimeMillis();
-		long estimatedSize = HEADER_SIZE;
-		StreamReadResult readResult = new StreamReadResult();
-		
-		StreamHandler.readIntoBufferBuffered(in, buf, blockSize, readResult);
-		int r = readResult.readCount;
-//		int r = in.read(buf);
-		long readSize = r;
-		if (r < blockSize) {
-			estimatedSize += bc.addBytesToRawBuf(rawbuf, buf, r);
-		} else {
-			sign.init(buf);
-			while (true) {
-				// 현재 lookup부분이 create수행시간의 20%를 차지. 성능개선을 한다면 lookup중점적으로 필요.
-				int idx = table.lookup(sign);
-				if (idx < 0) {
-					// no match
-					r = in.read();
-					if (r < 0) {
-						estimatedSize += bc.addBytesToRawBuf(rawbuf, sign.getContent(), blockSize);
-						break;
-					} else {
-						readSize++;
-						estimatedSize += bc.addByteToRawBuf(rawbuf, sign.getFirst());						
-					}
-					sign.roll((byte)r);
-				} else {
-					// match
-					estimatedSize += bc.processRawCodeIfNeeded(rawbuf);
-					BuildCode c = BuildCode.createRefCode(idx);
-					bc.add(c);
-					estimatedSize += c.length();
-					
-					StreamHandler.readIntoBufferBuffered(in, buf, blockSize, readResult);
-					r = readResult.readCount;
-					
-					readSize += r;
-					if (r < blockSize || readResult.noMoreToRead()) {
-						bc.addBytesToRawBuf(rawbuf, buf, r);
-						break;
-					}
-					sign.init(buf);
-				}
-				
-				if (System.currentTimeMillis() - startTimestamp > 3000) {
-//					throw RemoteSyncException.TIMEOUT;
-				}
-				
-			}
-		}
-		bc.processRawCodeIfNeeded(rawbuf);
-		if (oversizeCheck && estimatedSize > readSize) throw RemoteSyncException.OVERSIZE;
+		Collector collector = new Collector(sourceCodeList.getBlockSize(), rawLimit);
+		BuildCodeList bc = collector.list;
+		BuildCodeGenerator generator = new BuildCodeGenerator(sourceCodeList, rawLimit, collector);
+		generator.generate(newFileIn);
+		bc.prefilterStats = generator.getPrefilterStats();
+		if (oversizeCheck && HEADER_SIZE + generator.getCodeLength() > generator.getReadSize()) throw RemoteSyncException.OVERSIZE;
 		return bc;
 	}
 
+	/**
+	 * 목표파일을 구간으로 나누어 executor에서 함께 비교한다. 결과는 {@link #create(SourceCodeList, InputStream, long, boolean)}와 같다.
+	 * @see ParallelBuildCodeGenerator
+	 */
+	static final BuildCodeList create(SourceCodeList sourceCodeList, FileChannel target, long rawLimit, ExecutorService executor, long segmentSize) throws Exception {
+		Collector collector = new Collector(sourceCodeList.getBlockSize(), rawLimit);
+		ParallelBuildCodeGenerator generator = new ParallelBuildCodeGenerator(sourceCodeList, target, executor, segmentSize);
+		generator.generate(collector, rawLimit);
+		collector.list.prefilterStats = generator.getPrefilterStats();
+		return collector.list;
+	}
+
+	/**
+	 * {@link SourceCodeList}와 목표파일을 비교하며, 빌드코드가 결정되는 즉시 sink로 넘긴다. 
+	 * 리스트를 만들지 않으므로 목표파일 크기와 상관없이 메모리 사용량이 일정하다. 
+	 * @return 목표파일에서 읽은 바이트 수
+	 */
+	static final long generate(SourceCodeList sourceCodeList, InputStream newFileIn, long rawLimit, BuildCodeSink sink) throws Exception {
+		BuildCodeGenerator generator = new BuildCodeGenerator(sourceCodeList, rawLimit, sink);
+		generator.generate(newFileIn);
+		return generator.getReadSize();
+	}
 	
+	/** 
+	 * 원본파일을 참고해서, 목표파일 만들어내기. 연속된 블럭을 가리키는 참조는 한번에 읽어 쓴다.
+	 * 목표파일의 해쉬코드({@link #getDigest()})가 있으면, 쓰는 내용의 해쉬코드를 함께 계산해 확인한다.
+	 * @param src 원본파일을 읽을 수 있는 인터페이스
+	 * @param newFileOut 목표파일이 저장될 OutputStream
+	 * @return 실제 쓰여진 바이트 수
+	 * @throws RemoteSyncException 해쉬코드가 다르면 {@link RemoteSyncException#INTEGRITY}
+	 */
 	public long patch(SourceFileAccess src, OutputStream newFileOut) throws Exception {
-		long written = 0;
-		OutputStream out = null; // had been here for debug purpose.
+		return patch(src, newFileOut, digest);
+	}
+	
+	/** 
+	 * 원본파일을 참고해서 목표파일을 만들고, 만들어낸 내용 전체의 해쉬코드가 expectedDigest와 같은지 확인한다.
+	 * {@link SourceCodeList}의 SHA1 해쉬값을 잘라서 보냈다면 반드시 확인해야 한다. 
+	 * @param expectedDigest 목표파일 전체의 해쉬코드. {@link Signature#fileSignature} 참조. null이면 확인하지 않는다.
+	 * @return 실제 쓰여진 바이트 수
+	 * @throws RemoteSyncException 해쉬코드가 다르면 {@link RemoteSyncException#INTEGRITY}. 
+	 *         전체 길이의 해쉬값을 사용한 {@link SourceCodeList}로 다시 동기화해야 한다.
+	 */
+	public long patch(SourceFileAccess src, OutputStream newFileOut, byte[] expectedDigest) throws Exception {
+		return patch(new BuildCodePatcher(src, blockSize, newFileOut, expectedDigest != null), expectedDigest);
+	}
+	
+	/** 
+	 * 원본파일을 참고해서, 목표파일을 채널로 만들어내기. 원본이 {@link SourceChannelAccess}이면 
+	 * 참조블럭은 힙 배열을 거치지 않고 transferTo로 복사한다. 
+	 * 단, 목표파일의 해쉬코드를 확인해야 할 때는 참조블럭도 읽어서 해쉬코드를 계산한다. 
+	 * @param src 원본파일을 읽을 수 있는 인터페이스. 예) {@link SourceMappedFileAccess}
+	 * @param newFileOut 목표파일이 저장될 채널
+	 * @return 실제 쓰여진 바이트 수
+	 */
+	public long patch(SourceFileAccess src, WritableByteChannel newFileOut) throws Exception {
+		return patch(new BuildCodePatcher(src, blockSize, newFileOut, digest != null), digest);
+	}
+	
+	/**
+	 * 목표파일을 만들면서, 만든 파일의 {@link SourceCodeList}도 함께 만든다. 다음 동기화에서 목표파일을 다시 읽지 않아도 된다.
+	 * 참조블럭이 목표파일의 블럭 경계에 놓이면 sourceCodeList의 해쉬코드를 그대로 쓰고,
+	 * raw 데이타가 섞이거나 위치가 밀린 블럭만 해쉬코드를 계산한다.
+	 * @param sourceCodeList 이 빌드코드를 만들 때 쓴, 원본파일의 SourceCodeList
+	 * @return 목표파일의 SourceCodeList. 블럭크기와 해쉬코드 종류는 sourceCodeList와 같다.
+	 * @throws RemoteSyncException 해쉬코드가 다르면 {@link RemoteSyncException#INTEGRITY}
+	 */
+	public SourceCodeList patchAndSign(SourceFileAccess src, OutputStream newFileOut, SourceCodeList sourceCodeList) throws Exception {
+		BuildCodePatcher patcher = new BuildCodePatcher(src, blockSize, newFileOut, digest != null);
+		SignatureTracker tracker = newTracker(sourceCodeList, blockSize);
+		patcher.setTracker(tracker);
+		patch(patcher, digest);
+		return tracker.getSourceCodeList();
+	}
+	
+	private static SignatureTracker newTracker(SourceCodeList sourceCodeList, int blockSize) {
+		if (sourceCodeList.getBlockSize() != blockSize) {
+			throw new IllegalArgumentException("block size mismatch: " + sourceCodeList.getBlockSize() + " != " + blockSize);
+		}
+		return new SignatureTracker(sourceCodeList);
+	}
+	
+	private long patch(BuildCodePatcher patcher, byte[] expectedDigest) throws Exception {
 		for (BuildCode bc: this) {
-			bc.setDebugFile(out);
-			written += bc.patch(src, blockSize, newFileOut);
+			bc.emit(patcher);
 		}
-		
-		if (out != null) {
-			out.close();
+		patcher.finish(expectedDigest);
+		return patcher.getWritten();
+	}
+	
+	/**
+	 * 빌드코드를 가변길이 정수로 쓰는 포맷인지 
+	 */
+	static boolean isVarint(int version) {
+		return version == VERSION3 || version == STREAM_VERSION3;
+	}
+	
+	/**
+	 * 주어진 조건을 표현할 수 있는 스트림 포맷. VERSION2 포맷의 한계를 넘으면 {@link #STREAM_VERSION3}. 
+	 * @param blocks 원본블럭의 갯수
+	 * @param rawLimit 일치하지 않는 부분의 최대크기
+	 */
+	static int streamVersionFor(int blockSize, long blocks, long rawLimit) {
+		if (blockSize > MAX_BLOCK_SIZE_V2 || blocks > RefBuildCode.MAX_INDEX + 1L || rawLimit > RawBuildCode.MAX_LENGTH) {
+			return STREAM_VERSION3;
 		}
-		return written;
+		return STREAM_VERSION2;
+	}
+	
+	private boolean exceedsVersion2() {
+		if (blockSize > MAX_BLOCK_SIZE_V2) return true;
+		for (BuildCode code: this) {
+			if (code.exceedsVersion2()) return true;
+		}
+		return false;
 	}
 	
 	private long estimatedLength() {
@@ -256,24 +270,102 @@ public class BuildCodeList extends ArrayList<BuildCode> {
 		for (BuildCode code: this) {
 			len += code.length();
 		}
+		if (digest != null) {
+			len += 3 + digest.length;
+		}
 		return len;
 	}
 
+	private boolean hasRangeCode() {
+		for (BuildCode code: this) {
+			if (code instanceof RangeBuildCode) return true;
+		}
+		return false;
+	}
+
 	/** 
-	 * 네트워크로 보내기 위해 Binary포맷으로 변환하기. 
+	 * 네트워크로 보내기 위해 Binary포맷으로 변환하기. range 코드나 목표파일의 해쉬코드가 있으면 {@link #VERSION2}, 
+	 * 없으면 이전 버전과 호환되는 {@link #VERSION1} 포맷으로 쓴다. 블럭크기나 블럭 인덱스, raw 데이타의 길이가 
+	 * VERSION2로 표현할 수 없을만큼 크면 {@link #VERSION3} 포맷을 쓴다. 
+	 * VERSION2에서 해쉬코드는 마지막 빌드코드 뒤에 digest 코드로 쓰며, 코드 갯수에 포함한다. 
 	 * @param netOut 변환한 데이타를 저장할 네트워크 출력스트림.
 	 * @return 출력한 바이트 수
 	 * @throws IOException
 	 */
 	public long pack(OutputStream netOut) throws Exception {
-		netOut.write(VERSION1);
-		write16bit(netOut, blockSize);
-		write32bit(netOut, this.size());
-		write32bit(netOut, estimatedLength());
-		long written = HEADER_SIZE;
-		
-		for (BuildCode code: this) {
-			written += code.pack(netOut);
+		return pack(new PackOutput(netOut, HEADER_SIZE + estimatedLength()), null);
+	}
+	
+	/** 
+	 * raw 데이타를 압축해서 {@link #VERSION2} 포맷으로 변환하기. 
+	 * 리스트에는 참조블럭의 내용이 없으므로, {@link RawCompression#isSourceDictionary()}와 상관없이 사전은 쓰지 않는다. 
+	 * 원본블럭을 사전으로 쓰려면 {@link BuildCodeWriter}로 생성하면서 바로 출력해야 한다. 
+	 * @param compression raw 데이타의 압축설정
+	 * @see #pack(OutputStream)
+	 */
+	public long pack(OutputStream netOut, RawCompression compression) throws Exception {
+		return pack(new PackOutput(netOut, HEADER_SIZE + estimatedLength()), compression);
+	}
+	
+	/** 
+	 * 채널로 Binary포맷 출력하기. 
+	 * @see #pack(OutputStream)
+	 */
+	public long pack(WritableByteChannel netOut) throws Exception {
+		return pack(new PackOutput(netOut, HEADER_SIZE + estimatedLength()), null);
+	}
+	
+	private long pack(PackOutput out, RawCompression compression) throws Exception {
+		boolean varint = exceedsVersion2();
+		long length = estimatedLength();
+		byte[] codes = null;
+		if (compression != null || varint) {
+			// 압축하거나 가변길이로 쓴 뒤의 길이를 헤더에 써야 하므로, 빌드코드들을 먼저 메모리에 출력해둔다. 
+			ByteArrayOutputStream buf = new ByteArrayOutputStream((int)Math.min(length, Integer.MAX_VALUE - 8));
+			PackOutput codesOut = new PackOutput(buf, length);
+			length = packCodes(codesOut, compression != null ? new RawCompressor(compression, blockSize) : null, varint);
+			codesOut.flush();
+			codes = buf.toByteArray();
+		}
+		long count = this.size() + (digest != null ? 1 : 0);
+		long written;
+		if (varint) {
+			out.write8bit(VERSION3);
+			written = 1 + out.writeNumber(blockSize) + out.writeNumber(count) + out.writeNumber(length);
+		} else {
+			out.write8bit(hasRangeCode() || digest != null || compression != null ? VERSION2 : VERSION1);
+			out.write16bit(blockSize);
+			out.write32bit(count);
+			out.write32bit(length);
+			written = HEADER_SIZE;
+		}
+		if (codes != null) {
+			out.write(codes, 0, codes.length);
+		} else {
+			packCodes(out, null, false);
+		}
+		out.flush();
+		return written + length;
+	}
+	
+	private long packCodes(PackOutput out, RawCompressor compressor, boolean varint) throws Exception {
+		long written = 0;
+		try {
+			for (BuildCode code: this) {
+				if (compressor != null && code instanceof RawBuildCode) {
+					byte[] data = ((RawBuildCode)code).getData();
+					written += compressor.pack(out, data, 0, data.length, varint);
+				} else {
+					written += code.pack(out, varint);
+				}
+			}
+			if (digest != null) {
+				written += BuildCode.packDigest(out, digest, varint);
+			}
+		} finally {
+			if (compressor != null) {
+				compressor.end();
+			}
 		}
 		return written;
 	}
@@ -285,23 +377,157 @@ public class BuildCodeList extends ArrayList<BuildCode> {
 	 * @throws IOException
 	 */
 	public static final BuildCodeList unpack(InputStream netIn, OutputStream fileOut) throws Exception {
-		int header = netIn.read();
-		if (fileOut != null) {
-			fileOut.write(header);
-		}
-		if (header != VERSION1) {
-			throw new RuntimeException("unknown buildcode version");
+		return unpack(new BuildCodeReader(netIn, fileOut));
+	}
+	
+	/**
+	 * 원본블럭을 사전으로 압축한 raw 데이타가 담긴 Binary 포맷으로부터 BuildCodeList만들어 내기. 
+	 * @param src 압축사전으로 쓴 블럭을 읽을 원본파일
+	 * @see #unpack(InputStream, OutputStream)
+	 * @see RawCompression
+	 */
+	public static final BuildCodeList unpack(InputStream netIn, OutputStream fileOut, SourceFileAccess src) throws Exception {
+		BuildCodeReader reader = new BuildCodeReader(netIn, fileOut);
+		reader.setDictionarySource(src);
+		return unpack(reader);
+	}
+	
+	/**
+	 * 채널에서 Binary 포맷을 읽어 BuildCodeList만들어 내기.
+	 * @param fileOut 읽은 내용을 그대로 복사해둘 채널. 필요없으면 null
+	 * @see #unpack(InputStream, OutputStream)
+	 */
+	public static final BuildCodeList unpack(ReadableByteChannel netIn, WritableByteChannel fileOut) throws Exception {
+		return unpack(new BuildCodeReader(netIn, fileOut));
+	}
+	
+	private static BuildCodeList unpack(BuildCodeReader reader) throws Exception {
+		reader.readHeader();
+		BuildCodeList bc = new BuildCodeList(reader.getBlockSize(), RemoteSync.DEFAULT_RAW_LIMIT);
+		int header;
+		while ((header = reader.next()) != BuildCode.END_HEADER) {
+			if (header == RefBuildCode.HEADER) {
+				bc.add(new RefBuildCode(reader.getIndex()));
+			} else if (header == RangeBuildCode.HEADER) {
+				bc.add(new RangeBuildCode(reader.getIndex(), reader.getCount()));
+			} else {
+				// 길이는 수신한 값이므로 배열을 한번에 만들지 않고, 데이타가 도착하는 만큼 늘린다.
+				int length = reader.getRawLength();
+				byte[] data = new byte[Math.min(length, PackInput.BUFFER_SIZE)];
+				int read = 0;
+				while (read < length) {
+					if (read == data.length) {
+						data = Arrays.copyOf(data, (int)Math.min(length, 2L * data.length));
+					}
+					read += reader.readRaw(data, read, data.length - read);
+				}
+				bc.add(new RawBuildCode(data, false));
+			}
 		}
-		
-		int blockSize = read16bit(netIn, fileOut);
-		long count = read32bit(netIn, fileOut);
-		
-		read32bit(netIn, fileOut); // length는 무시해도 됨. 
-		BuildCodeList bc = new BuildCodeList(blockSize, RemoteSync.DEFAULT_RAW_LIMIT);
-		while (count-- > 0) {
-			bc.add(BuildCode.unpack(netIn, fileOut));
-		}		
+		bc.digest = reader.getDigest();
 		return bc;
 	}
 	
+	/**
+	 * 네트워크로 수신중인 Binary 포맷을 읽으면서 바로 목표파일 만들어내기. 
+	 * BuildCodeList를 만들지 않고 빌드코드 하나를 읽을 때마다 적용하며, raw 데이타도 
+	 * 버퍼 하나로 입력에서 출력으로 바로 복사하므로, 빌드코드의 크기와 상관없이 메모리 사용량이 일정하다. 
+	 * VERSION2 이후의 포맷이면 쓰는 내용의 해쉬코드를 함께 계산해, 마지막의 digest 코드와 다르면 바로 실패한다.
+	 * @param netIn 바이너리 포맷({@link #VERSION1}, {@link #VERSION2}, {@link #VERSION3}, {@link #STREAM_VERSION1}, 
+	 *              {@link #STREAM_VERSION2}, {@link #STREAM_VERSION3})이 담겨있는 네트워크 입력스트림.
+	 * @param src 원본파일을 읽을 수 있는 인터페이스
+	 * @param newFileOut 목표파일이 저장될 OutputStream
+	 * @return 실제 쓰여진 바이트 수
+	 * @throws RemoteSyncException 해쉬코드가 다르면 {@link RemoteSyncException#INTEGRITY}
+	 */
+	public static final long patch(InputStream netIn, SourceFileAccess src, OutputStream newFileOut) throws Exception {
+		return patch(netIn, src, newFileOut, null);
+	}
+	
+	/**
+	 * 네트워크로 수신중인 Binary 포맷을 읽으면서 바로 목표파일을 만들고, 전체 해쉬코드를 확인한다. 
+	 * @param expectedDigest 목표파일 전체의 해쉬코드. null이면 포맷에 담긴 해쉬코드로 확인한다.
+	 * @see #patch(SourceFileAccess, OutputStream, byte[])
+	 */
+	public static final long patch(InputStream netIn, SourceFileAccess src, OutputStream newFileOut, byte[] expectedDigest) throws Exception {
+		BuildCodeReader reader = new BuildCodeReader(netIn, null);
+		reader.setDictionarySource(src);
+		reader.readHeader();
+		boolean verify = expectedDigest != null || reader.supportsDigest();
+		return patch(reader, new BuildCodePatcher(src, reader.getBlockSize(), newFileOut, verify), expectedDigest);
+	}
+	
+	/**
+	 * 네트워크로 수신중인 Binary 포맷을 읽으면서 목표파일과 그 파일의 {@link SourceCodeList}를 함께 만든다. 
+	 * @see #patchAndSign(SourceFileAccess, OutputStream, SourceCodeList)
+	 */
+	public static final SourceCodeList patchAndSign(InputStream netIn, SourceFileAccess src, OutputStream newFileOut, SourceCodeList sourceCodeList) throws Exception {
+		BuildCodeReader reader = new BuildCodeReader(netIn, null);
+		reader.setDictionarySource(src);
+		reader.readHeader();
+		BuildCodePatcher patcher = new BuildCodePatcher(src, reader.getBlockSize(), newFileOut, reader.supportsDigest());
+		SignatureTracker tracker = newTracker(sourceCodeList, reader.getBlockSize());
+		patcher.setTracker(tracker);
+		patch(reader, patcher, null);
+		return tracker.getSourceCodeList();
+	}
+	
+	/**
+	 * 네트워크로 수신중인 Binary 포맷을 읽으면서 바로 목표파일을 채널로 만들어내기. 
+	 * @see #patch(InputStream, SourceFileAccess, OutputStream)
+	 * @see #patch(SourceFileAccess, WritableByteChannel)
+	 */
+	public static final long patch(InputStream netIn, SourceFileAccess src, WritableByteChannel newFileOut) throws Exception {
+		return patch(new BuildCodeReader(netIn, null), src, newFileOut);
+	}
+	
+	/**
+	 * 채널로 수신중인 Binary 포맷을 읽으면서 바로 목표파일을 채널로 만들어내기. 
+	 * @see #patch(InputStream, SourceFileAccess, WritableByteChannel)
+	 */
+	public static final long patch(ReadableByteChannel netIn, SourceFileAccess src, WritableByteChannel newFileOut) throws Exception {
+		return patch(new BuildCodeReader(netIn, null), src, newFileOut);
+	}
+	
+	/**
+	 * 받는 쪽이 쓸 메모리를 미리 정해두고 패치한다. 버퍼 크기는 상대방이 보낸 값으로 정해지므로, 
+	 * 블럭크기가 blockSize와 다르거나 압축한 raw 코드가 maxCompressedRaw보다 크게 풀리면 배열을 만들기 전에 실패한다. 
+	 * @see ChannelSync#sessionMemory(int)
+	 */
+	static long patch(ReadableByteChannel netIn, SourceFileAccess src, WritableByteChannel newFileOut, int blockSize, int maxCompressedRaw) throws Exception {
+		BuildCodeReader reader = new BuildCodeReader(netIn, null);
+		reader.setMaxCompressedRaw(maxCompressedRaw);
+		reader.setDictionarySource(src);
+		reader.readHeader();
+		if (reader.getBlockSize() != blockSize) {
+			throw new RuntimeException("block size mismatch: " + reader.getBlockSize() + " != " + blockSize);
+		}
+		return patch(reader, new BuildCodePatcher(src, blockSize, newFileOut, reader.supportsDigest()), null);
+	}
+	
+	private static long patch(BuildCodeReader reader, SourceFileAccess src, WritableByteChannel newFileOut) throws Exception {
+		reader.setDictionarySource(src);
+		reader.readHeader();
+		return patch(reader, new BuildCodePatcher(src, reader.getBlockSize(), newFileOut, reader.supportsDigest()), null);
+	}
+	
+	private static long patch(BuildCodeReader reader, BuildCodePatcher patcher, byte[] expectedDigest) throws Exception {
+		byte[] buf = new byte[Math.max(reader.getBlockSize(), 65536)];
+		int header;
+		while ((header = reader.next()) != BuildCode.END_HEADER) {
+			if (header == RefBuildCode.HEADER) {
+				patcher.ref(reader.getIndex());
+			} else if (header == RangeBuildCode.HEADER) {
+				patcher.refRange(reader.getIndex(), reader.getCount());
+			} else {
+				int r;
+				while ((r = reader.readRaw(buf, 0, buf.length)) > 0) {
+					patcher.raw(buf, 0, r);
+				}
+			}
+		}
+		patcher.finish(expectedDigest != null ? expectedDigest : reader.getDigest());
+		return patcher.getWritten();
+	}
+	
 }
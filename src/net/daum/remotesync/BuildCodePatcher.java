@@ -0,0 +1,161 @@
+package net.daum.remotesync;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+
+/**
+ * 전달받은 빌드코드를 곧바로 목표파일에 적용하는 {@link BuildCodeSink}.
+ * 원본블럭을 읽을 버퍼 하나를 계속 재사용하고, 연속된 블럭을 가리키는 참조는 모아두었다가 한번에 복사한다.
+ * 출력이 채널이고 원본이 {@link SourceChannelAccess}이면, 참조블럭은 transferTo로 힙을 거치지 않고 옮긴다.
+ * verify로 만들면 쓰는 내용 전체의 해쉬코드를 함께 계산해서, {@link #finish(byte[])}에서 확인한다.
+ * {@link SignatureTracker}를 지정하면 쓰는 내용의 {@link SourceCodeList}도 함께 만든다.
+ *
+ * @author dante
+ */
+class BuildCodePatcher implements BuildCodeSink {
+	/**
+	 * 연속된 참조블럭을 읽을 때 한번에 읽는 크기
+	 */
+	static final int CHUNK_SIZE = 256 * 1024;
+	
+	private final SourceFileAccess src;
+	private final int blockSize;
+	private final OutputStream out;
+	private final WritableByteChannel channel;
+	private final byte[] block;
+	private final byte[] chunk;
+	private final MessageDigest digest;
+	private SignatureTracker tracker;
+	private long written = 0;
+
+	private long pendingOffset = 0;
+	private long pendingLength = 0;
+
+	BuildCodePatcher(SourceFileAccess src, int blockSize, OutputStream out, boolean verify) {
+		this(src, blockSize, out, null, verify);
+	}
+
+	BuildCodePatcher(SourceFileAccess src, int blockSize, WritableByteChannel channel, boolean verify) {
+		this(src, blockSize, null, channel, verify);
+	}
+
+	private BuildCodePatcher(SourceFileAccess src, int blockSize, OutputStream out, WritableByteChannel channel, boolean verify) {
+		this.src = src;
+		this.blockSize = blockSize;
+		this.out = out;
+		this.channel = channel;
+		this.digest = verify ? Signature.fileDigest() : null;
+		this.block = new byte[blockSize];
+		this.chunk = new byte[Math.max(1, CHUNK_SIZE / blockSize) * blockSize];
+	}
+
+	long getWritten() {
+		return written;
+	}
+
+	/**
+	 * 쓰는 내용의 {@link SourceCodeList}를 함께 만든다. 빌드코드를 받기 전에 지정해야 한다.
+	 */
+	void setTracker(SignatureTracker tracker) {
+		this.tracker = tracker;
+	}
+
+	@Override
+	public void ref(int index) throws Exception {
+		refRange(index, 1);
+	}
+
+	@Override
+	public void refRange(int start, int count) throws Exception {
+		long offset = (long)start * blockSize;
+		if (tracker != null) {
+			tracker.ref(start, count);
+		}
+		if (pendingLength > 0 && pendingOffset + pendingLength != offset) {
+			flushPending();
+		}
+		if (pendingLength == 0) {
+			pendingOffset = offset;
+		}
+		pendingLength += (long)count * blockSize;
+	}
+
+	@Override
+	public void raw(byte[] buf, int offset, int length) throws Exception {
+		flushPending();
+		if (tracker != null) {
+			tracker.raw(length);
+		}
+		write(buf, offset, length);
+	}
+
+	/**
+	 * 남은 참조블럭을 쓰고, 쓴 내용 전체의 해쉬코드가 expectedDigest와 같은지 확인한다.
+	 * @param expectedDigest 목표파일 전체의 해쉬코드. null이면 확인하지 않는다.
+	 * @throws RemoteSyncException 해쉬코드가 다르면 {@link RemoteSyncException#INTEGRITY}
+	 */
+	@Override
+	public void finish(byte[] expectedDigest) throws Exception {
+		flushPending();
+		if (out != null) {
+			out.flush();
+		}
+		if (expectedDigest != null && digest != null && !MessageDigest.isEqual(expectedDigest, digest.digest())) {
+			throw RemoteSyncException.INTEGRITY;
+		}
+	}
+
+	private void flushPending() throws Exception {
+		if (pendingLength == 0) return;
+		if (channel != null && digest == null && tracker == null && src instanceof SourceChannelAccess) {
+			long r = ((SourceChannelAccess)src).transferTo(pendingOffset, pendingLength, channel);
+			if (r < pendingLength) {
+				throw sourceTruncated(pendingOffset + Math.max(r, 0));
+			}
+			written += r;
+		} else {
+			// 한번 seek한 뒤, 가능한 큰 단위로 이어서 읽는다. 적게 읽혔으면 읽힌 만큼 쓰고 이어서 읽는다.
+			src.seek(pendingOffset);
+			long remaining = pendingLength;
+			while (remaining > 0) {
+				byte[] buf = remaining >= chunk.length ? chunk : block;
+				long r = src.read(buf);
+				if (r <= 0) {
+					throw sourceTruncated(pendingOffset + pendingLength - remaining);
+				}
+				int n = (int)Math.min(r, remaining);
+				write(buf, 0, n);
+				remaining -= n;
+			}
+		}
+		pendingLength = 0;
+	}
+
+	/**
+	 * 참조블럭을 모두 읽기 전에 원본파일이 끝났다. 그대로 쓰면 목표파일이 잘리므로 실패로 처리한다.
+	 */
+	private RuntimeException sourceTruncated(long offset) {
+		return new RuntimeException("source file ended before the referenced blocks: offset = " + offset
+				+ ", expected up to " + (pendingOffset + pendingLength));
+	}
+
+	private void write(byte[] buf, int offset, int length) throws Exception {
+		if (digest != null) {
+			digest.update(buf, offset, length);
+		}
+		if (tracker != null) {
+			tracker.write(buf, offset, length);
+		}
+		if (out != null) {
+			out.write(buf, offset, length);
+		} else {
+			ByteBuffer bb = ByteBuffer.wrap(buf, offset, length);
+			while (bb.hasRemaining()) {
+				channel.write(bb);
+			}
+		}
+		written += length;
+	}
+}
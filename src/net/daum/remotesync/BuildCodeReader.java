@@ -0,0 +1,314 @@
+package net.daum.remotesync;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.Inflater;
+
+/**
+ * 바이너리 포맷의 빌드코드를 하나씩 읽어들이는 객체. 빌드코드 객체를 만들지 않고, 
+ * 코드의 종류와 값만 알려주므로 읽으면서 바로 처리할 수 있다. 
+ * raw 코드의 데이타는 {@link #readRaw}로 필요한 만큼씩 나누어 읽는다. 
+ * 입력은 {@link PackInput}으로 읽으므로, 코드 헤더는 한번에 읽고 raw 데이타는 버퍼를 거치지 않고 바로 읽는다. 
+ * 압축한 raw 데이타({@link BuildCode#COMPRESSED_OP})는 한번에 풀어두고, raw 코드처럼 나누어 읽는다. 
+ * 
+ * <pre>
+ * BuildCodeReader reader = new BuildCodeReader(netIn, null);
+ * reader.readHeader();
+ * while (reader.next() != BuildCode.END_HEADER) { ... }
+ * </pre>
+ * 
+ * @author dante
+ */
+class BuildCodeReader {
+	/**
+	 * 압축한 raw 데이타를 풀었을 때의 최대 크기. VERSION2 포맷의 길이 필드(24bit)로 쓸 수 있는 크기와 같다.
+	 */
+	static final int MAX_COMPRESSED_RAW = (1 << 24) - 1;
+	/**
+	 * 목표파일 해쉬코드의 최대 길이
+	 */
+	static final int MAX_DIGEST_LENGTH = 64;
+	
+	private final PackInput in;
+	private int maxCompressedRaw = MAX_COMPRESSED_RAW;
+	
+	private int version;
+	private boolean varint;
+	private int blockSize;
+	private long count = -1;
+	private long codes = 0;
+	
+	private int data;
+	private int rangeCount;
+	private int rawRemaining = 0;
+	private byte[] digest = null;
+	
+	private SourceFileAccess dictionarySource = null;
+	private Inflater inflater = null;
+	private byte[] inflated = null;
+	private int inflatedOffset;
+	
+	/**
+	 * @param in 바이너리 포맷이 담겨있는 입력스트림
+	 * @param fileOut 읽은 내용을 그대로 복사해둘 출력스트림. 필요없으면 null
+	 */
+	BuildCodeReader(InputStream in, OutputStream fileOut) {
+		this.in = new PackInput(in, fileOut);
+	}
+	
+	/**
+	 * @param in 바이너리 포맷이 담겨있는 채널
+	 * @param fileOut 읽은 내용을 그대로 복사해둘 채널. 필요없으면 null
+	 */
+	BuildCodeReader(ReadableByteChannel in, WritableByteChannel fileOut) {
+		this.in = new PackInput(in, fileOut);
+	}
+	
+	/**
+	 * 리스트 헤더를 읽는다. 
+	 */
+	void readHeader() throws Exception {
+		version = in.readByte();
+		varint = BuildCodeList.isVarint(version);
+		if (varint) {
+			blockSize = toInt(in.readNumber());
+			if (version == BuildCodeList.VERSION3) {
+				count = in.readNumber();
+				in.readNumber(); // length는 무시해도 됨.
+			}
+			return;
+		}
+		if (version != BuildCodeList.VERSION1 && version != BuildCodeList.STREAM_VERSION1
+				&& version != BuildCodeList.VERSION2 && version != BuildCodeList.STREAM_VERSION2) {
+			throw new RuntimeException("unknown buildcode version");
+		}
+		blockSize = in.read16bit();
+		if (version == BuildCodeList.VERSION1 || version == BuildCodeList.VERSION2) {
+			count = in.read32bit();
+			in.read32bit(); // length는 무시해도 됨.
+		}
+	}
+	
+	/**
+	 * 압축한 raw 데이타는 한번에 풀어두므로, 상대방이 보낸 길이만큼 배열을 만든다. 
+	 * 이보다 긴 압축 데이타는 배열을 만들기 전에 거부한다. 기본값은 {@link #MAX_COMPRESSED_RAW}
+	 */
+	void setMaxCompressedRaw(int maxCompressedRaw) {
+		this.maxCompressedRaw = Math.min(maxCompressedRaw, MAX_COMPRESSED_RAW);
+	}
+	
+	/**
+	 * 원본블럭을 사전으로 압축한 raw 데이타를 풀 때, 사전을 읽을 원본파일. 
+	 */
+	void setDictionarySource(SourceFileAccess src) {
+		this.dictionarySource = src;
+	}
+	
+	int getVersion() {
+		return version;
+	}
+	
+	int getBlockSize() {
+		return blockSize;
+	}
+	
+	/**
+	 * 목표파일의 해쉬코드와 압축한 raw 데이타를 담을 수 있는 포맷인지. 
+	 */
+	boolean supportsDigest() {
+		return version == BuildCodeList.VERSION2 || version == BuildCodeList.STREAM_VERSION2 || varint;
+	}
+	
+	/**
+	 * 목표파일 전체의 해쉬코드. 마지막 빌드코드까지 읽은 뒤에 유효하며, 없으면 null
+	 */
+	byte[] getDigest() {
+		return digest;
+	}
+	
+	/**
+	 * 다음 빌드코드를 읽는다. 이전 raw 코드의 데이타를 다 읽지 않았다면 건너뛴다. 
+	 * 목표파일의 해쉬코드를 담은 확장코드는 {@link #getDigest()}에 보관하고 다음 코드로 넘어간다. 
+	 * 압축한 raw 데이타를 담은 확장코드는 풀어서 raw 코드로 알려준다. 
+	 * @return 빌드코드의 헤더값. {@link RefBuildCode#HEADER}, {@link RangeBuildCode#HEADER}, 
+	 *         {@link RawBuildCode#HEADER}, 리스트의 끝이면 {@link BuildCode#END_HEADER}
+	 */
+	int next() throws Exception {
+		skipRaw();
+		if (count >= 0 && codes == count) {
+			end();
+			return BuildCode.END_HEADER;
+		}
+		if (varint) {
+			return nextTagged();
+		}
+		
+		int headerData = in.read24bit();
+		
+		int header = (headerData & 0x00C00000) >> 16;
+		data = headerData & 0x003FFFFF;
+		
+		if (header == RefBuildCode.HEADER) {
+			codes++;
+		} else if (header == RawBuildCode.HEADER) {
+			rawRemaining = data;
+			codes++;
+		} else if (header == RangeBuildCode.HEADER && version != BuildCodeList.VERSION1 && version != BuildCodeList.STREAM_VERSION1) {
+			rangeCount = in.read24bit();
+			codes++;
+		} else if (header == BuildCode.END_HEADER && (data >> 16) == BuildCode.DIGEST_OP && supportsDigest()) {
+			digest = new byte[checkDigestLength(data & 0xFFFF)];
+			in.readFully(digest, 0, digest.length);
+			codes++;
+			return next();
+		} else if (header == BuildCode.END_HEADER && (data >> 16) == BuildCode.COMPRESSED_OP && supportsDigest()) {
+			int method = (data >> 8) & 0xFF;
+			int dictCount = data & 0xFF;
+			int rawLength = in.read24bit();
+			int length = in.read24bit();
+			readCompressed(method, rawLength, length, dictCount, dictCount > 0 ? in.read32bit() : 0);
+			codes++;
+			return RawBuildCode.HEADER;
+		} else if (header == BuildCode.END_HEADER && data == 0 && count < 0) {
+			long trailerCount = in.read32bit();
+			in.read32bit(); // length는 무시해도 됨.
+			if (trailerCount != codes) throw new RuntimeException("buildcode count mismatch");
+			end();
+		} else {
+			throw new RuntimeException("unknown header = " + header);
+		}
+		return header;
+	}
+	
+	/**
+	 * {@link BuildCodeList#VERSION3} 포맷의 코드를 읽는다. 
+	 */
+	private int nextTagged() throws Exception {
+		int first = in.readByte();
+		int tag = first >>> 5;
+		long value = in.readNumber(first & 0x1F, BuildCode.TAG_LIMIT);
+		switch (tag) {
+		case BuildCode.TAG_REF:
+			data = toInt(value);
+			codes++;
+			return RefBuildCode.HEADER;
+		case BuildCode.TAG_RANGE:
+			data = toInt(value);
+			rangeCount = toInt(in.readNumber());
+			codes++;
+			return RangeBuildCode.HEADER;
+		case BuildCode.TAG_RAW:
+			data = rawRemaining = toInt(value);
+			codes++;
+			return RawBuildCode.HEADER;
+		case BuildCode.TAG_DIGEST:
+			digest = new byte[checkDigestLength(value)];
+			in.readFully(digest, 0, digest.length);
+			codes++;
+			return next();
+		case BuildCode.TAG_COMPRESSED:
+			int method = in.readByte();
+			int dictCount = toInt(in.readNumber());
+			int length = toInt(in.readNumber());
+			readCompressed(method, toInt(value), length, dictCount, dictCount > 0 ? in.readNumber() : 0);
+			codes++;
+			return RawBuildCode.HEADER;
+		case BuildCode.TAG_END:
+			if (value == 0 && count < 0) {
+				long trailerCount = in.readNumber();
+				in.readNumber(); // length는 무시해도 됨.
+				if (trailerCount != codes) throw new RuntimeException("buildcode count mismatch");
+				end();
+				return BuildCode.END_HEADER;
+			}
+		}
+		throw new RuntimeException("unknown tag = " + tag);
+	}
+	
+	private static int toInt(long value) {
+		if (value > Integer.MAX_VALUE) throw new RuntimeException("value out of range = " + value);
+		return (int)value;
+	}
+	
+	private static int checkDigestLength(long length) {
+		if (length > MAX_DIGEST_LENGTH) throw new RuntimeException("invalid digest length = " + length);
+		return (int)length;
+	}
+	
+	private void readCompressed(int method, int rawLength, int length, int dictCount, long dictStart) throws Exception {
+		// 압축한 크기가 원래 크기 이상이면 압축하지 않고 raw 코드로 보낸다.
+		if (rawLength > maxCompressedRaw || length > rawLength) {
+			throw new RuntimeException("compressed raw code out of range: rawLength = " + rawLength + ", length = " + length);
+		}
+		byte[] compressed = new byte[length + 1];
+		in.readFully(compressed, 0, length);
+		byte[] dictionary = dictCount > 0 ? RawCompressor.readDictionary(dictionarySource, blockSize, dictStart, dictCount) : null;
+		if (inflater == null) {
+			inflater = new Inflater(true);
+		}
+		inflated = RawCompressor.inflate(inflater, method, compressed, length, rawLength, dictionary);
+		inflatedOffset = 0;
+		data = rawRemaining = rawLength;
+	}
+	
+	private void end() {
+		if (inflater != null) {
+			inflater.end();
+			inflater = null;
+		}
+		inflated = null;
+	}
+	
+	/**
+	 * ref 코드의 블럭 인덱스, range 코드의 첫번째 블럭 인덱스
+	 */
+	int getIndex() {
+		return data;
+	}
+	
+	/**
+	 * range 코드의 블럭 갯수 
+	 */
+	int getCount() {
+		return rangeCount;
+	}
+	
+	/**
+	 * raw 코드의 데이타 길이 
+	 */
+	int getRawLength() {
+		return data;
+	}
+	
+	/**
+	 * 현재 raw 코드의 데이타를 읽는다. 
+	 * @return 읽은 바이트 수. 현재 raw 코드의 데이타를 다 읽었으면 0
+	 */
+	int readRaw(byte[] buf, int offset, int length) throws Exception {
+		if (rawRemaining == 0) return 0;
+		if (inflated != null) {
+			int n = Math.min(length, rawRemaining);
+			System.arraycopy(inflated, inflatedOffset, buf, offset, n);
+			inflatedOffset += n;
+			rawRemaining -= n;
+			if (rawRemaining == 0) inflated = null;
+			return n;
+		}
+		int r = in.read(buf, offset, Math.min(length, rawRemaining));
+		if (r < 0) throw new RuntimeException("couldn't read enough bytes for the raw code");
+		rawRemaining -= r;
+		return r;
+	}
+	
+	private void skipRaw() throws Exception {
+		if (inflated != null) {
+			inflated = null;
+			rawRemaining = 0;
+		} else if (rawRemaining > 0) {
+			byte[] buf = new byte[Math.min(rawRemaining, 8192)];
+			while (readRaw(buf, 0, buf.length) > 0);
+		}
+	}
+}
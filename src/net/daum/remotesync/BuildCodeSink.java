@@ -0,0 +1,38 @@
+package net.daum.remotesync;
+
+/**
+ * 빌드코드를 생성하는 즉시 전달받을 인터페이스. {@link BuildCodeList}에 모아두지 않고, 
+ * 코드가 결정될 때마다 바로 네트워크로 내보내는 등의 처리를 할 때 사용한다. 
+ * 호출이 끝날 때까지 생성작업은 기다리므로, 느린 출력에 맞춰 자연스럽게 속도가 조절된다. 
+ * 
+ * @author dante
+ * @see SourceCodeList#generateBuildCodes(java.io.InputStream, BuildCodeSink, long)
+ * @see BuildCodeWriter
+ */
+public interface BuildCodeSink {
+	/**
+	 * 원본의 특정블럭과 일치하는 영역.
+	 * @param index 일치하는 블럭의 인덱스
+	 */
+	void ref(int index) throws Exception;
+	
+	/**
+	 * 원본의 연속된 블럭들과 일치하는 영역. 
+	 * @param start 첫번째 블럭의 인덱스
+	 * @param count 블럭 갯수 (2 이상)
+	 */
+	void refRange(int start, int count) throws Exception;
+	
+	/**
+	 * 원본에서 찾을 수 없는 데이타 영역. 
+	 * 배열은 호출이 끝나면 재사용되므로, 보관하려면 복사해야 한다. 
+	 */
+	void raw(byte[] buf, int offset, int length) throws Exception;
+	
+	/**
+	 * 모든 빌드코드를 전달했음을 알린다. 
+	 * @param digest 지금까지 전달한 빌드코드로 만들어질 목표파일 전체의 해쉬코드 
+	 *               ({@link RemoteSync#DEFAULT_FILE_INTEGRITY_CHECK_METHOD}). 모르면 null.
+	 */
+	void finish(byte[] digest) throws Exception;
+}
@@ -0,0 +1,183 @@
+package net.daum.remotesync;
+
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * 전달받은 빌드코드를 곧바로 바이너리 포맷으로 출력하는 {@link BuildCodeSink}. 
+ * 코드 갯수와 길이를 미리 알 수 없으므로, 스트림 포맷({@link BuildCodeList#STREAM_VERSION2}, 
+ * {@link BuildCodeList#STREAM_VERSION1}, {@link BuildCodeList#STREAM_VERSION3})을 사용해 헤더에는 블럭크기만 쓰고, 
+ * 끝 코드 뒤에 갯수와 길이를 덧붙인다. 
+ * 
+ * <pre>
+ * [STREAM_VERSION][blockSize:16] [code]* [digest]? [END:24][count:32][length:32]
+ * </pre>
+ * 
+ * 포맷을 지정하지 않으면, 인덱스와 길이에 한계가 없도록 가변길이 정수를 쓰는 STREAM_VERSION3으로 출력한다. 
+ * 
+ * STREAM_VERSION2, STREAM_VERSION3에서는 {@link #finish(byte[])}로 받은 목표파일의 해쉬코드를 끝 코드 앞에 digest 코드로 쓴다. 
+ * 
+ * STREAM_VERSION1로 출력할 때는 range 코드를 표현할 수 없으므로, 블럭마다 ref 코드로 풀어서 쓴다. 
+ * 
+ * {@link RawCompression}을 주면 raw 데이타를 압축해서 쓴다. 원본블럭을 사전으로 쓰는 설정이면, 
+ * {@link BuildCodeGenerator}에서 일치하는 블럭의 내용을 함께 받는다. 
+ * 
+ * 출력결과는 {@link BuildCodeList#unpack}으로 읽을 수 있다. 
+ * 작은 코드들은 버퍼에 모아서 한번에 쓰므로, {@link #finish(byte[])}를 호출해야 모두 출력된다. 
+ * 
+ * @author dante
+ */
+public class BuildCodeWriter implements BuildCodeSink, ReferenceContentListener {
+	private final PackOutput out;
+	private final int version;
+	private final boolean varint;
+	private final RawCompressor compressor;
+	private long count = 0;
+	private long length = 0;
+	private long written;
+	
+	/**
+	 * {@link BuildCodeList#STREAM_VERSION3} 포맷으로 헤더를 출력한다. 
+	 * 코드 갯수와 길이를 미리 알 수 없으므로, 블럭 인덱스나 raw 길이가 STREAM_VERSION2의 한계를 넘어도 쓸 수 있는 포맷을 쓴다. 
+	 * @param netOut 빌드코드를 쓸 출력스트림
+	 * @param blockSize {@link SourceCodeList}의 블럭크기
+	 */
+	public BuildCodeWriter(OutputStream netOut, int blockSize) throws Exception {
+		this(netOut, blockSize, BuildCodeList.STREAM_VERSION3);
+	}
+	
+	/**
+	 * 헤더를 출력한다. 
+	 * @param netOut 빌드코드를 쓸 출력스트림
+	 * @param blockSize {@link SourceCodeList}의 블럭크기
+	 * @param version {@link BuildCodeList#STREAM_VERSION1}, {@link BuildCodeList#STREAM_VERSION2}, {@link BuildCodeList#STREAM_VERSION3}
+	 */
+	public BuildCodeWriter(OutputStream netOut, int blockSize, int version) throws Exception {
+		this(new PackOutput(netOut), blockSize, version, null);
+	}
+	
+	/**
+	 * {@link BuildCodeList#STREAM_VERSION3} 포맷으로, raw 데이타를 압축해서 출력한다. 
+	 * @param netOut 빌드코드를 쓸 출력스트림
+	 * @param blockSize {@link SourceCodeList}의 블럭크기
+	 * @param compression raw 데이타의 압축설정
+	 */
+	public BuildCodeWriter(OutputStream netOut, int blockSize, RawCompression compression) throws Exception {
+		this(netOut, blockSize, BuildCodeList.STREAM_VERSION3, compression);
+	}
+	
+	/**
+	 * 지정한 포맷으로, raw 데이타를 압축해서 출력한다. 
+	 * @param version {@link BuildCodeList#STREAM_VERSION2} 또는 {@link BuildCodeList#STREAM_VERSION3}
+	 * @param compression raw 데이타의 압축설정. null이면 압축하지 않는다.
+	 */
+	public BuildCodeWriter(OutputStream netOut, int blockSize, int version, RawCompression compression) throws Exception {
+		this(new PackOutput(netOut), blockSize, version, compression);
+	}
+	
+	/**
+	 * 채널로 출력한다. 
+	 * @param netOut 빌드코드를 쓸 채널
+	 * @param blockSize {@link SourceCodeList}의 블럭크기
+	 * @param version {@link BuildCodeList#STREAM_VERSION1}, {@link BuildCodeList#STREAM_VERSION2}, {@link BuildCodeList#STREAM_VERSION3}
+	 */
+	public BuildCodeWriter(WritableByteChannel netOut, int blockSize, int version) throws Exception {
+		this(new PackOutput(netOut), blockSize, version, null);
+	}
+	
+	/**
+	 * 채널로, raw 데이타를 압축해서 출력한다. 
+	 * @see #BuildCodeWriter(OutputStream, int, RawCompression)
+	 */
+	public BuildCodeWriter(WritableByteChannel netOut, int blockSize, RawCompression compression) throws Exception {
+		this(new PackOutput(netOut), blockSize, BuildCodeList.STREAM_VERSION3, compression);
+	}
+	
+	private BuildCodeWriter(PackOutput out, int blockSize, int version, RawCompression compression) throws Exception {
+		if (version != BuildCodeList.STREAM_VERSION1 && version != BuildCodeList.STREAM_VERSION2 && version != BuildCodeList.STREAM_VERSION3) {
+			throw new IllegalArgumentException("unknown stream version = " + version);
+		}
+		if (compression != null && version == BuildCodeList.STREAM_VERSION1) {
+			throw new IllegalArgumentException("STREAM_VERSION1 can't hold compressed raw codes");
+		}
+		this.out = out;
+		this.version = version;
+		this.varint = BuildCodeList.isVarint(version);
+		this.compressor = compression != null ? new RawCompressor(compression, blockSize) : null;
+		out.write8bit(version);
+		if (varint) {
+			written = 1 + out.writeNumber(blockSize);
+		} else {
+			if (blockSize > BuildCodeList.MAX_BLOCK_SIZE_V2) {
+				throw new IllegalArgumentException("block size " + blockSize + " needs STREAM_VERSION3");
+			}
+			out.write16bit(blockSize);
+			written = 1 + 2;
+		}
+	}
+
+	@Override
+	public void ref(int index) throws Exception {
+		add(RefBuildCode.pack(out, index, varint));
+	}
+
+	@Override
+	public void refRange(int start, int count) throws Exception {
+		if (version == BuildCodeList.STREAM_VERSION1) {
+			for (int i = 0; i < count; i++) {
+				ref(start + i);
+			}
+		} else {
+			add(RangeBuildCode.pack(out, start, count, varint));
+		}
+	}
+
+	@Override
+	public void raw(byte[] buf, int offset, int len) throws Exception {
+		if (compressor != null) {
+			add(compressor.pack(out, buf, offset, len, varint));
+		} else {
+			add(RawBuildCode.pack(out, buf, offset, len, varint));
+		}
+	}
+	
+	@Override
+	public void referenced(int index, RollingSignature sign) {
+		if (compressor != null) {
+			compressor.referenced(index, sign);
+		}
+	}
+	
+	private void add(long codeLength) {
+		length += codeLength;
+		written += codeLength;
+		count++;
+	}
+
+	@Override
+	public void finish(byte[] digest) throws Exception {
+		if (digest != null && version != BuildCodeList.STREAM_VERSION1) {
+			add(BuildCode.packDigest(out, digest, varint));
+		}
+		if (varint) {
+			written += BuildCode.packTag(out, BuildCode.TAG_END, 0) + out.writeNumber(count) + out.writeNumber(length);
+		} else {
+			out.write8bit(BuildCode.END_HEADER);
+			out.write16bit(0);
+			out.write32bit(count);
+			out.write32bit(length);
+			written += 3 + 4 + 4;
+		}
+		out.flush();
+		if (compressor != null) {
+			compressor.end();
+		}
+	}
+	
+	/**
+	 * 지금까지 출력한 바이트 수
+	 */
+	public long getWritten() {
+		return written;
+	}
+}
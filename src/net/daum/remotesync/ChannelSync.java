@@ -0,0 +1,237 @@
+package net.daum.remotesync;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.ByteChannel;
+
+/**
+ * 소켓채널 하나로 파일 하나를 올리는 참고 구현. 서버가 원본파일(machineA), 클라이언트가 최신본(machineB)을 갖고 있다.
+ * 어느 단계도 상대방의 데이타를 모두 받을 때까지 기다리지 않는다.
+ * <ol>
+ * <li>클라이언트가 경로를 보낸다.</li>
+ * <li>서버는 원본파일의 블럭 갯수를 헤더에 쓰고, {@link #CHUNK_BLOCKS}개씩 해쉬코드를 계산하는대로 보낸다.</li>
+ * <li>클라이언트는 받은 블럭부터 색인에 넣고, 마지막 조각을 받으면 바로 목표파일을 읽기 시작한다.
+ *     빌드코드는 {@link BuildCodeWriter}로 결정되는대로 보낸다.</li>
+ * <li>서버는 빌드코드를 받는대로 임시파일에 패치하고, 해쉬코드를 확인한 뒤 원본파일을 바꿔치고 결과를 보낸다.</li>
+ * </ol>
+ * 색인이 완성되기 전에 목표파일을 비교하면 아직 받지 않은 블럭을 놓치므로, 비교는 마지막 조각을 받은 뒤 시작한다.
+ * 대신 색인을 만드는 일은 수신과 겹치고, 빌드코드의 생성과 전송, 패치는 소켓 버퍼를 사이에 두고 함께 진행된다.
+ * <p>
+ * 블럭킹 모드의 채널을 쓰며, 접속과 쓰레드 관리는 호출하는 쪽에서 한다.
+ * </p>
+ *
+ * <pre>
+ * 요청:   [VERSION:8][pathLength][path:UTF-8]
+ * 서버:   [SourceCodeList]                  (해쉬코드를 조각마다 보낸다)
+ * 클라:   [빌드코드 스트림 포맷]
+ * 서버:   [status:8][written]               status는 {@link #STATUS_OK} 또는 {@link RemoteSyncException.Type}
+ * </pre>
+ *
+ * <pre>
+ * 서버:     ChannelSync.serve(serverSocketChannel.accept(), rootDir);
+ * 클라이언트: ChannelSync.upload(SocketChannel.open(address), "dir/file.bin", newFile);
+ * </pre>
+ *
+ * @author dante
+ */
+public class ChannelSync {
+	public static final int VERSION = 0x41;
+	public static final int STATUS_OK = 0;
+	/**
+	 * 서버에서 예외가 생겼다.
+	 */
+	public static final int STATUS_ERROR = 0xFF;
+	/**
+	 * 서버가 해쉬코드를 계산하는대로 보내는 최대 블럭 갯수. 클라이언트도 이만큼씩 받아서 색인에 넣는다.
+	 */
+	static final int CHUNK_BLOCKS = 4096;
+	/**
+	 * 해쉬코드를 계산할 조각을 읽는 버퍼의 크기. 블럭이 크면 조각의 블럭 갯수를 줄인다.
+	 */
+	static final int SIGN_BUFFER_SIZE = 256 * 1024;
+	/**
+	 * 서버가 받는 압축한 raw 코드를 풀었을 때의 최대 크기. 압축한 raw 코드는 한번에 풀어두므로 {@link #sessionMemory(int)}에 포함한다.
+	 * {@link #upload}는 raw 데이타를 압축하지 않는다.
+	 */
+	static final int MAX_COMPRESSED_RAW = 256 * 1024;
+
+	private ChannelSync() {
+	}
+
+	/**
+	 * 클라이언트. 목표파일을 서버의 path 경로로 올린다.
+	 * @return 보낸 빌드코드의 바이트 수
+	 * @throws RemoteSyncException 서버에서 만든 파일의 해쉬코드가 다르면 {@link RemoteSyncException#INTEGRITY}
+	 */
+	public static long upload(ByteChannel channel, String path, File target) throws Exception {
+		byte[] p = TreeManifest.checkPath(path).getBytes("UTF-8");
+		PackOutput po = new PackOutput(channel);
+		po.write8bit(VERSION);
+		po.writeNumber(p.length);
+		po.write(p, 0, p.length);
+		po.flush();
+
+		PackInput pi = new PackInput(channel, null);
+		SourceCodeList.Reader reader = new SourceCodeList.Reader(pi, RemoteSync.MAX_REMOTE_BLOCKS);
+		SourceCodeList sc = reader.getSourceCodeList();
+		ReferenceTable table = new ReferenceTable(sc, reader.getCount(), ReferenceTable.filterBitsFor(reader.getCount()));
+		while (!reader.isComplete()) {
+			reader.read(CHUNK_BLOCKS);
+			table.add(sc.size());
+		}
+
+		int blockSize = sc.getBlockSize();
+		BuildCodeWriter writer = new BuildCodeWriter(channel, blockSize,
+				BuildCodeList.streamVersionFor(blockSize, sc.size(), RemoteSync.DEFAULT_RAW_LIMIT));
+		// 비교는 맞지 않는 바이트마다 한 바이트씩 읽으므로 버퍼를 둔다.
+		InputStream in = new BufferedInputStream(new FileInputStream(target), 64 * 1024);
+		try {
+			new BuildCodeGenerator(table, sc, RemoteSync.DEFAULT_RAW_LIMIT, writer, true).generate(in);
+		} finally {
+			in.close();
+		}
+
+		int status = pi.readByte();
+		long written = pi.readNumber();
+		if (status == RemoteSyncException.Type.INTEGRITY) {
+			throw RemoteSyncException.INTEGRITY;
+		} else if (status != STATUS_OK) {
+			throw new RuntimeException("sync failed on the server: status = " + status + ", written = " + written);
+		}
+		return writer.getWritten();
+	}
+
+	/**
+	 * 서버. 요청 하나를 처리한다. 원본파일이 없으면 빈 파일로 보고 만든다.
+	 * @param root 원본파일들의 디렉토리. 요청한 경로는 이 디렉토리 밖을 가리킬 수 없다.
+	 * @return 만든 파일의 크기
+	 */
+	public static long serve(ByteChannel channel, File root) throws Exception {
+		return serve(channel, root, null);
+	}
+
+	/**
+	 * 서버. 원본파일의 블럭크기가 정해지면 세션이 쓸 메모리({@link #sessionMemory(int)})를 scheduler에 예약하고,
+	 * 해쉬코드는 조각마다 CPU 자리를 얻어서 계산한다. 서버 세션의 메모리는 파일 크기와 상관없이 블럭크기로만 정해진다.
+	 * @param scheduler 여러 세션이 함께 쓰는 메모리 예산과 CPU 자리. null이면 제한하지 않는다.
+	 */
+	public static long serve(ByteChannel channel, File root, SessionScheduler scheduler) throws Exception {
+		PackInput pi = new PackInput(channel, null);
+		if (pi.readByte() != VERSION) {
+			throw new RuntimeException("CHANNEL_SYNC Version mismatch");
+		}
+		long length = pi.readNumber();
+		if (length > 65535) {
+			throw new RuntimeException("invalid path length = " + length);
+		}
+		byte[] p = new byte[(int)length];
+		pi.readFully(p, 0, p.length);
+		File f = new File(root, TreeManifest.checkPath(new String(p, "UTF-8")));
+
+		PackOutput po = new PackOutput(channel);
+		long written;
+		try {
+			written = patch(channel, po, f, scheduler);
+		} catch (RemoteSyncException e) {
+			sendStatus(po, e.getType(), 0);
+			throw e;
+		} catch (Exception e) {
+			// 채널이 끊겼을 수 있으므로, 결과를 보내지 못해도 원래 예외를 던진다.
+			try {
+				sendStatus(po, STATUS_ERROR, 0);
+			} catch (Exception ignored) {
+			}
+			throw e;
+		}
+		sendStatus(po, STATUS_OK, written);
+		return written;
+	}
+
+	private static void sendStatus(PackOutput po, int status, long written) throws Exception {
+		po.write8bit(status);
+		po.writeNumber(written);
+		po.flush();
+	}
+
+	/**
+	 * 서버 세션 하나가 쓰는 메모리. 해쉬코드 조각과 그 조각을 읽는 버퍼, 채널 입출력 버퍼, 패치 버퍼, 
+	 * 압축한 raw 코드를 풀 때의 압축 데이타와 푼 데이타, 사전을 더한 값이다.
+	 */
+	static long sessionMemory(int blockSize) {
+		int chunkBlocks = chunkBlocks(blockSize);
+		return (long)chunkBlocks * (4 + SourceCodeList.MAX_STRONG_LENGTH) + (long)chunkBlocks * blockSize
+				+ PackInput.BUFFER_SIZE + PackOutput.BUFFER_SIZE + Math.max(blockSize, 65536)
+				+ (long)Math.max(1, BuildCodePatcher.CHUNK_SIZE / blockSize) * blockSize + blockSize
+				+ 2L * MAX_COMPRESSED_RAW + 1 + RawCompressor.MAX_DICTIONARY;
+	}
+
+	private static int chunkBlocks(int blockSize) {
+		return Math.max(1, Math.min(CHUNK_BLOCKS, SIGN_BUFFER_SIZE / blockSize));
+	}
+
+	private static long patch(ByteChannel channel, PackOutput po, File f, SessionScheduler scheduler) throws Exception {
+		File dir = f.getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new RuntimeException("couldn't create the directory: " + dir);
+		}
+		// 같은 파일을 여러 접속이 함께 올릴 수 있으므로, 임시파일은 접속마다 따로 만든다.
+		File tmp = File.createTempFile("." + f.getName() + ".", ".sync", dir);
+		// 다른 접속이 그 사이에 원본파일을 바꿔칠 수 있으므로, 해쉬코드 계산과 패치는 한번 연 파일로 한다.
+		RandomAccessFile raf = f.isFile() ? new RandomAccessFile(f, "r") : null;
+		SourceRandomFileAccess src = raf != null ? new SourceRandomFileAccess(raf) : null;
+		FileOutputStream out = null;
+		int reserved = 0;
+		boolean done = false;
+		try {
+			int blockSize = BlockSizePolicy.forSize(raf != null ? raf.length() : 0);
+			if (scheduler != null) {
+				reserved = scheduler.reserve(sessionMemory(blockSize));
+			}
+			sendSignatures(po, raf, blockSize, scheduler);
+			out = new FileOutputStream(tmp);
+			long written = BuildCodeList.patch(channel, src != null ? src : DirectorySync.EMPTY, out.getChannel(), blockSize, MAX_COMPRESSED_RAW);
+			done = true;
+			return written;
+		} finally {
+			if (out != null) out.close();
+			if (src != null) src.close();
+			if (reserved > 0) scheduler.release(reserved);
+			if (done) {
+				DirectorySync.replace(tmp, f);
+			} else {
+				tmp.delete();
+			}
+		}
+	}
+
+	/**
+	 * 블럭 갯수는 파일 크기로 미리 알 수 있으므로 헤더를 먼저 보내고, 해쉬코드는 조각마다 계산해서 보낸다.
+	 * 조각 하나 크기의 리스트를 다시 쓰므로, 파일 크기와 상관없이 메모리 사용량이 일정하다.
+	 */
+	private static void sendSignatures(PackOutput po, RandomAccessFile raf, int blockSize, SessionScheduler scheduler) throws Exception {
+		long blocks = raf != null ? raf.length() / blockSize : 0;
+		if (blocks > Integer.MAX_VALUE) throw new IllegalArgumentException("too many blocks: " + blocks);
+		int chunkBlocks = chunkBlocks(blockSize);
+		SourceCodeList chunk = SourceCodeList.allocate(blockSize, StrongHash.SHA1, (int)Math.min(chunkBlocks, blocks));
+		int h = chunk.getStrongLength();
+		chunk.packHeader(po, h, (int)blocks);
+		po.flush();
+		if (raf == null) return;
+		ParallelSignatureBuilder builder = new ParallelSignatureBuilder(raf.getChannel(), blockSize);
+		for (long start = 0; start < blocks; start += chunkBlocks) {
+			int count = (int)Math.min(chunkBlocks, blocks - start);
+			if (scheduler != null) scheduler.acquireCpu();
+			try {
+				builder.sign(chunk, 0, start, count);
+			} finally {
+				if (scheduler != null) scheduler.releaseCpu();
+			}
+			chunk.packBlocks(po, h, 0, count);
+			po.flush();
+		}
+	}
+}
@@ -0,0 +1,366 @@
+package net.daum.remotesync;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 디렉토리 전체를 동기화한다. 파일마다 따로 주고받지 않고, 목록 하나와 요청 스트림 하나, 응답 스트림 하나로 끝낸다.
+ * <ol>
+ * <li>최신본을 가진 쪽(machineB)이 {@link TreeManifest}를 보낸다.</li>
+ * <li>원본을 가진 쪽(machineA)은 크기와 수정시각이 같은 파일을 건너뛰고, 수정시각만 다른 파일은 해쉬코드를 비교한다.
+ *     바뀐 파일은 {@link SourceCodeList}를, 없거나 블럭 하나보다 작은 파일은 전체를 요청한다.</li>
+ * <li>machineB는 요청마다 빌드코드를 스트림 포맷으로 보낸다. 새 파일은 비교하지 않고 raw 코드로만 보낸다.</li>
+ * <li>machineA는 받는대로 임시파일에 만들어 바꿔치고, 수정시각을 목록의 것으로 맞춘다.</li>
+ * </ol>
+ * 작은 파일들은 한 스트림에 이어서 쓰므로 파일마다 왕복하지 않는다. 요청과 응답은 파일 단위로 읽고 쓰며,
+ * machineB는 요청을 읽는 동안 응답을 쓴다. 따라서 machineA는 요청을 쓰는 동안 응답을 읽어야 하며,
+ * 그렇지 않으면 양쪽의 소켓 버퍼가 차서 서로 기다리게 된다. {@link #sync(InputStream, OutputStream)}는
+ * {@link #requestChanges(OutputStream)}를 다른 쓰레드에서 실행하면서 {@link #applyChanges(InputStream)}를 실행한다.
+ * 큰 파일의 요청, 비교, 적용도 이렇게 겹쳐서 진행된다. machineB는 큰 파일({@link #PIPELINE_SIZE} 이상)의 빌드코드를 쓸 때마다 flush한다.
+ *
+ * <pre>
+ * machineB (최신본):
+ *   TreeManifest manifest = TreeManifest.scan(newDir);
+ *   manifest.pack(netOut);
+ *   DirectorySync.answerChanges(newDir, manifest, netIn, netOut);
+ *
+ * machineA (원본):
+ *   DirectorySync sync = new DirectorySync(dir);
+ *   sync.readManifest(netIn);
+ *   sync.sync(netIn, netOut);
+ * </pre>
+ *
+ * 요청 스트림: [type:8][파일 번호][SourceCodeList]? ... [REQUEST_END:8]<br>
+ * 응답 스트림: [파일 번호 + 1][빌드코드 스트림 포맷] ... [0]
+ *
+ * @author dante
+ * @see TreeManifest
+ */
+public class DirectorySync {
+	public static final int REQUEST_END = 0;
+	/**
+	 * 원본파일의 {@link SourceCodeList}를 보내고 빌드코드를 요청한다.
+	 */
+	public static final int REQUEST_SIGNATURES = 1;
+	/**
+	 * 원본파일이 없으므로 전체를 요청한다.
+	 */
+	public static final int REQUEST_FULL = 2;
+
+	/**
+	 * 이 크기 이상의 파일은 빌드코드를 보낸 뒤 바로 flush한다.
+	 */
+	static final long PIPELINE_SIZE = 1024 * 1024;
+
+	/**
+	 * 원본파일이 없을 때 쓰는 빈 원본. raw 코드만 있는 빌드코드를 패치할 때 쓴다.
+	 */
+	static final SourceFileAccess EMPTY = new SourceFileAccess() {
+		public void seek(long offset) {
+		}
+
+		public long read(byte[] buf) {
+			return 0;
+		}
+	};
+
+	private final File root;
+	private SignatureCache signatureCache;
+	private boolean delete = false;
+
+	private TreeManifest manifest;
+	private final List<Integer> requests = new ArrayList<Integer>();
+	private final List<File> extras = new ArrayList<File>();
+	private int unchanged = 0;
+	private int patched = 0;
+	private int deleted = 0;
+
+	/**
+	 * @param root 동기화할 디렉토리. 없으면 만든다.
+	 */
+	public DirectorySync(File root) {
+		this.root = root;
+	}
+
+	/**
+	 * 원본파일의 {@link SourceCodeList}를 캐쉬에서 읽는다. 주지 않으면 매번 계산한다.
+	 */
+	public void setSignatureCache(SignatureCache signatureCache) {
+		this.signatureCache = signatureCache;
+	}
+
+	/**
+	 * 목록에 없는 파일을 지울지. 기본값은 false
+	 */
+	public void setDelete(boolean delete) {
+		this.delete = delete;
+	}
+
+	/**
+	 * 목록을 받아서 디렉토리와 비교하고, 요청할 파일을 정한다. 내용이 같고 수정시각만 다른 파일은 수정시각만 맞춘다.
+	 */
+	public TreeManifest readManifest(InputStream netIn) throws Exception {
+		manifest = TreeManifest.unpack(netIn);
+		requests.clear();
+		extras.clear();
+		for (int i = 0; i < manifest.size(); i++) {
+			TreeManifest.Entry e = manifest.get(i);
+			File f = new File(root, e.getPath());
+			if (f.isFile() && f.length() == e.getSize()) {
+				if (f.lastModified() == e.getLastModified()) {
+					unchanged++;
+					continue;
+				}
+				if (e.hasDigest(TreeManifest.digest(f))) {
+					f.setLastModified(e.getLastModified());
+					unchanged++;
+					continue;
+				}
+			}
+			requests.add(i);
+		}
+		if (delete && root.isDirectory()) {
+			for (String path: TreeManifest.scanPaths(root)) {
+				if (manifest.get(path) == null) extras.add(new File(root, path));
+			}
+		}
+		return manifest;
+	}
+
+	/**
+	 * 요청을 보내면서 응답을 적용한다. 요청은 새 쓰레드에서 보낸다.
+	 * 요청을 보내다 실패하면 netOut을 닫아서 응답을 기다리지 않게 하고, 그 예외를 던진다.
+	 * 응답을 적용하다 실패하면 요청을 보내는 쓰레드는 netOut이 닫힐 때까지 남을 수 있으므로, 호출한 쪽에서 접속을 닫는다.
+	 * @return 만든 파일 갯수
+	 * @see #requestChanges(OutputStream)
+	 * @see #applyChanges(InputStream)
+	 */
+	public int sync(InputStream netIn, final OutputStream netOut) throws Exception {
+		final Exception[] failure = new Exception[1];
+		Thread requester = new Thread("DirectorySync-requests") {
+			public void run() {
+				try {
+					requestChanges(netOut);
+				} catch (Exception e) {
+					failure[0] = e;
+					try {
+						netOut.close();
+					} catch (Exception ignored) {
+					}
+				}
+			}
+		};
+		requester.setDaemon(true);
+		requester.start();
+		int count;
+		try {
+			count = applyChanges(netIn);
+		} catch (Exception e) {
+			requester.join(1000);
+			throw failure[0] != null ? failure[0] : e;
+		}
+		requester.join();
+		if (failure[0] != null) throw failure[0];
+		return count;
+	}
+
+	/**
+	 * 바뀐 파일들의 요청을 한 스트림으로 보낸다. 응답을 읽는 일과 함께 실행해야 한다. ({@link #sync(InputStream, OutputStream)})
+	 * @return 쓴 바이트 수
+	 */
+	public long requestChanges(OutputStream netOut) throws Exception {
+		PackOutput po = new PackOutput(netOut);
+		long written = 0;
+		// 파일마다 쓰레드풀을 만들고 닫지 않도록, 처음 해쉬코드를 계산할 때 만들어서 요청을 다 보낼 때까지 쓴다.
+		ExecutorService executor = null;
+		try {
+			for (int index: requests) {
+				TreeManifest.Entry e = manifest.get(index);
+				File f = new File(root, e.getPath());
+				int blockSize = BlockSizePolicy.forSize(f.length());
+				if (f.isFile() && f.length() >= blockSize) {
+					SourceCodeList sc;
+					if (signatureCache != null) {
+						sc = signatureCache.get(f, blockSize);
+					} else {
+						if (executor == null) executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+						sc = signatures(f, blockSize, executor);
+					}
+					po.write8bit(REQUEST_SIGNATURES);
+					written += 1 + po.writeNumber(index);
+					po.flush();
+					written += sc.pack(netOut);
+				} else {
+					po.write8bit(REQUEST_FULL);
+					written += 1 + po.writeNumber(index);
+				}
+			}
+		} finally {
+			if (executor != null) executor.shutdown();
+		}
+		po.write8bit(REQUEST_END);
+		po.flush();
+		netOut.flush();
+		return written + 1;
+	}
+
+	private static SourceCodeList signatures(File f, int blockSize, ExecutorService executor) throws Exception {
+		FileInputStream in = new FileInputStream(f);
+		try {
+			return SourceCodeList.create(in.getChannel(), blockSize, executor);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * 응답을 읽으며 파일을 만든다. 요청을 보내는 일과 함께 실행해야 한다. 파일마다 임시파일에 만들고 해쉬코드를 확인한 뒤 바꿔치므로,
+	 * 중간에 실패해도 원래 파일은 그대로 남는다. 마지막으로 목록에 없는 파일을 지운다. ({@link #setDelete(boolean)})
+	 * @return 만든 파일 갯수
+	 * @throws RemoteSyncException 만든 파일의 해쉬코드가 다르면 {@link RemoteSyncException#INTEGRITY}
+	 */
+	public int applyChanges(InputStream netIn) throws Exception {
+		PackInput pi = new PackInput(netIn, null);
+		int count = 0;
+		long n;
+		while ((n = pi.readNumber()) != 0) {
+			if (n > manifest.size()) {
+				throw new RuntimeException("invalid file index = " + (n - 1));
+			}
+			TreeManifest.Entry e = manifest.get((int)n - 1);
+			File f = new File(root, e.getPath());
+			File dir = f.getParentFile();
+			if (!dir.isDirectory() && !dir.mkdirs()) {
+				throw new RuntimeException("couldn't create the directory: " + dir);
+			}
+			File tmp = new File(dir, "." + f.getName() + ".sync");
+			SourceRandomFileAccess src = f.isFile() ? new SourceRandomFileAccess(f.getPath()) : null;
+			FileOutputStream out = new FileOutputStream(tmp);
+			boolean done = false;
+			try {
+				BuildCodeList.patch(netIn, src != null ? src : EMPTY, out);
+				done = true;
+			} finally {
+				out.close();
+				if (src != null) src.close();
+				if (!done) tmp.delete();
+			}
+			replace(tmp, f);
+			f.setLastModified(e.getLastModified());
+			count++;
+		}
+		patched += count;
+		for (File f: extras) {
+			if (f.delete()) deleted++;
+		}
+		extras.clear();
+		return count;
+	}
+
+	/**
+	 * 임시파일로 원래 파일을 바꿔치고, 실패하면 임시파일을 지운다.
+	 * 이름을 바꾸며 덮어쓸 수 있는 시스템에서는 원래 파일이 없는 순간이 없으므로, 다른 접속이 그 사이에 열어도 된다.
+	 */
+	static void replace(File tmp, File f) {
+		if (!tmp.renameTo(f) && (f.exists() && !f.delete() || !tmp.renameTo(f))) {
+			tmp.delete();
+			throw new RuntimeException("couldn't replace the file: " + f);
+		}
+	}
+
+	/**
+	 * machineB에서, 요청 스트림을 읽으며 파일마다 빌드코드를 보낸다.
+	 * @param manifest 먼저 보낸 목록. 요청은 이 목록의 번호로 온다.
+	 * @return 쓴 바이트 수
+	 */
+	public static long answerChanges(File root, TreeManifest manifest, InputStream netIn, OutputStream netOut) throws Exception {
+		PackInput pi = new PackInput(netIn, null);
+		PackOutput po = new PackOutput(netOut);
+		long written = 0;
+		int type;
+		while ((type = pi.readByte()) != REQUEST_END) {
+			long index = pi.readNumber();
+			if (index >= manifest.size()) {
+				throw new RuntimeException("invalid file index = " + index);
+			}
+			SourceCodeList sc = null;
+			if (type == REQUEST_SIGNATURES) {
+				sc = SourceCodeList.unpack(pi, RemoteSync.MAX_REMOTE_BLOCKS);
+			} else if (type != REQUEST_FULL) {
+				throw new RuntimeException("invalid directory sync request = " + type);
+			}
+			TreeManifest.Entry e = manifest.get((int)index);
+			written += po.writeNumber(index + 1);
+			po.flush();
+			// 비교는 맞지 않는 바이트마다 한 바이트씩 읽으므로 버퍼를 둔다.
+			InputStream in = new BufferedInputStream(new FileInputStream(new File(root, e.getPath())), 64 * 1024);
+			try {
+				written += sc != null ? sc.generateBuildCodes(in, netOut) : sendFull(in, netOut);
+			} finally {
+				in.close();
+			}
+			if (e.getSize() >= PIPELINE_SIZE) {
+				netOut.flush();
+			}
+		}
+		written += po.writeNumber(0);
+		po.flush();
+		netOut.flush();
+		return written;
+	}
+
+	/**
+	 * 비교할 원본이 없으므로 raw 코드로만 보낸다.
+	 */
+	private static long sendFull(InputStream in, OutputStream netOut) throws Exception {
+		BuildCodeWriter writer = new BuildCodeWriter(netOut, RemoteSync.DEFAULT_BLOCK_SIZE);
+		MessageDigest md = Signature.fileDigest();
+		byte[] buf = new byte[64 * 1024];
+		int r;
+		while ((r = PackUtil.readBlock(in, buf, buf.length)) > 0) {
+			md.update(buf, 0, r);
+			writer.raw(buf, 0, r);
+		}
+		writer.finish(md.digest());
+		return writer.getWritten();
+	}
+
+	public TreeManifest getManifest() {
+		return manifest;
+	}
+
+	/**
+	 * 요청할 파일 갯수
+	 */
+	public int getRequestCount() {
+		return requests.size();
+	}
+
+	/**
+	 * 크기와 수정시각, 또는 해쉬코드가 같아서 건너뛴 파일 갯수
+	 */
+	public int getUnchangedCount() {
+		return unchanged;
+	}
+
+	public int getPatchedCount() {
+		return patched;
+	}
+
+	public int getDeletedCount() {
+		return deleted;
+	}
+
+	public String toString() {
+		return "DirectorySync(" + root + ", unchanged = " + unchanged + ", patched = " + patched + ", deleted = " + deleted + ")";
+	}
+}
@@ -1,5 +1,10 @@
 package net.daum.remotesync;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+
 public class Examples {
 
 	
@@ -14,5 +19,43 @@ public class Examples {
 	public void unpackingSourceCodeListFromFile() throws Exception {
 		
 	}
+	
+	/**
+	 * SHA1 해쉬값을 잘라서 보내 SourceCodeList의 크기를 줄이고, 파일 전체의 해쉬코드로 결과를 확인한다. 
+	 * 해쉬코드가 다르면 전체 길이의 해쉬값으로 다시 동기화한다. 
+	 */
+	public void syncingWithTruncatedSignatures(String srcFile, String newFile, String patchedFile) throws Exception {
+		SourceCodeList sc = SourceCodeList.create(srcFile, RemoteSync.DEFAULT_BLOCK_SIZE);
+		int strongLength = sc.chooseStrongLength();
+		while (true) {
+			// machineA -> machineB
+			ByteArrayOutputStream sourceCodes = new ByteArrayOutputStream();
+			sc.pack(sourceCodes, strongLength);
+			
+			// machineB -> machineA
+			SourceCodeList received = SourceCodeList.unpack(new ByteArrayInputStream(sourceCodes.toByteArray()), null);
+			ByteArrayOutputStream buildCodes = new ByteArrayOutputStream();
+			FileInputStream newFileIn = new FileInputStream(newFile);
+			received.generateBuildCodes(newFileIn, buildCodes);
+			newFileIn.close();
+			newFileIn = new FileInputStream(newFile);
+			byte[] digest = Signature.fileSignature(newFileIn);
+			newFileIn.close();
+			
+			// machineA
+			SourceRandomFileAccess src = new SourceRandomFileAccess(srcFile);
+			FileOutputStream patchedOut = new FileOutputStream(patchedFile);
+			try {
+				BuildCodeList.patch(new ByteArrayInputStream(buildCodes.toByteArray()), src, patchedOut, digest);
+				return;
+			} catch (RemoteSyncException e) {
+				if (e.getType() != RemoteSyncException.Type.INTEGRITY || strongLength == SourceCodeList.MAX_STRONG_LENGTH) throw e;
+				strongLength = SourceCodeList.MAX_STRONG_LENGTH;
+			} finally {
+				patchedOut.close();
+				src.close();
+			}
+		}
+	}
 }
 
@@ -0,0 +1,97 @@
+package net.daum.remotesync;
+
+/**
+ * 여러 원본파일을 {@link BasisSet}의 블럭 번호 순서대로 이어붙인 것처럼 읽는다.
+ * 원본파일마다 블럭크기로 나누어 떨어지는 앞부분만 이어붙이며, 블럭크기보다 작은 나머지는 건너뛴다.
+ * 이어진 참조블럭이 두 원본파일에 걸쳐 있으면, 앞 파일의 끝에서 다음 파일의 처음으로 이어서 읽는다.
+ *
+ * @author dante
+ * @see BasisSet
+ */
+public class MultiSourceFileAccess implements SourceFileAccess {
+	private final SourceFileAccess[] files;
+	/*
+	 * starts[i]는 i번째 원본파일이 이어붙인 위치에서 시작하는 오프셋. 마지막은 전체 길이다.
+	 */
+	private final long[] starts;
+	private long position = 0;
+	/*
+	 * 마지막으로 seek한 원본파일. position이 그 파일의 읽던 위치와 같으면 다시 seek하지 않는다.
+	 */
+	private int current = -1;
+
+	/**
+	 * @param files 원본파일들. basis에 담긴 순서와 같아야 한다.
+	 */
+	public MultiSourceFileAccess(BasisSet basis, SourceFileAccess... files) {
+		if (files.length != basis.getBasisCount()) {
+			throw new IllegalArgumentException("basis count mismatch: " + files.length + " != " + basis.getBasisCount());
+		}
+		this.files = files.clone();
+		this.starts = new long[files.length + 1];
+		for (int i = 0; i < files.length; i++) {
+			starts[i + 1] = starts[i] + (long)basis.getBasis(i).size() * basis.getBlockSize();
+		}
+	}
+
+	@Override
+	public void seek(long offset) throws Exception {
+		position = offset;
+		current = -1;
+	}
+
+	@Override
+	public long read(byte[] buf) throws Exception {
+		int filled = 0;
+		while (filled < buf.length) {
+			int i = fileAt(position);
+			if (i < 0) break;
+			if (i != current) {
+				files[i].seek(position - starts[i]);
+				current = i;
+			}
+			int want = (int)Math.min(buf.length - filled, starts[i + 1] - position);
+			int r = readFully(files[i], buf, filled, want);
+			filled += r;
+			position += r;
+			if (r < want) break;
+		}
+		return filled;
+	}
+
+	/**
+	 * offset을 담은 원본파일. 전체 길이를 넘으면 -1
+	 */
+	private int fileAt(long offset) {
+		if (offset < 0 || offset >= starts[files.length]) return -1;
+		// starts[i] <= offset인 가장 큰 i. 블럭이 없는 원본파일은 시작위치가 다음 파일과 같으므로 건너뛴다.
+		int lo = 0;
+		int hi = files.length - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (starts[mid] <= offset) {
+				lo = mid;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * {@link SourceFileAccess#read(byte[])}는 배열 전체를 읽으므로, 배열 중간에 읽을 때는 따로 읽어서 복사한다.
+	 */
+	private static int readFully(SourceFileAccess file, byte[] buf, int offset, int length) throws Exception {
+		byte[] dest = offset == 0 && length == buf.length ? buf : new byte[length];
+		int read = 0;
+		while (read < length) {
+			byte[] part = read == 0 ? dest : new byte[length - read];
+			long r = file.read(part);
+			if (r <= 0) break;
+			if (part != dest) System.arraycopy(part, 0, dest, read, (int)r);
+			read += (int)r;
+		}
+		if (dest != buf) System.arraycopy(dest, 0, buf, offset, read);
+		return read;
+	}
+}
@@ -0,0 +1,185 @@
+package net.daum.remotesync;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * 바이너리 포맷을 ByteBuffer에 모아서 읽는 디코더. InputStream과 ReadableByteChannel 모두 읽을 수 있고, 
+ * 읽은 내용을 그대로 복사해둘 출력(fileOut)에도 읽은 단위 그대로 한번에 쓴다. 
+ * <p>
+ * 리스트 뒤에 다른 데이타가 이어질 수 있으므로, 기본적으로는 필요한 만큼만 읽는다. 
+ * 남은 길이를 알려주면({@link #setRemaining(long)}) 그 안에서 버퍼크기만큼씩 미리 읽는다. 
+ * 큰 raw 데이타는 버퍼를 거치지 않고 바로 대상 배열로 읽는다. 
+ * </p>
+ * 
+ * @author dante
+ */
+class PackInput {
+	static final int BUFFER_SIZE = 64 * 1024;
+	
+	private final InputStream in;
+	private final ReadableByteChannel channel;
+	private final OutputStream teeOut;
+	private final WritableByteChannel teeChannel;
+	private ByteBuffer buf = ByteBuffer.allocate(64);
+	private long remaining = -1;
+	
+	/**
+	 * @param fileOut 읽은 내용을 그대로 복사해둘 출력스트림. 필요없으면 null
+	 */
+	PackInput(InputStream in, OutputStream fileOut) {
+		this(in, null, fileOut, null);
+	}
+	
+	/**
+	 * @param fileOut 읽은 내용을 그대로 복사해둘 채널. 필요없으면 null
+	 */
+	PackInput(ReadableByteChannel channel, WritableByteChannel fileOut) {
+		this(null, channel, null, fileOut);
+	}
+	
+	private PackInput(InputStream in, ReadableByteChannel channel, OutputStream teeOut, WritableByteChannel teeChannel) {
+		this.in = in;
+		this.channel = channel;
+		this.teeOut = teeOut;
+		this.teeChannel = teeChannel;
+		buf.flip();
+	}
+	
+	/**
+	 * 아직 읽지 않은 부분 중 이 리스트에 속한 바이트 수. 이 범위 안에서는 {@link #BUFFER_SIZE}까지 버퍼를 늘려 미리 읽어둔다.
+	 */
+	void setRemaining(long remaining) {
+		this.remaining = Math.max(0, remaining - buf.remaining());
+		int size = (int)Math.min(BUFFER_SIZE, remaining);
+		if (size > buf.capacity()) {
+			ByteBuffer grown = ByteBuffer.allocate(size);
+			grown.put(buf);
+			grown.flip();
+			buf = grown;
+		}
+	}
+	
+	/**
+	 * 버퍼에 최소 n 바이트가 있게 한다. 
+	 */
+	private void require(int n) throws Exception {
+		if (buf.remaining() >= n) return;
+		buf.compact();
+		try {
+			int want = remaining >= 0 ? (int)Math.min(buf.remaining(), Math.max(remaining, n)) : n - buf.position();
+			int target = buf.position() + want;
+			while (buf.position() < target) {
+				int r = readSource(buf.array(), buf.arrayOffset() + buf.position(), target - buf.position());
+				if (r < 0) throw new RuntimeException("unexpected end of stream");
+				buf.position(buf.position() + r);
+				if (buf.position() >= n) break;
+			}
+		} finally {
+			buf.flip();
+		}
+	}
+	
+	private int readSource(byte[] dest, int offset, int length) throws Exception {
+		int r;
+		if (in != null) {
+			r = in.read(dest, offset, length);
+		} else {
+			r = channel.read(ByteBuffer.wrap(dest, offset, length));
+		}
+		if (r > 0) {
+			if (remaining >= 0) {
+				remaining = Math.max(0, remaining - r);
+			}
+			if (teeOut != null) {
+				teeOut.write(dest, offset, r);
+			} else if (teeChannel != null) {
+				ByteBuffer bb = ByteBuffer.wrap(dest, offset, r);
+				while (bb.hasRemaining()) {
+					teeChannel.write(bb);
+				}
+			}
+		}
+		return r;
+	}
+	
+	int readByte() throws Exception {
+		require(1);
+		return buf.get() & 0xFF;
+	}
+	
+	int read16bit() throws Exception {
+		require(2);
+		return buf.getShort() & 0xFFFF;
+	}
+	
+	int read24bit() throws Exception {
+		require(3);
+		return (buf.get() & 0xFF) << 16 | (buf.getShort() & 0xFFFF);
+	}
+	
+	long read32bit() throws Exception {
+		require(4);
+		return buf.getInt() & 0xFFFFFFFFL;
+	}
+	
+	int readInt() throws Exception {
+		require(4);
+		return buf.getInt();
+	}
+	
+	/**
+	 * {@link PackOutput#writeNumber(long)}로 쓴 가변길이 정수를 읽는다. 
+	 */
+	long readNumber() throws Exception {
+		return readNumber(readByte(), PackOutput.NUMBER_LIMIT);
+	}
+	
+	/**
+	 * 이미 읽은 첫 바이트의 하위비트(first)로부터, 나머지 가변길이 정수를 읽는다. 
+	 * @see PackOutput#writeNumber(int, long, int)
+	 */
+	long readNumber(int first, int limit) throws Exception {
+		if (first < limit) return first;
+		int n = first - limit + 1;
+		require(n);
+		long value = 0;
+		for (int i = 0; i < n; i++) {
+			value = value << 8 | (buf.get() & 0xFF);
+		}
+		return value;
+	}
+	
+	/**
+	 * 정확히 length 바이트를 읽는다. 중간에 스트림이 끝나면 예외.
+	 */
+	void readFully(byte[] dest, int offset, int length) throws Exception {
+		while (length > 0) {
+			int r = read(dest, offset, length);
+			if (r < 0) throw new RuntimeException("unexpected end of stream");
+			offset += r;
+			length -= r;
+		}
+	}
+	
+	/**
+	 * 최대 length 바이트를 읽는다. 버퍼에 남은 내용이 없으면 한번에 대상 배열로 읽는다. 
+	 * @return 읽은 바이트 수. 스트림이 끝났으면 -1
+	 */
+	int read(byte[] dest, int offset, int length) throws Exception {
+		if (length == 0) return 0;
+		if (!buf.hasRemaining()) {
+			if (remaining <= 0 || length >= buf.capacity() / 4) {
+				// 남은 길이를 모르거나 큰 데이타는 버퍼를 거치지 않는다. 
+				return readSource(dest, offset, remaining > 0 ? (int)Math.min(length, remaining) : length);
+			}
+			require(1);
+		}
+		int n = Math.min(length, buf.remaining());
+		buf.get(dest, offset, n);
+		return n;
+	}
+}
@@ -0,0 +1,153 @@
+package net.daum.remotesync;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * 바이너리 포맷을 ByteBuffer에 모아서 쓰는 인코더. 코드 헤더처럼 작은 값은 버퍼에 모았다가 한번에 쓰고, 
+ * 버퍼보다 큰 raw 데이타는 버퍼를 비운 뒤 바로 쓴다. OutputStream과 WritableByteChannel 모두 쓸 수 있다. 
+ * 마지막에 반드시 {@link #flush()}해야 한다. 
+ * 
+ * @author dante
+ */
+class PackOutput {
+	static final int BUFFER_SIZE = 64 * 1024;
+	
+	/**
+	 * 가변길이 정수에서, 첫 바이트만으로 표현하는 값의 상한. {@link #writeNumber(long)} 참조.
+	 */
+	static final int NUMBER_LIMIT = 0xF8;
+	
+	private final OutputStream out;
+	private final WritableByteChannel channel;
+	private final ByteBuffer buf;
+	
+	PackOutput(OutputStream out) {
+		this(out, BUFFER_SIZE);
+	}
+	
+	/**
+	 * @param expectedLength 출력할 전체 길이를 알면, 그보다 큰 버퍼는 만들지 않는다. 
+	 */
+	PackOutput(OutputStream out, long expectedLength) {
+		this.out = out;
+		this.channel = null;
+		this.buf = ByteBuffer.allocate(bufferSize(expectedLength));
+	}
+	
+	PackOutput(WritableByteChannel channel) {
+		this(channel, BUFFER_SIZE);
+	}
+	
+	PackOutput(WritableByteChannel channel, long expectedLength) {
+		this.out = null;
+		this.channel = channel;
+		this.buf = ByteBuffer.allocate(bufferSize(expectedLength));
+	}
+	
+	private static int bufferSize(long expectedLength) {
+		return (int)Math.max(16, Math.min(BUFFER_SIZE, expectedLength));
+	}
+	
+	void write8bit(int i) throws Exception {
+		if (buf.remaining() < 1) drain();
+		buf.put((byte)i);
+	}
+	
+	void write16bit(int i) throws Exception {
+		if (buf.remaining() < 2) drain();
+		buf.putShort((short)i);
+	}
+	
+	void write24bit(int i) throws Exception {
+		if (buf.remaining() < 3) drain();
+		buf.put((byte)(i >>> 16));
+		buf.putShort((short)i);
+	}
+	
+	void write32bit(long i) throws Exception {
+		if (buf.remaining() < 4) drain();
+		buf.putInt((int)i);
+	}
+	
+	/**
+	 * 가변길이 정수를 쓴다. {@link #NUMBER_LIMIT}보다 작으면 한 바이트, 아니면 
+	 * [NUMBER_LIMIT + n - 1][n 바이트, big endian]으로 쓴다. 길이가 첫 바이트에 있으므로, 읽을 때 두번이면 충분하다. 
+	 * @return 쓴 바이트 수
+	 */
+	int writeNumber(long value) throws Exception {
+		return writeNumber(0, value, NUMBER_LIMIT);
+	}
+	
+	/**
+	 * 첫 바이트의 상위비트에 다른 값(high)을 함께 담는 가변길이 정수를 쓴다. 
+	 * @param high 첫 바이트의 상위비트에 담을 값. 하위비트는 0이어야 한다.
+	 * @param limit 첫 바이트의 하위비트만으로 표현하는 값의 상한. 하위비트로 limit + 7까지 표현할 수 있어야 한다.
+	 * @return 쓴 바이트 수
+	 */
+	int writeNumber(int high, long value, int limit) throws Exception {
+		if (value >= 0 && value < limit) {
+			write8bit(high | (int)value);
+			return 1;
+		}
+		int n = numberBytes(value);
+		if (buf.remaining() < 1 + n) drain();
+		buf.put((byte)(high | (limit + n - 1)));
+		for (int i = n - 1; i >= 0; i--) {
+			buf.put((byte)(value >>> (8 * i)));
+		}
+		return 1 + n;
+	}
+	
+	/**
+	 * {@link #writeNumber(int, long, int)}로 쓸 때의 바이트 수
+	 */
+	static int numberLength(long value, int limit) {
+		return value >= 0 && value < limit ? 1 : 1 + numberBytes(value);
+	}
+	
+	private static int numberBytes(long value) {
+		return Math.max(1, (64 - Long.numberOfLeadingZeros(value) + 7) / 8);
+	}
+	
+	void write(byte[] src, int offset, int length) throws Exception {
+		if (length <= buf.remaining()) {
+			buf.put(src, offset, length);
+			return;
+		}
+		drain();
+		if (length < buf.capacity() / 2) {
+			buf.put(src, offset, length);
+		} else {
+			writeTarget(ByteBuffer.wrap(src, offset, length));
+		}
+	}
+	
+	/**
+	 * 모아둔 내용을 모두 쓰고, 출력스트림을 flush한다. 
+	 */
+	void flush() throws Exception {
+		drain();
+		if (out != null) {
+			out.flush();
+		}
+	}
+	
+	private void drain() throws Exception {
+		buf.flip();
+		writeTarget(buf);
+		buf.clear();
+	}
+	
+	private void writeTarget(ByteBuffer bb) throws Exception {
+		if (out != null) {
+			out.write(bb.array(), bb.arrayOffset() + bb.position(), bb.remaining());
+			bb.position(bb.limit());
+		} else {
+			while (bb.hasRemaining()) {
+				channel.write(bb);
+			}
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package net.daum.remotesync;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+final class PackUtil {
+	static final void write16bit(OutputStream out, int i) throws Exception {
+	    out.write((i >>> 8) & 0xFF);
+	    out.write(i & 0xFF);
+	}
+	
+	static final void write32bit(OutputStream out, long i) throws Exception {
+		out.write(((int)i >>> 24) & 0xFF);
+		out.write(((int)i >>> 16) & 0xFF);
+		out.write(((int)i >>> 8) & 0xFF);
+	    out.write((int)i & 0xFF);
+	}
+	
+	/**
+	 * 정확히 length 바이트를 읽는다. 중간에 스트림이 끝나면 예외.
+	 */
+	static final void readFully(InputStream in, byte[] buf, int length) throws Exception {
+		int read = 0;
+		while (read < length) {
+			int r = in.read(buf, read, length - read);
+			if (r < 0) throw new RuntimeException("unexpected end of stream");
+			read += r;
+		}
+	}
+	
+	/**
+	 * length 바이트를 채우거나 스트림이 끝날 때까지 읽는다. 
+	 * @return 읽은 바이트 수. length보다 작으면 스트림이 끝난 것.
+	 */
+	static final int readBlock(InputStream in, byte[] buf, int length) throws Exception {
+		int read = 0;
+		while (read < length) {
+			int r = in.read(buf, read, length - read);
+			if (r < 0) break;
+			read += r;
+		}
+		return read;
+	}
+	
+	/**
+	 * 빅엔디안 정수를 읽는다. 읽은 바이트는 fileOut에 그대로 복사한다. 중간에 스트림이 끝나면 예외.
+	 * 여러 코드를 이어서 읽을 때는 버퍼를 가진 {@link PackInput}을 쓴다.
+	 */
+	static final int read16bit(InputStream in, OutputStream fileOut) throws Exception {
+		return (int)readNumber(in, fileOut, 2);
+	}
+
+	static final int read24bit(InputStream in, OutputStream fileOut) throws Exception {
+		return (int)readNumber(in, fileOut, 3);
+	}
+
+	static final long read32bit(InputStream in, OutputStream fileOut) throws Exception {
+		return readNumber(in, fileOut, 4);
+	}
+
+	private static long readNumber(InputStream in, OutputStream fileOut, int length) throws Exception {
+		byte[] buf = new byte[4];
+		readFully(in, buf, length);
+		if (fileOut != null) {
+			fileOut.write(buf, 0, length);
+		}
+		long r = 0;
+		for (int i = 0; i < length; i++) {
+			r = (r << 8) | (buf[i] & 0xFF);
+		}
+		return r;
+	}
+}
@@ -0,0 +1,410 @@
+package net.daum.remotesync;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * 목표파일을 큰 구간으로 나누어 구간마다 다른 쓰레드에서 빌드코드를 만들고, 구간 경계를 이어붙인다.
+ * 색인({@link ReferenceTable})은 하나를 만들어 모든 쓰레드가 읽기만 하며, 통계만 쓰레드마다 따로 센다.
+ * <p>
+ * 순서대로 읽는 생성기는 어떤 위치에서 "그 앞까지 빌드코드가 정해졌고, 그 위치부터 블럭 하나를 찾아볼" 상태가 같으면
+ * 이후의 결과도 같다. 구간마다 그런 위치를 기록해두고, 경계에서는 앞 구간의 끝에서 블럭 하나 앞부터 다시 읽어나가다가
+ * 뒤 구간의 같은 상태 위치를 만나면 거기서부터 뒤 구간의 결과를 이어 쓴다. 경계에 걸친 블럭도 이때 찾는다.
+ * 이어붙인 코드는 순서대로 만든 것처럼 raw 데이타를 rawLimit 단위로 다시 나누고 연속된 참조를 합치므로,
+ * 결과는 {@link BuildCodeGenerator}로 순서대로 만든 것과 같다.
+ * </p>
+ * 구간의 결과는 이어붙일 때까지 메모리에 있으므로, 쓰레드 갯수의 두배만큼의 구간만 미리 처리한다.
+ * 목표파일 전체의 해쉬코드는 또 하나의 작업이 처음부터 순서대로 읽으며 계산한다.
+ * 결과가 sink 하나로 모이므로, sink가 {@link ReferenceContentListener}여도 참조블럭의 내용은 알려주지 않는다.
+ *
+ * @author dante
+ * @see SourceCodeList#generateBuildCodes(FileChannel, BuildCodeSink, long, ExecutorService)
+ */
+class ParallelBuildCodeGenerator {
+	/**
+	 * 작업 하나가 맡는 구간의 크기
+	 */
+	static final long SEGMENT_SIZE = 8 * 1024 * 1024;
+
+	private final SourceCodeList sourceCodeList;
+	private final ReferenceTable table;
+	private final FileChannel channel;
+	private final ExecutorService executor;
+	private final int blockSize;
+	private final long segmentSize;
+	private final long size;
+	private final int segmentCount;
+	private final int window;
+	private final List<Future<Segment>> segments = new ArrayList<Future<Segment>>();
+	private final PrefilterStats stats;
+
+	ParallelBuildCodeGenerator(SourceCodeList sourceCodeList, FileChannel channel, ExecutorService executor) throws IOException {
+		this(sourceCodeList, channel, executor, SEGMENT_SIZE);
+	}
+
+	/**
+	 * @param segmentSize 구간의 크기. 블럭크기의 4배보다 작으면 4배로 늘린다.
+	 */
+	ParallelBuildCodeGenerator(SourceCodeList sourceCodeList, FileChannel channel, ExecutorService executor, long segmentSize) throws IOException {
+		this.sourceCodeList = sourceCodeList;
+		this.table = new ReferenceTable(sourceCodeList);
+		this.channel = channel;
+		this.executor = executor;
+		this.blockSize = sourceCodeList.getBlockSize();
+		this.segmentSize = Math.max(segmentSize, 4L * blockSize);
+		this.size = channel.size();
+		long count = Math.max(1, (size + this.segmentSize - 1) / this.segmentSize);
+		if (count > Integer.MAX_VALUE) throw new IllegalArgumentException("too many segments: " + count);
+		this.segmentCount = (int)count;
+		this.window = Runtime.getRuntime().availableProcessors() * 2;
+		this.stats = new PrefilterStats(table.getStats().getFilterBits());
+	}
+
+	PrefilterStats getPrefilterStats() {
+		return stats;
+	}
+
+	/**
+	 * 빌드코드를 순서대로 sink에 넘기고, 마지막으로 목표파일의 해쉬코드와 함께 {@link BuildCodeSink#finish(byte[])}를 호출한다.
+	 * @return 목표파일의 크기
+	 */
+	long generate(BuildCodeSink sink, long rawLimit) throws Exception {
+		Future<byte[]> digest = executor.submit(new Callable<byte[]>() {
+			public byte[] call() throws Exception {
+				MessageDigest md = Signature.fileDigest();
+				InputStream in = new ChannelInputStream(channel, 0, size);
+				byte[] buf = new byte[ChannelInputStream.BUFFER_SIZE];
+				int r;
+				while ((r = in.read(buf, 0, buf.length)) > 0) {
+					md.update(buf, 0, r);
+				}
+				return md.digest();
+			}
+		});
+		OrderedSink out = new OrderedSink(sink, rawLimit);
+		try {
+			int i = 0;
+			long from = 0;
+			while (true) {
+				final Segment current = segment(i);
+				if (i == segmentCount - 1) {
+					current.emit(out, from, current.end);
+					break;
+				}
+				// 앞 구간은 경계에서 블럭 하나 앞까지만 쓰고, 거기서부터 경계를 넘어 다시 읽는다.
+				long restart = current.restartOffset();
+				current.emit(out, from, restart);
+				BuildCodeGenerator generator = new BuildCodeGenerator(new ReferenceTable(table), sourceCodeList, rawLimit, out, false);
+				long stopped = generator.scan(new ChannelInputStream(channel, restart, size), restart, new BuildCodeGenerator.StopCondition() {
+					public boolean shouldStop(long offset) throws Exception {
+						return offset >= current.end && segment((int)(offset / segmentSize)).isSynchronized(offset);
+					}
+				});
+				stats.add(generator.getPrefilterStats());
+				if (stopped < 0) break;
+				i = (int)(stopped / segmentSize);
+				from = stopped;
+				release(i);
+			}
+			release(segments.size());
+		} finally {
+			for (Future<Segment> f: segments) {
+				if (f != null) f.cancel(true);
+			}
+		}
+		out.finish(digest.get());
+		return size;
+	}
+
+	/**
+	 * j번째 구간의 결과. 그 뒤로 window개의 구간까지 미리 작업을 맡겨둔다.
+	 */
+	private Segment segment(int j) throws Exception {
+		while (segments.size() < segmentCount && segments.size() <= j + window) {
+			final int k = segments.size();
+			segments.add(executor.submit(new Callable<Segment>() {
+				public Segment call() throws Exception {
+					return scan(k);
+				}
+			}));
+		}
+		return segments.get(j).get();
+	}
+
+	/**
+	 * end번째 앞의 구간들은 더 쓰지 않으므로 메모리에서 내린다.
+	 */
+	private void release(int end) throws Exception {
+		for (int k = 0; k < end; k++) {
+			Future<Segment> f = segments.get(k);
+			if (f != null) {
+				stats.add(f.get().stats);
+				segments.set(k, null);
+			}
+		}
+	}
+
+	private Segment scan(int j) throws Exception {
+		long start = (long)j * segmentSize;
+		long end = Math.min(size, start + segmentSize);
+		Segment segment = new Segment(start, end);
+		BuildCodeGenerator generator = new BuildCodeGenerator(new ReferenceTable(table), sourceCodeList, RemoteSync.DEFAULT_RAW_LIMIT, segment, false);
+		generator.scan(new ChannelInputStream(channel, start, end));
+		segment.stats = generator.getPrefilterStats();
+		return segment;
+	}
+
+	/**
+	 * 한 구간만 따로 읽어서 만든 빌드코드. 코드마다 목표파일에서의 시작위치를 함께 기록한다.
+	 */
+	private class Segment implements BuildCodeSink {
+		final long start;
+		final long end;
+		PrefilterStats stats;
+
+		private int count = 0;
+		private long[] offsets = new long[16];
+		/*
+		 * 참조코드는 {첫 블럭, 블럭 갯수}, raw 코드는 {-1, 길이}. raw 데이타는 data[dataOffsets[k]]부터 있다.
+		 */
+		private int[] starts = new int[16];
+		private int[] lengths = new int[16];
+		private int[] dataOffsets = new int[16];
+		private byte[] data = new byte[1024];
+		private int dataSize = 0;
+		private long position;
+
+		Segment(long start, long end) {
+			this.start = start;
+			this.end = end;
+			this.position = start;
+		}
+
+		public void ref(int index) {
+			add(index, 1, 0);
+		}
+
+		public void refRange(int first, int blocks) {
+			add(first, blocks, 0);
+		}
+
+		public void raw(byte[] buf, int offset, int length) {
+			if (dataSize + length > data.length) {
+				data = Arrays.copyOf(data, Math.max(dataSize + length, data.length * 2));
+			}
+			System.arraycopy(buf, offset, data, dataSize, length);
+			add(-1, length, dataSize);
+			dataSize += length;
+		}
+
+		public void finish(byte[] digest) {
+		}
+
+		private void add(int first, int length, int dataOffset) {
+			if (count == offsets.length) {
+				offsets = Arrays.copyOf(offsets, count * 2);
+				starts = Arrays.copyOf(starts, count * 2);
+				lengths = Arrays.copyOf(lengths, count * 2);
+				dataOffsets = Arrays.copyOf(dataOffsets, count * 2);
+			}
+			offsets[count] = position;
+			starts[count] = first;
+			lengths[count] = length;
+			dataOffsets[count] = dataOffset;
+			position += codeLength(count);
+			count++;
+		}
+
+		private long codeLength(int k) {
+			return starts[k] < 0 ? lengths[k] : (long)lengths[k] * blockSize;
+		}
+
+		/**
+		 * offset을 포함하는 코드
+		 */
+		private int find(long offset) {
+			int k = Arrays.binarySearch(offsets, 0, count, offset);
+			return k >= 0 ? k : -k - 2;
+		}
+
+		/**
+		 * 이 구간을 읽을 때 offset 앞까지 빌드코드가 정해진 채로 offset부터 블럭 하나를 찾아봤는지.
+		 * raw 데이타 중이거나 참조블럭의 경계이면서, 블럭 하나가 구간 안에 있으면 그렇다.
+		 */
+		boolean isSynchronized(long offset) {
+			if (offset < start || offset + blockSize > end) return false;
+			int k = find(offset);
+			return k >= 0 && (starts[k] < 0 || (offset - offsets[k]) % blockSize == 0);
+		}
+
+		/**
+		 * 경계를 넘어 다시 읽기 시작할 위치. 구간 끝에서 블럭 하나 앞이 참조블럭 중간이면 그 블럭의 끝.
+		 */
+		long restartOffset() {
+			long offset = Math.max(start, end - blockSize);
+			int k = find(offset);
+			if (k < 0 || starts[k] < 0) return offset;
+			long inBlock = (offset - offsets[k]) % blockSize;
+			return inBlock == 0 ? offset : offset - inBlock + blockSize;
+		}
+
+		/**
+		 * from부터 to 앞까지의 코드를 내보낸다. 참조코드는 블럭 경계에서만 자른다.
+		 */
+		void emit(BuildCodeSink out, long from, long to) throws Exception {
+			for (int k = Math.max(0, find(from)); k < count && offsets[k] < to; k++) {
+				long codeStart = offsets[k];
+				long s = Math.max(codeStart, from);
+				long e = Math.min(codeStart + codeLength(k), to);
+				if (s >= e) continue;
+				if (starts[k] < 0) {
+					out.raw(data, (int)(dataOffsets[k] + s - codeStart), (int)(e - s));
+				} else {
+					int first = starts[k] + (int)((s - codeStart) / blockSize);
+					int blocks = (int)((e - s) / blockSize);
+					if (blocks == 1) {
+						out.ref(first);
+					} else {
+						out.refRange(first, blocks);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * 이어붙인 코드를 순서대로 만든 것과 같게 고쳐서 넘긴다. 이어지는 참조는 합치고, raw 데이타는 rawLimit 단위로 다시 나눈다.
+	 */
+	private static class OrderedSink implements BuildCodeSink {
+		private final BuildCodeSink sink;
+		private final long rawLimit;
+		private byte[] raw;
+		private int rawSize = 0;
+		private int rangeStart;
+		private int rangeCount = 0;
+
+		OrderedSink(BuildCodeSink sink, long rawLimit) {
+			this.sink = sink;
+			this.rawLimit = rawLimit;
+			this.raw = new byte[(int)Math.min(rawLimit, 65536)];
+		}
+
+		public void ref(int index) throws Exception {
+			refRange(index, 1);
+		}
+
+		public void refRange(int start, int count) throws Exception {
+			flushRaw();
+			while (count > 0) {
+				int n;
+				if (rangeCount > 0 && start == rangeStart + rangeCount && rangeCount < RangeBuildCode.MAX_COUNT) {
+					n = Math.min(count, RangeBuildCode.MAX_COUNT - rangeCount);
+					rangeCount += n;
+				} else {
+					flushRange();
+					n = Math.min(count, RangeBuildCode.MAX_COUNT);
+					rangeStart = start;
+					rangeCount = n;
+				}
+				start += n;
+				count -= n;
+			}
+		}
+
+		public void raw(byte[] buf, int offset, int length) throws Exception {
+			flushRange();
+			while (length > 0) {
+				if (rawSize >= rawLimit) {
+					flushRaw();
+				}
+				int n = (int)Math.min(length, rawLimit - rawSize);
+				if (rawSize + n > raw.length) {
+					raw = Arrays.copyOf(raw, (int)Math.min(rawLimit, Math.max(rawSize + n, (long)raw.length * 2)));
+				}
+				System.arraycopy(buf, offset, raw, rawSize, n);
+				rawSize += n;
+				offset += n;
+				length -= n;
+			}
+		}
+
+		public void finish(byte[] digest) throws Exception {
+			flushRange();
+			flushRaw();
+			sink.finish(digest);
+		}
+
+		private void flushRange() throws Exception {
+			if (rangeCount == 1) {
+				sink.ref(rangeStart);
+			} else if (rangeCount > 1) {
+				sink.refRange(rangeStart, rangeCount);
+			}
+			rangeCount = 0;
+		}
+
+		private void flushRaw() throws Exception {
+			if (rawSize > 0) {
+				sink.raw(raw, 0, rawSize);
+				rawSize = 0;
+			}
+		}
+	}
+
+	/**
+	 * 파일채널의 start부터 end 앞까지를 위치를 지정해 읽는다. 여러 쓰레드가 같은 채널을 함께 읽을 수 있다.
+	 */
+	static class ChannelInputStream extends InputStream {
+		static final int BUFFER_SIZE = 64 * 1024;
+
+		private final FileChannel channel;
+		private final long end;
+		private long position;
+		private final ByteBuffer buf;
+
+		ChannelInputStream(FileChannel channel, long start, long end) {
+			this.channel = channel;
+			this.position = start;
+			this.end = end;
+			this.buf = ByteBuffer.allocate((int)Math.max(1, Math.min(BUFFER_SIZE, end - start)));
+			buf.flip();
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (!fill()) return -1;
+			return buf.get() & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) return 0;
+			if (!fill()) return -1;
+			int n = Math.min(len, buf.remaining());
+			buf.get(b, off, n);
+			return n;
+		}
+
+		private boolean fill() throws IOException {
+			if (buf.hasRemaining()) return true;
+			if (position >= end) return false;
+			buf.clear();
+			buf.limit((int)Math.min(buf.capacity(), end - position));
+			while (buf.hasRemaining()) {
+				if (channel.read(buf, position + buf.position()) < 0) break;
+			}
+			buf.flip();
+			position += buf.limit();
+			return buf.hasRemaining();
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package net.daum.remotesync;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * 원본파일을 블럭단위로 정렬된 여러 조각으로 나누어, 각 조각의 {@link Signature}를 동시에 계산한다. 
+ * 고정크기 블럭들은 서로 독립적이므로, 각 블럭의 결과를 제자리에 써넣으면 순차적으로 만든 
+ * {@link SourceCodeList}와 같다. 
+ * 
+ * @author dante
+ * @see SourceCodeList#create(FileChannel, int, ExecutorService)
+ */
+class ParallelSignatureBuilder {
+	/**
+	 * 작업 하나가 맡는 조각의 최대크기. 
+	 */
+	static final int CHUNK_SIZE = 4 * 1024 * 1024;
+	
+	private final FileChannel channel;
+	private final int blockSize;
+	private final int blocksPerChunk;
+	
+	ParallelSignatureBuilder(FileChannel channel, int blockSize) {
+		this.channel = channel;
+		this.blockSize = blockSize;
+		this.blocksPerChunk = Math.max(1, CHUNK_SIZE / blockSize);
+	}
+	
+	/**
+	 * 파일의 블럭별 해쉬코드를 계산해 비어있는 sc에 채운다. 
+	 * 블럭 갯수를 미리 알 수 있으므로, 각 조각의 결과는 sc의 배열에 바로 써넣는다. 
+	 */
+	void build(final SourceCodeList sc, ExecutorService executor) throws Exception {
+		long blocks = channel.size() / blockSize;
+		if (blocks > Integer.MAX_VALUE) throw new IllegalArgumentException("too many blocks: " + blocks);
+		sc.ensureCapacity((int)blocks);
+		
+		List<Future<Object>> chunks = new ArrayList<Future<Object>>();
+		for (long first = 0; first < blocks; first += blocksPerChunk) {
+			final int start = (int)first;
+			final int count = (int)Math.min(blocksPerChunk, blocks - first);
+			chunks.add(executor.submit(new Callable<Object>() {
+				public Object call() throws Exception {
+					signChunk(sc, start, count);
+					return null;
+				}
+			}));
+		}
+		
+		try {
+			for (Future<Object> chunk: chunks) {
+				chunk.get();
+			}
+		} finally {
+			for (Future<Object> chunk: chunks) {
+				chunk.cancel(true);
+			}
+		}
+		sc.setSize((int)blocks);
+	}
+	
+	/**
+	 * start번째 블럭부터 count개의 해쉬코드만 다시 계산해 sc의 배열에 덮어쓴다. 
+	 * sc는 이미 그만큼의 크기로 늘려두어야 한다. 호출한 쓰레드에서 조각 단위로 차례로 계산한다. 
+	 */
+	void sign(SourceCodeList sc, int start, int count) throws Exception {
+		sign(sc, start, start, count);
+	}
+	
+	/**
+	 * 파일의 firstBlock번째 블럭부터 count개의 해쉬코드를 sc의 index번째부터 써넣는다. 
+	 * 큰 파일의 해쉬코드를 작은 리스트 하나로 조금씩 계산해 보낼 때 쓴다. 
+	 */
+	void sign(SourceCodeList sc, int index, long firstBlock, int count) throws Exception {
+		for (int done = 0; done < count; done += blocksPerChunk) {
+			signChunk(sc, index + done, firstBlock + done, Math.min(blocksPerChunk, count - done));
+		}
+	}
+	
+	private void signChunk(SourceCodeList sc, int firstBlock, int count) throws Exception {
+		signChunk(sc, firstBlock, firstBlock, count);
+	}
+	
+	private void signChunk(SourceCodeList sc, int firstIndex, long firstBlock, int count) throws Exception {
+		ByteBuffer buf = ByteBuffer.allocate(count * blockSize);
+		long position = firstBlock * blockSize;
+		while (buf.hasRemaining()) {
+			int r = channel.read(buf, position + buf.position());
+			if (r < 0) throw new RuntimeException("source file truncated while signing");
+		}
+		
+		StrongHash.Hasher hasher = sc.getStrongHash().newHasher();
+		byte[] data = buf.array();
+		int[] fasts = sc.fasts();
+		byte[] strongs = sc.strongs();
+		int strongLength = sc.getStrongLength();
+		for (int i = 0; i < count; i++) {
+			int offset = i * blockSize;
+			int index = firstIndex + i;
+			fasts[index] = Signature.fastSignature(data, offset, blockSize);
+			hasher.update(data, offset, blockSize);
+			hasher.digest(strongs, index * strongLength);
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package net.daum.remotesync;
+
+/**
+ * 빌드코드를 생성하는 동안 원본블럭을 찾아본 결과 통계. 롤링하는 위치마다 먼저 빠른 해쉬값의 비트맵(prefilter)을 
+ * 확인하고, 비트가 켜져있을 때만 색인을 찾아본다. 
+ * <ul>
+ * <li>rejected: 비트맵에서 바로 걸러진 위치. 대부분 여기에 해당해야 한다.</li>
+ * <li>falsePositives: 비트맵은 통과했지만 같은 빠른 해쉬값이 없던 위치. 많다면 비트맵을 키워야 한다.</li>
+ * <li>collisions: 빠른 해쉬값은 같았지만 정확한 해쉬값이 달랐던 위치.</li>
+ * <li>hits: 일치하는 원본블럭을 찾은 위치.</li>
+ * </ul>
+ * 
+ * @author dante
+ * @see BuildCodeList#getPrefilterStats()
+ */
+public class PrefilterStats {
+	private final int filterBits;
+	long lookups;
+	long rejected;
+	long falsePositives;
+	long collisions;
+	long hits;
+	
+	PrefilterStats(int filterBits) {
+		this.filterBits = filterBits;
+	}
+	
+	/**
+	 * 비트맵의 크기 (비트 수)
+	 */
+	public int getFilterBits() {
+		return filterBits;
+	}
+	
+	public long getLookups() {
+		return lookups;
+	}
+	
+	public long getRejected() {
+		return rejected;
+	}
+	
+	public long getFalsePositives() {
+		return falsePositives;
+	}
+	
+	public long getCollisions() {
+		return collisions;
+	}
+	
+	public long getHits() {
+		return hits;
+	}
+	
+	/**
+	 * 다른 쓰레드에서 센 통계를 더한다. 
+	 */
+	void add(PrefilterStats other) {
+		lookups += other.lookups;
+		rejected += other.rejected;
+		falsePositives += other.falsePositives;
+		collisions += other.collisions;
+		hits += other.hits;
+	}
+	
+	/**
+	 * 찾아본 위치 중 일치하는 블럭을 찾은 비율
+	 */
+	public double getHitRate() {
+		return lookups == 0 ? 0 : (double)hits / lookups;
+	}
+	
+	/**
+	 * 일치하는 블럭이 없는 위치 중 비트맵을 통과한 비율
+	 */
+	public double getFalsePositiveRate() {
+		long misses = rejected + falsePositives;
+		return misses == 0 ? 0 : (double)falsePositives / misses;
+	}
+	
+	public String toString() {
+		return "{filterBits: " + filterBits + ", lookups: " + lookups + ", rejected: " + rejected 
+				+ ", falsePositives: " + falsePositives + ", collisions: " + collisions + ", hits: " + hits + "}";
+	}
+}
@@ -0,0 +1,80 @@
+package net.daum.remotesync;
+
+import java.io.OutputStream;
+
+/**
+ * 소스파일의 연속된 참조블럭들을 가리키는 빌드코드. 
+ * 참조블럭이 이어지는 만큼을 하나의 코드로 표현하므로, 변경이 적은 큰 파일의 빌드코드 크기가 크게 줄어든다.
+ * @author dante
+ */
+class RangeBuildCode extends BuildCode {
+	public static final int HEADER = 0x40;
+	/**
+	 * VERSION2 포맷에서 하나의 코드로 표현할 수 있는 최대 블럭갯수 (24bit)
+	 */
+	public static final int MAX_COUNT = (1 << 24) - 1;
+
+	private int start;
+	private int count;
+
+	RangeBuildCode(int start, int count) {
+		this.start = start;
+		this.count = count;
+	}
+
+	public int getStart() {
+		return start;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public long length() {
+		return 6;
+	}
+
+	public String toString() {
+		return "{range:" + start + "+" + count + "}";
+	}
+
+	@Override
+	long pack(PackOutput out, boolean varint) throws Exception {
+		return pack(out, start, count, varint);
+	}
+	
+	@Override
+	boolean exceedsVersion2() {
+		return start > RefBuildCode.MAX_INDEX || count > MAX_COUNT;
+	}
+	
+	static long pack(PackOutput out, int start, int count, boolean varint) throws Exception {
+		if (varint) {
+			return packTag(out, TAG_RANGE, start) + out.writeNumber(count);
+		}
+		if (start > RefBuildCode.MAX_INDEX || count > MAX_COUNT) throw new RuntimeException("range " + start + "+" + count + " needs the VERSION3 format");
+		out.write8bit(HEADER | ((start >>> 16) & 0x3F));
+		out.write16bit(start & 0xFFFF);
+		out.write24bit(count);
+		return 6;
+	}
+	
+	@Override
+	void emit(BuildCodeSink sink) throws Exception {
+		sink.refRange(start, count);
+	}
+
+	@Override
+	public long patch(SourceFileAccess src, int blockSize, OutputStream out) throws Exception {
+		src.seek((long)start * blockSize);
+		byte buf[] = new byte[blockSize];
+		long written = 0;
+		for (int i = 0; i < count; i++) {
+			long r = src.read(buf);
+			assert r == blockSize: "referenced block must have the block-sized length";
+			out.write(buf);
+			written += r;
+		}
+		return written;
+	}
+}
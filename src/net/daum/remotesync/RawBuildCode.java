@@ -0,0 +1,75 @@
+package net.daum.remotesync;
+
+import java.io.OutputStream;
+
+/**
+ * 소스파일에서 찾을 수 없는 데이타를 표현하는 빌드코드.
+ * @author dante
+ */
+class RawBuildCode extends BuildCode {
+	public static final int HEADER = 0x00;
+	/**
+	 * VERSION2 포맷까지 표현할 수 있는 최대 데이타 길이 (22bit)
+	 */
+	public static final int MAX_LENGTH = (1 << 22) - 1;
+	
+	private final byte[] content;
+	
+	RawBuildCode(byte[] buf) {
+		this(buf, true);
+	}
+	
+	/**
+	 * @param copy false이면 복사하지 않고 배열을 그대로 보관한다. 
+	 */
+	RawBuildCode(byte[] buf, boolean copy) {
+		this.content = copy ? buf.clone() : buf;
+	}
+	
+	public byte[] getData() {
+		return content;
+	}
+	
+	public long length() {
+		return 3 + content.length;
+	}
+	
+	public String toString() {
+		return "{raw:" + new String(content) + "}";
+	}
+	
+	@Override
+	void emit(BuildCodeSink sink) throws Exception {
+		sink.raw(content, 0, content.length);
+	}
+	
+	@Override
+	long pack(PackOutput out, boolean varint) throws Exception {
+		return pack(out, content, 0, content.length, varint);
+	}
+	
+	@Override
+	boolean exceedsVersion2() {
+		return content.length > MAX_LENGTH;
+	}
+	
+	static long pack(PackOutput out, byte[] buf, int offset, int length, boolean varint) throws Exception {
+		if (varint) {
+			long written = packTag(out, TAG_RAW, length);
+			out.write(buf, offset, length);
+			return written + length;
+		}
+		if (length > MAX_LENGTH) throw new RuntimeException("raw length " + length + " needs the VERSION3 format");
+		out.write8bit(HEADER | ((length >>> 16) & 0x3F));
+		out.write16bit(length & 0xFFFF);
+		out.write(buf, offset, length);
+		return 3 + length;
+	}
+
+	@Override
+	public long patch(SourceFileAccess src, int blockSize, OutputStream out) throws Exception {
+		out.write(content);
+		return content.length;
+	}
+
+}
@@ -0,0 +1,52 @@
+package net.daum.remotesync;
+
+import java.util.zip.Deflater;
+
+/**
+ * raw 코드의 데이타를 압축해서 보낼 때의 설정. 압축한 데이타는 compressed 확장코드로 쓰므로,
+ * {@link BuildCodeList#VERSION2}, {@link BuildCodeList#STREAM_VERSION2} 포맷에서만 사용할 수 있다.
+ * 압축해도 크기가 충분히 줄지 않는 데이타는 raw 코드로 그대로 쓰고, 그런 데이타가 이어지면 한동안 압축을 시도하지 않는다.
+ *
+ * sourceDictionary를 켜면, raw 데이타 바로 앞에서 참조한 원본블럭들을 압축사전으로 사용한다.
+ * 받는 쪽은 같은 블럭을 원본파일에서 읽어 사전을 만들어야 하므로, 원본파일 없이는 풀 수 없다.
+ *
+ * <pre>
+ * sourceCodeList.generateBuildCodes(newFileIn, netOut, rawLimit, new RawCompression(Deflater.BEST_SPEED, true));
+ * </pre>
+ *
+ * @author dante
+ * @see BuildCodeWriter#BuildCodeWriter(java.io.OutputStream, int, RawCompression)
+ */
+public class RawCompression {
+	/**
+	 * 빠른 압축, 사전 없음
+	 */
+	public static final RawCompression FAST = new RawCompression(Deflater.BEST_SPEED, false);
+
+	private final int level;
+	private final boolean sourceDictionary;
+
+	/**
+	 * @param level Deflater 압축레벨. {@link Deflater#BEST_SPEED}(1) ~ {@link Deflater#BEST_COMPRESSION}(9)
+	 * @param sourceDictionary 앞서 참조한 원본블럭을 압축사전으로 쓸지
+	 */
+	public RawCompression(int level, boolean sourceDictionary) {
+		if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+			throw new IllegalArgumentException("compression level must be 1 ~ 9: " + level);
+		}
+		this.level = level;
+		this.sourceDictionary = sourceDictionary;
+	}
+
+	public int getLevel() {
+		return level;
+	}
+
+	public boolean isSourceDictionary() {
+		return sourceDictionary;
+	}
+
+	public String toString() {
+		return "deflate:" + level + (sourceDictionary ? "+dictionary" : "");
+	}
+}
@@ -0,0 +1,226 @@
+package net.daum.remotesync;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * raw 코드의 데이타를 압축해서 compressed 확장코드로 출력한다. 데이타마다 독립된 deflate 스트림(헤더 없음)으로 압축하며,
+ * 압축결과가 원래 크기의 15/16 이상이면 raw 코드로 그대로 쓴다.
+ * 압축에 실패할 때마다 이후 1, 2, 4, ... {@link #MAX_SKIP}개의 데이타는 압축을 시도하지 않고, 성공하면 다시 매번 시도한다.
+ *
+ * 사전을 쓰는 경우, {@link #referenced(int, RollingSignature)}로 참조블럭의 내용을 받아서 마지막으로 이어진 참조블럭들을
+ * 최대 {@link #MAX_DICTIONARY} 바이트까지 보관해두고, raw 데이타를 압축할 때 사전으로 사용한다.
+ * 풀 때는 같은 블럭들을 원본파일에서 읽어서 사전을 만든다. {@link #readDictionary} 참조.
+ *
+ * Deflater는 네이티브 메모리를 사용하므로, 다 쓰고 나면 {@link #end()}를 호출해야 한다.
+ *
+ * @author dante
+ */
+class RawCompressor implements ReferenceContentListener {
+	static final int METHOD_DEFLATE = 1;
+
+	/**
+	 * 압축을 시도하는 최소 데이타 크기
+	 */
+	static final int MIN_LENGTH = 64;
+
+	/**
+	 * 사전의 최대 크기. deflate의 윈도우 크기와 같다.
+	 */
+	static final int MAX_DICTIONARY = 32 * 1024;
+
+	/**
+	 * 압축에 실패했을 때 건너뛰는 최대 데이타 갯수
+	 */
+	static final int MAX_SKIP = 64;
+
+	private final Deflater deflater;
+	private final int slotSize;
+	private byte[] compressed = new byte[0];
+
+	private final byte[][] slots;
+	private int dictStart;
+	private int dictCount = 0;
+	private byte[] dictionary;
+
+	private int failures = 0;
+	private int skip = 0;
+
+	RawCompressor(RawCompression compression, int blockSize) {
+		this.deflater = new Deflater(compression.getLevel(), true);
+		this.slotSize = Math.min(blockSize, MAX_DICTIONARY);
+		this.slots = compression.isSourceDictionary() ? new byte[maxDictionaryBlocks(blockSize)][] : null;
+	}
+
+	/**
+	 * 사전으로 쓸 수 있는 연속된 블럭의 최대 갯수
+	 */
+	static int maxDictionaryBlocks(int blockSize) {
+		return Math.min(255, Math.max(1, MAX_DICTIONARY / blockSize));
+	}
+
+	/**
+	 * 일치하는 블럭의 내용을 보관한다. 앞서 보관한 블럭과 이어지지 않으면 처음부터 다시 모은다.
+	 * 블럭이 {@link #MAX_DICTIONARY}보다 크면 블럭의 끝부분만 보관한다.
+	 */
+	public void referenced(int index, RollingSignature sign) {
+		if (slots == null) return;
+		if (dictCount == 0 || index != dictStart + dictCount) {
+			dictStart = index;
+			dictCount = 0;
+		} else if (dictCount == slots.length) {
+			dictStart++;
+			dictCount--;
+		}
+		int slot = (dictStart + dictCount) % slots.length;
+		if (slots[slot] == null) {
+			slots[slot] = new byte[slotSize];
+		}
+		sign.getTail(slots[slot], slotSize);
+		dictCount++;
+	}
+
+	/**
+	 * 데이타를 압축할 수 있으면 compressed 확장코드로, 아니면 raw 코드로 출력한다.
+	 * <pre>
+	 * [END_HEADER|COMPRESSED_OP:8][method:8][dictCount:8] [rawLength:24][compressedLength:24] [dictStart:32]? [data]
+	 * VERSION3: [TAG_COMPRESSED|rawLength][method:8][dictCount][compressedLength][dictStart]? [data]
+	 * </pre>
+	 * dictStart는 dictCount가 0보다 클 때만 쓴다.
+	 * @param varint {@link BuildCodeList#VERSION3} 포맷으로 쓸지
+	 * @return 출력한 바이트 수
+	 */
+	long pack(PackOutput out, byte[] buf, int offset, int length, boolean varint) throws Exception {
+		int n = varint || length <= RawBuildCode.MAX_LENGTH ? compress(buf, offset, length) : -1;
+		if (n < 0) {
+			return RawBuildCode.pack(out, buf, offset, length, varint);
+		}
+		if (varint) {
+			long written = BuildCode.packTag(out, BuildCode.TAG_COMPRESSED, length);
+			out.write8bit(METHOD_DEFLATE);
+			written += 1 + out.writeNumber(dictCount) + out.writeNumber(n);
+			if (dictCount > 0) {
+				written += out.writeNumber(dictStart);
+			}
+			out.write(compressed, 0, n);
+			return written + n;
+		}
+		out.write8bit(BuildCode.END_HEADER | BuildCode.COMPRESSED_OP);
+		out.write8bit(METHOD_DEFLATE);
+		out.write8bit(dictCount);
+		out.write24bit(length);
+		out.write24bit(n);
+		if (dictCount > 0) {
+			out.write32bit(dictStart);
+		}
+		out.write(compressed, 0, n);
+		return 3 + 6 + (dictCount > 0 ? 4 : 0) + n;
+	}
+
+	/**
+	 * @return 압축한 크기. 압축하지 않았으면 -1
+	 */
+	private int compress(byte[] buf, int offset, int length) {
+		if (length < MIN_LENGTH) return -1;
+		if (skip > 0) {
+			skip--;
+			return -1;
+		}
+		// raw 코드보다 확장코드 헤더가 6~10바이트 더 크다.
+		int limit = length - length / 16 - 6 - (dictCount > 0 ? 4 : 0);
+		if (compressed.length < limit) {
+			compressed = new byte[Math.max(limit, compressed.length * 2)];
+		}
+		deflater.reset();
+		if (dictCount > 0) {
+			deflater.setDictionary(dictionary(), 0, dictionary.length);
+		}
+		deflater.setInput(buf, offset, length);
+		deflater.finish();
+		int n = 0;
+		while (!deflater.finished() && n < limit) {
+			n += deflater.deflate(compressed, n, limit - n);
+		}
+		if (deflater.finished() && n < limit) {
+			failures = 0;
+			return n;
+		}
+		skip = Math.min(1 << Math.min(failures, 6), MAX_SKIP);
+		failures++;
+		return -1;
+	}
+
+	/**
+	 * 보관한 블럭들을 순서대로 이어붙인 뒤, 마지막 {@link #MAX_DICTIONARY} 바이트만 남긴다.
+	 */
+	private byte[] dictionary() {
+		int total = dictCount * slotSize;
+		int skipped = Math.max(0, total - MAX_DICTIONARY);
+		if (dictionary == null || dictionary.length != total - skipped) {
+			dictionary = new byte[total - skipped];
+		}
+		int pos = -skipped;
+		for (int i = 0; i < dictCount; i++) {
+			byte[] block = slots[(dictStart + i) % slots.length];
+			int from = Math.max(0, -pos);
+			if (from < slotSize) {
+				System.arraycopy(block, from, dictionary, pos + from, slotSize - from);
+			}
+			pos += slotSize;
+		}
+		return dictionary;
+	}
+
+	void end() {
+		deflater.end();
+	}
+
+	/**
+	 * 원본파일에서 사전으로 쓸 블럭들을 읽는다. 압축할 때와 마찬가지로 마지막 {@link #MAX_DICTIONARY} 바이트만 돌려준다.
+	 */
+	static byte[] readDictionary(SourceFileAccess src, int blockSize, long dictStart, int dictCount) throws Exception {
+		if (src == null) {
+			throw new RuntimeException("source file is required to decompress the raw code");
+		}
+		long end = (dictStart + dictCount) * blockSize;
+		byte[] dictionary = new byte[(int)Math.min((long)dictCount * blockSize, MAX_DICTIONARY)];
+		src.seek(end - dictionary.length);
+		if (src.read(dictionary) != dictionary.length) {
+			throw new RuntimeException("couldn't read the dictionary blocks");
+		}
+		return dictionary;
+	}
+
+	/**
+	 * compressed 확장코드의 데이타를 푼다.
+	 * @param inflater 헤더 없는 deflate용 (nowrap)
+	 * @param data 압축된 데이타. nowrap Inflater를 위해 끝에 한 바이트 여유가 있어야 한다.
+	 * @param dictionary 압축할 때 쓴 사전. 없으면 null
+	 */
+	static byte[] inflate(Inflater inflater, int method, byte[] data, int length, int rawLength, byte[] dictionary) throws Exception {
+		if (method != METHOD_DEFLATE) {
+			throw new RuntimeException("unknown compression method = " + method);
+		}
+		inflater.reset();
+		if (dictionary != null) {
+			inflater.setDictionary(dictionary);
+		}
+		inflater.setInput(data, 0, length + 1);
+		byte[] raw = new byte[rawLength];
+		int n = 0;
+		try {
+			while (n < rawLength && !inflater.finished()) {
+				int r = inflater.inflate(raw, n, rawLength - n);
+				if (r == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+				n += r;
+			}
+		} catch (DataFormatException e) {
+			throw new RuntimeException("broken compressed raw code", e);
+		}
+		if (n != rawLength) {
+			throw new RuntimeException("broken compressed raw code");
+		}
+		return raw;
+	}
+}
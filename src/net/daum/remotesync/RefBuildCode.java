@@ -0,0 +1,77 @@
+package net.daum.remotesync;
+
+import java.io.OutputStream;
+
+/**
+ * 소스파일의 참조블럭을 가리키는 빌드코드. 
+ * @author dante
+ *
+ */
+class RefBuildCode extends BuildCode {
+	public static final int HEADER = 0x80;
+	/**
+	 * VERSION2 포맷까지 표현할 수 있는 최대 블럭 인덱스 (22bit)
+	 */
+	public static final int MAX_INDEX = (1 << 22) - 1;
+
+	private int index;
+
+	RefBuildCode(int index) {
+		this.index = index;
+	}
+
+	public int getIndex() {
+		return index;
+	}
+
+	public long length() {
+		return 3;
+	}
+
+	public String toString() {
+		return "{ref:" + index + "}";
+	}
+	
+	@Override
+	void emit(BuildCodeSink sink) throws Exception {
+		sink.ref(index);
+	}
+
+	@Override
+	long pack(PackOutput out, boolean varint) throws Exception {
+		return pack(out, index, varint);
+	}
+	
+	@Override
+	boolean exceedsVersion2() {
+		return index > MAX_INDEX;
+	}
+	
+	static long pack(PackOutput out, int index, boolean varint) throws Exception {
+		if (varint) {
+			return packTag(out, TAG_REF, index);
+		}
+		if (index > MAX_INDEX) throw new RuntimeException("block index " + index + " needs the VERSION3 format");
+		out.write8bit(HEADER | ((index >>> 16) & 0x3F));
+		out.write16bit(index & 0xFFFF);
+		return 3;
+	}
+	
+	@Override
+	public long patch(SourceFileAccess src, int blockSize, OutputStream out) throws Exception {
+		src.seek((long)index * blockSize);
+		byte buf[] = new byte[blockSize];
+		long r = src.read(buf);
+		assert r == blockSize: "referenced block must have the block-sized length";
+		out.write(buf);
+		if (debugOut != null) {
+			Signature s = new Signature(buf);
+			debugOut.write(("" + getIndex()).getBytes());
+			debugOut.write(": ".getBytes());
+			debugOut.write(s.getStrongBase64().getBytes());
+			debugOut.write("\n".getBytes());
+		}
+		return r;
+	}
+
+}
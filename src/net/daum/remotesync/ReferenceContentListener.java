@@ -0,0 +1,15 @@
+package net.daum.remotesync;
+
+/**
+ * 일치하는 원본블럭의 내용이 필요한 {@link BuildCodeSink}가 함께 구현한다.
+ * {@link BuildCodeGenerator}는 블럭이 일치할 때마다, 해당 참조코드를 sink에 전달하기 전에 호출한다.
+ *
+ * @author dante
+ */
+interface ReferenceContentListener {
+	/**
+	 * @param index 일치하는 원본블럭의 인덱스
+	 * @param sign 일치하는 블럭내용을 담은 RollingSignature. 호출이 끝난 뒤에는 내용이 바뀐다.
+	 */
+	void referenced(int index, RollingSignature sign);
+}
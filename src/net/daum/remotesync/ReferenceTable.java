@@ -0,0 +1,192 @@
+package net.daum.remotesync;
+
+import java.util.Arrays;
+
+/**
+ * {@link SourceCodeList}의 블럭별 해쉬코드를 찾아보기 위한 색인. 
+ * 32비트 빠른 해쉬값을 키로 하는 open-addressing 테이블로, 블럭별 해쉬값은 {@link SourceCodeList}의 
+ * int[]와 byte[] 배열을 그대로 사용한다. lookup할 때 boxing이나 String 변환 등의 객체 생성이 없다. 
+ * <p>
+ * 롤링하는 위치 대부분은 일치하는 블럭이 없으므로, 테이블 앞에 빠른 해쉬값의 비트맵을 두어 
+ * 캐쉬에 들어가는 크기(2^20 ~ 2^24 비트)의 비트 하나만 확인하고 걸러낸다. 
+ * </p>
+ */
+class ReferenceTable {
+	private static final int EMPTY = -1;
+	static final int MIN_FILTER_BITS = 1 << 20;
+	static final int MAX_FILTER_BITS = 1 << 24;
+
+	private int count;
+	private final int strongLength;
+	private final int[] fasts;
+	private final byte[] strongs;
+	private final int[] slots;
+	private final int mask;
+	
+	private final long[] filter;
+	private final int filterShift;
+	private final PrefilterStats stats;
+	
+	/**
+	 * 같은 색인을 공유하고 통계만 따로 센다. 색인은 읽기만 하므로, 쓰레드마다 하나씩 만들어 함께 쓸 수 있다. 
+	 */
+	ReferenceTable(ReferenceTable table) {
+		count = table.count;
+		strongLength = table.strongLength;
+		fasts = table.fasts;
+		strongs = table.strongs;
+		slots = table.slots;
+		mask = table.mask;
+		filter = table.filter;
+		filterShift = table.filterShift;
+		stats = new PrefilterStats(table.stats.getFilterBits());
+	}
+	
+	ReferenceTable(SourceCodeList sc) {
+		this(sc, filterBitsFor(sc.size()));
+	}
+	
+	/**
+	 * @param filterBits 비트맵의 크기. 2의 거듭제곱이어야 한다. 
+	 */
+	ReferenceTable(SourceCodeList sc, int filterBits) {
+		this(sc, sc.size(), filterBits);
+		add(sc.size());
+	}
+	
+	/**
+	 * 블럭을 아직 넣지 않은 색인. expected개의 블럭을 담을 크기로 만들고, 블럭을 받는대로 {@link #add(int)}로 넣는다. 
+	 * sc의 배열은 expected개를 담을 수 있게 미리 늘려두어야 한다. ({@link SourceCodeList.Reader})
+	 */
+	ReferenceTable(SourceCodeList sc, int expected, int filterBits) {
+		if (sc.fasts().length < expected) {
+			throw new IllegalArgumentException("source code list must have room for " + expected + " blocks");
+		}
+		count = 0;
+		strongLength = sc.getStrongLength();
+		fasts = sc.fasts();
+		strongs = sc.strongs();
+		
+		// 채움율을 50% 이하로 유지.
+		int capacity = 2;
+		while (capacity < expected * 2) {
+			capacity <<= 1;
+		}
+		slots = new int[capacity];
+		Arrays.fill(slots, EMPTY);
+		mask = capacity - 1;
+		
+		filter = new long[Math.max(1, filterBits >>> 6)];
+		filterShift = 32 - Integer.numberOfTrailingZeros(filterBits);
+		stats = new PrefilterStats(filterBits);
+	}
+	
+	/**
+	 * end번째 앞까지의 블럭을 색인에 넣는다. 색인을 만들 때 정한 블럭 갯수를 넘을 수 없다. 
+	 */
+	void add(int end) {
+		if (end > (slots.length >> 1)) {
+			throw new IllegalArgumentException("too many blocks for this table: " + end);
+		}
+		for (int idx = count; idx < end; idx++) {
+			insert(idx);
+			int bit = filterBitOf(fasts[idx]);
+			filter[bit >>> 6] |= 1L << bit;
+		}
+		count = Math.max(count, end);
+	}
+	
+	/**
+	 * 색인에 넣은 블럭 갯수
+	 */
+	int size() {
+		return count;
+	}
+	
+	/**
+	 * 블럭 갯수에 맞는 비트맵 크기. 블럭당 32비트 이상을 할당해 false positive를 3% 정도로 유지하되, 
+	 * L2/L3 캐쉬를 넘지 않게 2^20 ~ 2^24 비트로 제한한다. 
+	 */
+	static int filterBitsFor(int count) {
+		int bits = MIN_FILTER_BITS;
+		while (bits < MAX_FILTER_BITS && bits < (long)count * 32) {
+			bits <<= 1;
+		}
+		return bits;
+	}
+	
+	static int slotOf(int fast) {
+		// 빠른 해쉬의 하위 16비트는 단순합이라 분포가 고르지 않으므로, 한번 섞어준다. 
+		return (fast * 0x9E3779B9) ^ (fast >>> 16);
+	}
+	
+	private int filterBitOf(int fast) {
+		// 테이블 위치는 섞은 값의 하위 비트를 쓰므로, 비트맵은 상위 비트를 쓴다. 
+		return (fast * 0x9E3779B9) >>> filterShift;
+	}
+	
+	PrefilterStats getStats() {
+		return stats;
+	}
+	
+	private void insert(int idx) {
+		int fast = fasts[idx];
+		int pos = slotOf(fast) & mask;
+		while (true) {
+			int other = slots[pos];
+			if (other == EMPTY) {
+				slots[pos] = idx;
+				return;
+			}
+			if (fasts[other] == fast && strongEquals(other, strongs, idx * strongLength)) {
+				// 같은 블럭이 여러번 나오면 마지막 인덱스를 사용한다. 
+				slots[pos] = idx;
+				return;
+			}
+			pos = (pos + 1) & mask;
+		}
+	}
+	
+	private boolean strongEquals(int idx, byte[] strong, int offset) {
+		int base = idx * strongLength;
+		for (int i = 0; i < strongLength; i++) {
+			if (strongs[base + i] != strong[offset + i]) return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * 롤링중인 블럭과 일치하는 원본블럭 찾기. 비트맵을 통과하고 빠른 해쉬가 일치할 때만 정확한 해쉬를 계산한다. 
+	 * @return 일치하는 블럭의 인덱스. 없으면 -1 
+	 */
+	int lookup(RollingSignature sign) {
+		int fast = sign.getFast();
+		stats.lookups++;
+		int bit = filterBitOf(fast);
+		if ((filter[bit >>> 6] & (1L << bit)) == 0) {
+			stats.rejected++;
+			return -1;
+		}
+		byte[] strong = null;
+		int pos = slotOf(fast) & mask;
+		while (true) {
+			int idx = slots[pos];
+			if (idx == EMPTY) {
+				if (strong == null) {
+					stats.falsePositives++;
+				} else {
+					stats.collisions++;
+				}
+				return -1;
+			}
+			if (fasts[idx] == fast) {
+				if (strong == null) strong = sign.getStrong();
+				if (strongEquals(idx, strong, 0)) {
+					stats.hits++;
+					return idx;
+				}
+			}
+			pos = (pos + 1) & mask;
+		}
+	}
+}
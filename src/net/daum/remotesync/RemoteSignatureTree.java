@@ -0,0 +1,366 @@
+package net.daum.remotesync;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * 상대방 원본파일의 {@link SignatureTree}를 필요한 부분만 받아서, 목표파일의 SignatureTree와 비교한다.
+ * 같은 위치의 노드값이 같으면 그 아래 블럭들은 모두 같은 것으로 보고 더 받지 않고,
+ * 다른 노드만 다음 단계를 요청한다. 블럭 단계까지 내려가면, 받은 블럭 해쉬코드와 목표파일의 블럭 해쉬코드로
+ * 원본파일의 {@link SourceCodeList}를 다시 만들어, 다른 구간에 대해서만 빌드코드를 만든다.
+ * 같은 위치의 블럭이 같은 구간은 파일을 비교하지 않고 바로 참조코드로 보낸다.
+ *
+ * @author dante
+ * @see SignatureTree
+ */
+public class RemoteSignatureTree {
+	private final int blockSize;
+	private final int fanout;
+	private final StrongHash strongHash;
+	private final long length;
+	private final byte[] digest;
+	private final int blockCount;
+	private final int topLevel;
+	private byte[] topEntries;
+
+	private SignatureTree target;
+	private SourceCodeList source;
+	private BitSet aligned;
+
+	/*
+	 * level 단계에서 목표파일과 다른 노드들. 다음 요청에서 이 노드들의 자식을 받는다.
+	 */
+	private int level;
+	private int[] pending = new int[0];
+	private int pendingCount = 0;
+	private int rounds = 0;
+	private long receivedBytes = 0;
+
+	private RemoteSignatureTree(int blockSize, int fanout, StrongHash strongHash, long length, byte[] digest, int blockCount, int topLevel) {
+		this.blockSize = blockSize;
+		this.fanout = fanout;
+		this.strongHash = strongHash;
+		this.length = length;
+		this.digest = digest;
+		this.blockCount = blockCount;
+		this.topLevel = topLevel;
+	}
+
+	/**
+	 * {@link SignatureTree#packRoot(OutputStream)}로 보낸 루트를 읽는다.
+	 */
+	public static RemoteSignatureTree unpackRoot(InputStream in) throws Exception {
+		PackInput pi = new PackInput(in, null);
+		if (pi.readByte() != SignatureTree.VERSION) {
+			throw new RuntimeException("SIGNATURE_TREE Version mismatch");
+		}
+		long blockSize = pi.readNumber();
+		long fanout = pi.readNumber();
+		StrongHash strongHash = StrongHash.forId(pi.readByte());
+		long length = pi.readNumber();
+		byte[] digest = new byte[Signature.fileDigest().getDigestLength()];
+		pi.readFully(digest, 0, digest.length);
+		long blockCount = pi.readNumber();
+		int topLevel = pi.readByte();
+		if (blockSize < 1 || blockSize > Integer.MAX_VALUE || fanout < 2 || fanout > Integer.MAX_VALUE
+				|| blockCount > (Integer.MAX_VALUE - 8) / strongHash.getLength() || blockCount > length / blockSize
+				|| topLevel != SignatureTree.topLevel(blockCount, (int)fanout)) {
+			throw new RuntimeException("invalid signature tree header");
+		}
+		RemoteSignatureTree remote = new RemoteSignatureTree((int)blockSize, (int)fanout, strongHash, length, digest, (int)blockCount, topLevel);
+		remote.topEntries = new byte[remote.nodeCount(topLevel) * remote.entryLength(topLevel)];
+		pi.readFully(remote.topEntries, 0, remote.topEntries.length);
+		remote.receivedBytes = remote.topEntries.length;
+		return remote;
+	}
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	public int getFanout() {
+		return fanout;
+	}
+
+	public StrongHash getStrongHash() {
+		return strongHash;
+	}
+
+	/**
+	 * 원본파일 크기
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	private int nodeCount(int level) {
+		return (int)SignatureTree.nodeCount(blockCount, fanout, level);
+	}
+
+	private int entryLength(int level) {
+		return (level == 0 ? 4 : 0) + strongHash.getLength();
+	}
+
+	/**
+	 * 목표파일의 SignatureTree와 가장 위 단계를 비교한다. 원본과 같은 blockSize, fanout, strongHash로 만들어야 한다.
+	 */
+	public void compareWith(SignatureTree target) {
+		if (target.getBlockSize() != blockSize || target.getFanout() != fanout || !target.getStrongHash().equals(strongHash)) {
+			throw new IllegalArgumentException("signature tree parameters mismatch: " + target);
+		}
+		if (this.target != null) {
+			throw new IllegalStateException("already compared");
+		}
+		this.target = target;
+		this.source = SourceCodeList.allocate(blockSize, strongHash, blockCount);
+		this.aligned = new BitSet(blockCount);
+		this.level = topLevel;
+		int n = entryLength(topLevel);
+		int count = topEntries.length / n;
+		for (int i = 0; i < count; i++) {
+			compare(i, topEntries, i * n);
+		}
+		topEntries = null;
+	}
+
+	/**
+	 * level 단계의 index번째 노드를 비교한다. 같으면 그 아래 블럭들을 목표파일에서 채우고,
+	 * 다르면 블럭 단계는 받은 값을 채우고, 그 위 단계는 다음에 요청할 노드로 남긴다.
+	 */
+	private void compare(int index, byte[] buf, int offset) {
+		if (target.matches(level, index, buf, offset)) {
+			int start = (int)Math.min(blockCount, (long)index * span(level));
+			int end = (int)Math.min(blockCount, (index + 1L) * span(level));
+			int h = strongHash.getLength();
+			System.arraycopy(target.getSourceCodeList().fasts(), start, source.fasts(), start, end - start);
+			System.arraycopy(target.getSourceCodeList().strongs(), start * h, source.strongs(), start * h, (end - start) * h);
+			aligned.set(start, end);
+		} else if (level == 0) {
+			int fast = (buf[offset] & 0xFF) << 24 | (buf[offset + 1] & 0xFF) << 16 | (buf[offset + 2] & 0xFF) << 8 | (buf[offset + 3] & 0xFF);
+			int h = strongHash.getLength();
+			source.fasts()[index] = fast;
+			System.arraycopy(buf, offset + 4, source.strongs(), index * h, h);
+		} else {
+			if (pendingCount == pending.length) {
+				pending = Arrays.copyOf(pending, Math.max(16, pendingCount * 2));
+			}
+			pending[pendingCount++] = index;
+		}
+	}
+
+	/**
+	 * level 단계 노드 하나가 덮는 블럭 갯수
+	 */
+	private long span(int level) {
+		long span = 1;
+		for (int i = 0; i < level && span < blockCount; i++) span *= fanout;
+		return span;
+	}
+
+	/**
+	 * 원본파일과 목표파일이 같은지. 길이와 파일 전체의 해쉬코드로 비교한다.
+	 */
+	public boolean isIdentical() {
+		checkCompared();
+		return length == target.getLength() && Arrays.equals(digest, target.getDigest());
+	}
+
+	/**
+	 * 다른 노드들의 자식을 요청한다. 더 요청할 것이 없거나 두 파일이 같으면, 끝을 알리는 요청을 보낸다.
+	 * @return 요청을 보냈으면 true. 이때는 {@link #unpackNodes(InputStream)}로 응답을 읽어야 한다.
+	 */
+	public boolean packRequest(OutputStream out) throws Exception {
+		checkCompared();
+		PackOutput po = new PackOutput(out, 16 + pendingCount * 4L);
+		if (pendingCount == 0 || isIdentical()) {
+			pendingCount = 0;
+			po.writeNumber(0);
+			po.flush();
+			return false;
+		}
+		po.writeNumber(pendingCount);
+		po.write8bit(level);
+		int previous = 0;
+		for (int i = 0; i < pendingCount; i++) {
+			po.writeNumber(pending[i] - previous);
+			previous = pending[i];
+		}
+		po.flush();
+		return true;
+	}
+
+	/**
+	 * {@link #packRequest(OutputStream)}에 대한 응답을 읽고, 받은 자식 노드들을 비교한다.
+	 */
+	public void unpackNodes(InputStream in) throws Exception {
+		checkCompared();
+		int[] parents = Arrays.copyOf(pending, pendingCount);
+		int children = nodeCount(level - 1);
+		int n = entryLength(level - 1);
+		long total = 0;
+		for (int parent: parents) {
+			total += Math.min(children, (parent + 1L) * fanout) - (long)parent * fanout;
+		}
+		PackInput pi = new PackInput(in, null);
+		pi.setRemaining(total * n);
+
+		pendingCount = 0;
+		level--;
+		byte[] entry = new byte[n];
+		for (int parent: parents) {
+			int end = (int)Math.min(children, (parent + 1L) * fanout);
+			for (int c = parent * fanout; c < end; c++) {
+				pi.readFully(entry, 0, n);
+				compare(c, entry, 0);
+			}
+		}
+		receivedBytes += total * n;
+		rounds++;
+	}
+
+	/**
+	 * 주고받은 요청/응답 횟수
+	 */
+	public int getRounds() {
+		return rounds;
+	}
+
+	/**
+	 * 지금까지 받은 노드값의 바이트 수. 같은 파일의 {@link SourceCodeList}를 모두 받는 것과 비교할 수 있다.
+	 */
+	public long getReceivedBytes() {
+		return receivedBytes;
+	}
+
+	/**
+	 * 받은 값과 목표파일의 값으로 다시 만든 원본파일의 블럭 해쉬코드. 요청이 모두 끝난 뒤에만 완전하다.
+	 */
+	public SourceCodeList getSourceCodeList() {
+		checkCompared();
+		return source;
+	}
+
+	/**
+	 * 목표파일을 다시 읽으며 빌드코드를 만든다.
+	 * @see #generateBuildCodes(InputStream, BuildCodeSink, long)
+	 */
+	public BuildCodeList generateBuildCodes(InputStream targetIn) throws Exception {
+		BuildCodeList.Collector collector = new BuildCodeList.Collector(blockSize, RemoteSync.DEFAULT_RAW_LIMIT);
+		generateBuildCodes(targetIn, collector, RemoteSync.DEFAULT_RAW_LIMIT);
+		return collector.list;
+	}
+
+	/**
+	 * 목표파일을 처음부터 다시 읽으며 빌드코드를 만든다. 같은 위치의 블럭이 같은 구간은 읽지 않고 건너뛰며
+	 * 참조코드로 보내고, 나머지 구간만 {@link SourceCodeList}와 비교한다.
+	 * 마지막으로 목표파일 전체의 해쉬코드로 {@link BuildCodeSink#finish(byte[])}를 호출한다.
+	 * @param targetIn {@link #compareWith(SignatureTree)}에 쓴 목표파일을 처음부터 읽는 InputStream
+	 * @param rawLimit raw 데이타를 모아두는 최대 크기
+	 * @return 건너뛰지 않고 비교한 바이트 수
+	 */
+	public long generateBuildCodes(InputStream targetIn, BuildCodeSink sink, long rawLimit) throws Exception {
+		if (pendingCount > 0) {
+			throw new IllegalStateException("signature tree exchange is not finished");
+		}
+		checkCompared();
+		BuildCodeGenerator generator = new BuildCodeGenerator(source, rawLimit, sink);
+		long position = 0;
+		for (int i = aligned.nextSetBit(0); i >= 0; i = aligned.nextSetBit(i)) {
+			int end = aligned.nextClearBit(i);
+			long start = (long)i * blockSize;
+			generator.scan(new BoundedInputStream(targetIn, start - position));
+			for (int s = i; s < end; s += RangeBuildCode.MAX_COUNT) {
+				int count = Math.min(end - s, RangeBuildCode.MAX_COUNT);
+				if (count == 1) {
+					sink.ref(s);
+				} else {
+					sink.refRange(s, count);
+				}
+			}
+			long skip = (long)(end - i) * blockSize;
+			skipFully(targetIn, skip);
+			position = start + skip;
+			i = end;
+		}
+		generator.scan(targetIn);
+		sink.finish(target.getDigest());
+		return target.getLength() - (long)aligned.cardinality() * blockSize;
+	}
+
+	private void checkCompared() {
+		if (target == null) {
+			throw new IllegalStateException("compareWith() must be called first");
+		}
+	}
+
+	private static void skipFully(InputStream in, long n) throws Exception {
+		byte[] buf = null;
+		while (n > 0) {
+			long skipped = in.skip(n);
+			if (skipped <= 0) {
+				if (buf == null) buf = new byte[(int)Math.min(n, 8192)];
+				int r = in.read(buf, 0, (int)Math.min(n, buf.length));
+				if (r < 0) throw new RuntimeException("target file is shorter than its signature tree");
+				skipped = r;
+			}
+			n -= skipped;
+		}
+	}
+
+	public String toString() {
+		return "RemoteSignatureTree(blocks = " + blockCount + ", level = " + level + ", pending = " + pendingCount + ")";
+	}
+
+	/**
+	 * 앞에서부터 length 바이트까지만 읽는다. 닫아도 원래 스트림은 닫지 않는다.
+	 */
+	private static class BoundedInputStream extends FilterInputStream {
+		private long remaining;
+
+		BoundedInputStream(InputStream in, long length) {
+			super(in);
+			this.remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (remaining <= 0) return -1;
+			int b = super.read();
+			if (b >= 0) remaining--;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0) return -1;
+			int r = super.read(b, off, (int)Math.min(len, remaining));
+			if (r > 0) remaining -= r;
+			return r;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(Math.min(n, remaining));
+			remaining -= skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int)Math.min(super.available(), remaining);
+		}
+
+		@Override
+		public void close() {
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+}
@@ -10,4 +10,9 @@ public interface RemoteSync {
 	int DEFAULT_BLOCK_SIZE = 1024;
 	long DEFAULT_RAW_LIMIT = (1 << 22) - 1;
 	String DEFAULT_FILE_INTEGRITY_CHECK_METHOD = "SHA-1";
+	/**
+	 * 상대편이 보낸 SourceCodeList에서 받아들이는 최대 블럭갯수. 헤더의 갯수만큼 배열을 미리 만들므로, 이보다 많으면 만들기 전에 거부한다.
+	 * {@link BlockSizePolicy}로 고른 블럭크기면 1TB 파일도 100만개 남짓이다.
+	 */
+	int MAX_REMOTE_BLOCKS = 1 << 22;
 }
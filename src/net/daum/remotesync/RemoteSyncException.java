@@ -5,10 +5,12 @@ public class RemoteSyncException extends Exception {
 	private static final long serialVersionUID = -6837048736431231520L;
 	public static final RemoteSyncException OVERSIZE = new RemoteSyncOversizeException();
 	public static final RemoteSyncException TIMEOUT = new RemoteSyncTimeoutException();
+	public static final RemoteSyncException INTEGRITY = new RemoteSyncIntegrityException();
 	
 	public static interface Type {
 		int TIMEOUT = 1;
 		int OVERSIZE = 2;
+		int INTEGRITY = 3;
 	}
 
 	private int type;
@@ -37,4 +39,12 @@ class RemoteSyncTimeoutException extends RemoteSyncException {
 	RemoteSyncTimeoutException() {
 		super(Type.TIMEOUT);
 	}
-}
\ No newline at end of file
+}
+
+class RemoteSyncIntegrityException extends RemoteSyncException {
+	private static final long serialVersionUID = 2514935462031846472L;
+
+	RemoteSyncIntegrityException() {
+		super(Type.INTEGRITY);
+	}
+}
@@ -1,53 +1,116 @@
 package net.daum.remotesync;
 
-import java.util.ArrayDeque;
+import java.security.MessageDigest;
 
+/**
+ * 한 바이트씩 밀어가며 계산하는 블럭 해쉬코드. 블럭내용은 하나의 byte[]를 링버퍼로 사용해 보관하므로,
+ * init/roll/getFirst 호출중에 객체를 새로 만들지 않는다.
+ *
+ * @author dante
+ */
 public class RollingSignature extends Signature {
 	private int a, b, size;
-	private ArrayDeque<Byte> buf;
-	
-		
+	private byte[] buf;
+	private int head;
+
+	private final StrongHash strongHash;
+	private StrongHash.Hasher hasher;
+	private byte[] strong;
+
+	/**
+	 * SHA1 해쉬코드를 계산하는 RollingSignature
+	 */
+	public RollingSignature() {
+		this(StrongHash.SHA1);
+	}
+
+	/**
+	 * @param strongHash {@link #getStrong()}의 계산방식. 비교할 {@link SourceCodeList}와 같아야 한다.
+	 */
+	public RollingSignature(StrongHash strongHash) {
+		this.strongHash = strongHash;
+	}
+
 	public void init(byte[] content) {
 		a = 0;
 		b = 0;
-		buf = new ArrayDeque<Byte>(content.length);
+		if (buf == null || buf.length != content.length) {
+			buf = new byte[content.length];
+		}
+		System.arraycopy(content, 0, buf, 0, content.length);
+		head = 0;
 		int m = size = content.length;
 		for (byte c: content) {
 			a += c;
 			b += m-- * c;
-			buf.addLast(c);
 		}
 		a &= 0xFFFF;
 		b &= 0xFFFF;
 	}
-	
+
 	public void roll(byte adding) {
-		byte deleting = buf.removeFirst();
-		buf.addLast(adding);
+		byte deleting = buf[head];
+		buf[head] = adding;
+		if (++head == size) head = 0;
 		a = (a - deleting + adding) & 0xFFFF;
 		b = (b - (size * deleting) + a) & 0xFFFF;
 	}
-	
+
 	public int getFast() {
-		return (b << 16) | a;		
+		return (b << 16) | a;
 	}
-		
+
 	public byte[] getContent() {
-		byte[] content = new byte[buf.size()];
-		int i = 0;
-		for (Byte b: buf) {
-			content[i++] = b;
-		}		
+		byte[] content = new byte[size];
+		getContent(content);
 		return content;
 	}
+
+	/**
+	 * 현재 블럭내용을 주어진 배열에 복사한다.
+	 * @param dest 블럭크기 이상의 배열
+	 */
+	public void getContent(byte[] dest) {
+		System.arraycopy(buf, head, dest, 0, size - head);
+		System.arraycopy(buf, 0, dest, size - head, head);
+	}
+
+	/**
+	 * 현재 블럭내용의 마지막 length 바이트를 주어진 배열에 복사한다.
+	 */
+	public void getTail(byte[] dest, int length) {
+		int start = head + size - length;
+		if (start >= size) start -= size;
+		int first = Math.min(length, size - start);
+		System.arraycopy(buf, start, dest, 0, first);
+		System.arraycopy(buf, 0, dest, first, length - first);
+	}
 	
+	/**
+	 * 현재 블럭의 정확한 해쉬코드 ({@link StrongHash}). 링버퍼의 두 구간을 그대로 Hasher에 넣어 계산한다.
+	 * 반환하는 배열은 재사용하므로, 다음 getStrong 호출전까지만 유효하다.
+	 */
 	public byte[] getStrong() {
-		return strongSignature(getContent());
+		if (hasher == null) {
+			hasher = strongHash.newHasher();
+			strong = new byte[strongHash.getLength()];
+		}
+		hasher.update(buf, head, size - head);
+		hasher.update(buf, 0, head);
+		hasher.digest(strong, 0);
+		return strong;
+	}
+
+	/**
+	 * 현재 블럭내용을 주어진 MessageDigest에 넣는다. 목표파일 전체의 해쉬코드를 계산할 때 쓴다.
+	 */
+	public void update(MessageDigest digest) {
+		digest.update(buf, head, size - head);
+		digest.update(buf, 0, head);
 	}
 
-	
 	public byte getFirst() {
-		return buf.getFirst();
+		return buf[head];
 	}
 
 }
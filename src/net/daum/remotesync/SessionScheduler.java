@@ -0,0 +1,132 @@
+package net.daum.remotesync;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 동시에 처리하는 동기화 세션들이 나누어 쓰는 메모리 예산과 CPU 자리.
+ * <ul>
+ * <li>메모리: 세션은 시작할 때 필요한 만큼을 예약하고, 예산이 모자라면 앞서 기다리는 세션이 끝날 때까지 순서대로 기다린다.
+ *     예산보다 큰 세션은 예산 전체를 예약해서 혼자 처리한다.</li>
+ * <li>CPU: 해쉬코드 계산처럼 CPU를 많이 쓰는 일은 조각마다 자리를 얻어서 하므로, 큰 파일을 처리하는 세션이
+ *     자리를 오래 차지하지 않고 작은 세션들과 번갈아 처리된다. 네트워크를 기다리는 동안은 자리를 차지하지 않는다.</li>
+ * </ul>
+ * 두 세마포어 모두 공정(fair) 모드로, 먼저 기다린 세션이 먼저 얻는다.
+ *
+ * @author dante
+ * @see SyncServer
+ */
+public class SessionScheduler {
+	/**
+	 * 메모리 예산의 단위. 세마포어 허가 하나가 이만큼이다.
+	 */
+	static final int UNIT = 1024;
+
+	private final long memoryBudget;
+	private final int units;
+	private final Semaphore memory;
+	private final int cpuSlots;
+	private final Semaphore cpu;
+	private final AtomicInteger memoryWaiters = new AtomicInteger();
+	private final AtomicInteger cpuWaiters = new AtomicInteger();
+	private final AtomicLong peakMemory = new AtomicLong();
+
+	/**
+	 * @param memoryBudget 모든 세션이 함께 예약할 수 있는 메모리 바이트 수
+	 * @param cpuSlots CPU를 많이 쓰는 일을 동시에 할 수 있는 세션 수. 보통 코어 갯수
+	 */
+	public SessionScheduler(long memoryBudget, int cpuSlots) {
+		if (memoryBudget < UNIT || cpuSlots < 1) {
+			throw new IllegalArgumentException("memoryBudget = " + memoryBudget + ", cpuSlots = " + cpuSlots);
+		}
+		this.memoryBudget = memoryBudget;
+		this.units = (int)Math.min(Integer.MAX_VALUE, memoryBudget / UNIT);
+		this.memory = new Semaphore(units, true);
+		this.cpuSlots = cpuSlots;
+		this.cpu = new Semaphore(cpuSlots, true);
+	}
+
+	/**
+	 * 메모리를 예약한다. 예산이 모자라면 기다린다.
+	 * @return 예약한 단위 수. {@link #release(int)}에 그대로 넘긴다.
+	 */
+	int reserve(long bytes) throws InterruptedException {
+		int n = (int)Math.max(1, Math.min(units, (bytes + UNIT - 1) / UNIT));
+		memoryWaiters.incrementAndGet();
+		try {
+			memory.acquire(n);
+		} finally {
+			memoryWaiters.decrementAndGet();
+		}
+		long inUse = getMemoryInUse();
+		long peak;
+		while (inUse > (peak = peakMemory.get()) && !peakMemory.compareAndSet(peak, inUse)) {
+		}
+		return n;
+	}
+
+	void release(int reserved) {
+		memory.release(reserved);
+	}
+
+	/**
+	 * CPU 자리를 얻는다. 일이 끝나면 바로 {@link #releaseCpu()}해야 한다.
+	 */
+	void acquireCpu() throws InterruptedException {
+		cpuWaiters.incrementAndGet();
+		try {
+			cpu.acquire();
+		} finally {
+			cpuWaiters.decrementAndGet();
+		}
+	}
+
+	void releaseCpu() {
+		cpu.release();
+	}
+
+	public long getMemoryBudget() {
+		return memoryBudget;
+	}
+
+	/**
+	 * 지금 예약된 메모리 바이트 수
+	 */
+	public long getMemoryInUse() {
+		return (long)(units - memory.availablePermits()) * UNIT;
+	}
+
+	/**
+	 * 예약된 메모리 바이트 수의 최대값. 예약한 직후마다 잰다.
+	 */
+	public long getPeakMemoryInUse() {
+		return peakMemory.get();
+	}
+
+	/**
+	 * 메모리 예약을 기다리는 세션 수
+	 */
+	public int getMemoryWaiters() {
+		return memoryWaiters.get();
+	}
+
+	/**
+	 * CPU 자리를 쓰고 있는 세션 수
+	 */
+	public int getCpuRunning() {
+		return cpuSlots - cpu.availablePermits();
+	}
+
+	/**
+	 * CPU 자리를 기다리는 세션 수
+	 */
+	public int getCpuWaiters() {
+		return cpuWaiters.get();
+	}
+
+	public String toString() {
+		return "SessionScheduler(memory = " + getMemoryInUse() + " / " + memoryBudget + ", waiting " + getMemoryWaiters()
+				+ ", cpu = " + getCpuRunning() + " / " + cpuSlots + ", waiting " + getCpuWaiters() + ")";
+	}
+}
@@ -2,6 +2,7 @@ package net.daum.remotesync;
 
 import static javax.xml.bind.DatatypeConverter.printBase64Binary;
 import static net.daum.remotesync.PackUtil.read32bit;
+import static net.daum.remotesync.PackUtil.readFully;
 import static net.daum.remotesync.PackUtil.write32bit;
 
 import java.io.InputStream;
@@ -28,9 +29,18 @@ public class Signature {
 	 * @return 32비트 해쉬코드
 	 */
 	public static int fastSignature(byte[] buf) {
+		return fastSignature(buf, 0, buf.length);
+	}
+	
+	/**
+	 * 배열의 일부 구간에 대한 빠른 해쉬코드 계산.
+	 * @see #fastSignature(byte[])
+	 */
+	public static int fastSignature(byte[] buf, int offset, int length) {
 		int a = 0, b = 0;
-		int m = buf.length;
-		for (byte c: buf) {
+		int m = length;
+		for (int i = offset; i < offset + length; i++) {
+			byte c = buf[i];
 			a += c;
 			b += m-- * c;
 		}
@@ -43,19 +53,41 @@ public class Signature {
 
 	
 	/**
-	 * 정확한 계산을 위한 SHA1 해쉬코드. 
+	 * 정확한 계산을 위한 SHA1 해쉬코드. 쓰레드마다 MessageDigest 하나를 재사용한다. 
 	 * @param buf 해쉬코드를 계산할 데이타
 	 * @return 160bit SHA1 해쉬코드 값
+	 * @see StrongHash#hash(byte[], int, int)
 	 */
 	public static byte[] strongSignature(byte[] buf) {
+		return StrongHash.SHA1.hash(buf, 0, buf.length);
+	}
+	
+	/**
+	 * 파일 전체의 해쉬코드를 계산할 MessageDigest ({@link RemoteSync#DEFAULT_FILE_INTEGRITY_CHECK_METHOD}).
+	 */
+	public static MessageDigest fileDigest() {
 		try {
-			MessageDigest md = MessageDigest.getInstance("SHA-1");
-			return md.digest(buf);
+			return MessageDigest.getInstance(RemoteSync.DEFAULT_FILE_INTEGRITY_CHECK_METHOD);
 		} catch (NoSuchAlgorithmException e) {
-			throw new RuntimeException("there is no SHA1 module");
+			throw new RuntimeException("there is no " + RemoteSync.DEFAULT_FILE_INTEGRITY_CHECK_METHOD + " module");
 		}
 	}
 	
+	/**
+	 * 파일 전체의 해쉬코드. 동기화가 끝난 뒤 두 파일이 같은지 확인할 때 사용한다.  
+	 * @param in 파일의 InputStream. 끝까지 읽는다.
+	 * @return {@link RemoteSync#DEFAULT_FILE_INTEGRITY_CHECK_METHOD} 해쉬코드 값
+	 */
+	public static byte[] fileSignature(InputStream in) throws Exception {
+		MessageDigest md = fileDigest();
+		byte[] buf = new byte[65536];
+		int r;
+		while ((r = in.read(buf)) > 0) {
+			md.update(buf, 0, r);
+		}
+		return md.digest();
+	}
+	
 	protected Signature() {}
 	
 	/**
@@ -66,6 +98,14 @@ public class Signature {
 		this.content = content.clone();
 	}
 	
+	/**
+	 * 이미 계산한 해쉬코드값으로 객체를 만든다. 원본데이타는 보관하지 않는다. 
+	 */
+	Signature(int fast, byte[] strong) {
+		this.fast = (long)fast;
+		this.strong = strong;
+	}
+	
 	/**
 	 * 빠른 해쉬코드 계산 (Adler-32와 유사)
 	 * @return
@@ -110,7 +150,7 @@ public class Signature {
 		byte buf[] = new byte[20];
 		Signature sign = new Signature();
 		sign.fast = read32bit(in, fileOut);
-		in.read(buf);
+		readFully(in, buf, buf.length);
 		if (fileOut != null) {
 			fileOut.write(buf);
 		}
@@ -0,0 +1,329 @@
+package net.daum.remotesync;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 원본파일의 {@link SourceCodeList}를 디스크에 보관해두고, 파일이 바뀌지 않았으면 다시 계산하지 않는다.
+ * 파일은 경로, 크기, 수정시각으로 구별한다. (rsync의 quick check와 같다. 같은 시각에 크기를 바꾸지 않고 수정하면 알아채지 못한다.)
+ * <p>
+ * 항목마다 캐쉬 디렉토리에 파일 하나로 저장하며, 읽을 때는 파일채널에서 {@link PackInput}의 버퍼 크기만큼씩 미리 읽는다.
+ * 헤더를 먼저 읽어서, 크기나 수정시각이 다르면 리스트는 읽지 않는다.
+ * 전체 크기가 maxBytes를 넘으면 가장 오래 쓰지 않은 항목부터 지운다. 사용한 순서는 캐쉬파일의 수정시각에도 기록해서,
+ * 프로세스를 다시 시작해도 유지된다.
+ * </p>
+ * <p>
+ * 파일의 일부만 바뀐 것을 알고 있으면 {@link #update(File, int, StrongHash, long, long)}로 그 부분의 블럭만 다시 계산한다.
+ * 크기가 바뀌지 않는 덮어쓰기와 파일 끝에 덧붙이기에만 쓸 수 있다. 중간에 끼워넣거나 지우면 뒤쪽 블럭이 모두 바뀌므로
+ * {@link #remove(File)} 뒤에 다시 계산해야 한다.
+ * </p>
+ * 캐쉬파일 포맷
+ * <pre>
+ * [VERSION:8][pathLength][path:UTF-8][fileSize][lastModified] [SourceCodeList]
+ * </pre>
+ * 숫자는 {@link PackOutput#writeNumber(long)}의 가변길이 정수, SourceCodeList는 {@link SourceCodeList#pack(java.io.OutputStream)}의 포맷이다.
+ * 한 디렉토리를 여러 프로세스가 함께 쓰면 안 되며, 한 프로세스 안에서는 여러 쓰레드가 함께 써도 된다.
+ * 캐쉬파일을 읽고 쓰거나 해쉬코드를 계산하는 동안은 잠그지 않으므로, 다른 쓰레드는 기다리지 않는다.
+ *
+ * <pre>
+ * SignatureCache cache = new SignatureCache(new File("/var/cache/remotesync"), 1L &lt;&lt; 30);
+ * SourceCodeList sc = cache.get(file, blockSize);
+ * </pre>
+ *
+ * @author dante
+ */
+public class SignatureCache {
+	public static final int VERSION = 0x51;
+	static final String SUFFIX = ".sig";
+
+	private final File dir;
+	private final long maxBytes;
+	/*
+	 * 캐쉬파일 이름 => 캐쉬파일 크기. 오래 쓰지 않은 항목이 앞에 있다.
+	 */
+	private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+	private long totalBytes = 0;
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * @param dir 캐쉬파일을 둘 디렉토리. 없으면 만든다.
+	 * @param maxBytes 캐쉬파일 전체의 최대 크기
+	 */
+	public SignatureCache(File dir, long maxBytes) throws Exception {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IllegalArgumentException("couldn't create the cache directory: " + dir);
+		}
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+
+		File[] files = dir.listFiles(new FileFilter() {
+			public boolean accept(File f) {
+				return f.isFile() && f.getName().endsWith(SUFFIX);
+			}
+		});
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare(File a, File b) {
+				long d = a.lastModified() - b.lastModified();
+				return d < 0 ? -1 : d > 0 ? 1 : 0;
+			}
+		});
+		for (File f: files) {
+			entries.put(f.getName(), f.length());
+			totalBytes += f.length();
+		}
+		evict(null);
+	}
+
+	/**
+	 * SHA1 해쉬코드로 만든 리스트.
+	 * @see #get(File, int, StrongHash)
+	 */
+	public SourceCodeList get(File file, int blockSize) throws Exception {
+		return get(file, blockSize, StrongHash.SHA1);
+	}
+
+	/**
+	 * 파일이 바뀌지 않았으면 보관해둔 리스트를 읽고, 아니면 새로 계산해서 보관한다.
+	 */
+	public SourceCodeList get(File file, int blockSize, StrongHash strongHash) throws Exception {
+		String path = file.getCanonicalPath();
+		long size = file.length();
+		long lastModified = file.lastModified();
+		String name = entryName(path, blockSize, strongHash);
+		SourceCodeList sc = read(name, path, size, lastModified);
+		if (sc != null) {
+			synchronized (this) {
+				hits++;
+				touch(name);
+			}
+			return sc;
+		}
+		synchronized (this) {
+			misses++;
+		}
+		sc = SourceCodeList.create(path, blockSize, strongHash);
+		write(name, path, size, lastModified, sc);
+		return sc;
+	}
+
+	/**
+	 * 파일의 offset부터 length 바이트만 바뀐 것을 알 때, 그 부분의 블럭과 늘어난 뒷부분의 블럭만 다시 계산한다.
+	 * 보관해둔 리스트가 없으면 전체를 계산한다.
+	 * @param offset 바뀐 부분의 시작위치
+	 * @param length 바뀐 부분의 길이
+	 */
+	public SourceCodeList update(File file, int blockSize, StrongHash strongHash, long offset, long length) throws Exception {
+		String path = file.getCanonicalPath();
+		String name = entryName(path, blockSize, strongHash);
+		SourceCodeList sc = read(name, path, -1, 0);
+		if (sc == null || sc.getStrongLength() != strongHash.getLength()) {
+			return get(file, blockSize, strongHash);
+		}
+		synchronized (this) {
+			misses++;
+		}
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			long size = raf.length();
+			long lastModified = file.lastModified();
+			long blocks = size / blockSize;
+			if (blocks > Integer.MAX_VALUE) throw new IllegalArgumentException("too many blocks: " + blocks);
+			int count = (int)blocks;
+			int kept = Math.min(sc.size(), count);
+			sc.setSize(count);
+
+			ParallelSignatureBuilder builder = new ParallelSignatureBuilder(raf.getChannel(), blockSize);
+			int first = (int)Math.min(kept, Math.max(0, offset) / blockSize);
+			int last = (int)Math.min(kept, (Math.max(0, offset + length) + blockSize - 1) / blockSize);
+			if (first < last) {
+				builder.sign(sc, first, last - first);
+			}
+			builder.sign(sc, kept, count - kept);
+			write(name, path, size, lastModified, sc);
+		} finally {
+			raf.close();
+		}
+		return sc;
+	}
+
+	/**
+	 * 파일의 항목을 모두 지운다.
+	 */
+	public synchronized void remove(File file) throws Exception {
+		String prefix = pathDigest(file.getCanonicalPath()) + "-";
+		// 접근순서 맵이므로 get()을 부르면 순서가 바뀐다. 엔트리에서 크기를 읽는다.
+		for (Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<String, Long> e = it.next();
+			if (e.getKey().startsWith(prefix)) {
+				totalBytes -= e.getValue();
+				new File(dir, e.getKey()).delete();
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * 보관중인 캐쉬파일 전체의 크기
+	 */
+	public synchronized long getSize() {
+		return totalBytes;
+	}
+
+	public synchronized int getEntryCount() {
+		return entries.size();
+	}
+
+	/**
+	 * 보관해둔 리스트를 그대로 쓴 횟수
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * 파일을 읽어서 계산한 횟수. update도 포함한다.
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * 경로마다 같은 접두어를 쓰고, 블럭크기와 해쉬코드 종류를 붙여 구별한다.
+	 */
+	private static String entryName(String path, int blockSize, StrongHash strongHash) throws Exception {
+		return pathDigest(path) + "-" + blockSize + "-" + strongHash.getId() + SUFFIX;
+	}
+
+	private static String pathDigest(String path) throws Exception {
+		MessageDigest md = Signature.fileDigest();
+		byte[] digest = md.digest(path.getBytes("UTF-8"));
+		StringBuilder sb = new StringBuilder();
+		for (byte b: digest) {
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * 캐쉬파일을 읽는다. 없거나, 다른 경로의 것이거나, 깨졌으면 null.
+	 * 헤더를 먼저 읽고, size가 0 이상이면 헤더의 크기와 수정시각이 같을 때만 리스트를 읽는다. 다르면 null
+	 */
+	private SourceCodeList read(String name, String path, long size, long lastModified) throws Exception {
+		synchronized (this) {
+			if (!entries.containsKey(name)) return null;
+		}
+		File f = new File(dir, name);
+		FileInputStream in;
+		try {
+			in = new FileInputStream(f);
+		} catch (FileNotFoundException e) {
+			synchronized (this) {
+				forget(name);
+			}
+			return null;
+		}
+		SourceCodeList sc = null;
+		boolean broken = false;
+		try {
+			PackInput pi = new PackInput(in.getChannel(), null);
+			pi.setRemaining(f.length());
+			if (pi.readByte() != VERSION) throw new RuntimeException("SIGNATURE_CACHE Version mismatch");
+			byte[] p = new byte[(int)Math.min(pi.readNumber(), f.length())];
+			pi.readFully(p, 0, p.length);
+			if (path.equals(new String(p, "UTF-8"))) {
+				long cachedSize = pi.readNumber();
+				long cachedLastModified = pi.readNumber();
+				if (size < 0 || cachedSize == size && cachedLastModified == lastModified) {
+					sc = SourceCodeList.unpack(pi, f.length() / (4 + SourceCodeList.MIN_STRONG_LENGTH));
+				}
+			}
+		} catch (RuntimeException e) {
+			// 깨진 캐쉬파일은 지우고 다시 계산한다.
+			sc = null;
+			broken = true;
+		} finally {
+			in.close();
+		}
+		if (broken) {
+			synchronized (this) {
+				forget(name);
+				f.delete();
+			}
+		}
+		return sc;
+	}
+
+	/**
+	 * 임시파일에 쓴 뒤 이름을 바꾸므로, 쓰는 도중에 멈춰도 깨진 캐쉬파일이 남지 않는다.
+	 * 임시파일은 쓰레드마다 따로 만들므로, 이름을 바꿀 때만 잠근다.
+	 */
+	private void write(String name, String path, long size, long lastModified, SourceCodeList sc) throws Exception {
+		File tmp = File.createTempFile(name + ".", ".tmp", dir);
+		FileOutputStream out = new FileOutputStream(tmp);
+		boolean written = false;
+		try {
+			PackOutput po = new PackOutput(out.getChannel());
+			byte[] p = path.getBytes("UTF-8");
+			po.write8bit(VERSION);
+			po.writeNumber(p.length);
+			po.write(p, 0, p.length);
+			po.writeNumber(size);
+			po.writeNumber(lastModified);
+			po.flush();
+			sc.pack(out.getChannel(), sc.getStrongLength());
+			written = true;
+		} finally {
+			out.close();
+			if (!written) tmp.delete();
+		}
+		File f = new File(dir, name);
+		synchronized (this) {
+			forget(name);
+			if (!tmp.renameTo(f) && (f.exists() && !f.delete() || !tmp.renameTo(f))) {
+				tmp.delete();
+				throw new RuntimeException("couldn't write the signature cache: " + f);
+			}
+			entries.put(name, f.length());
+			totalBytes += f.length();
+			evict(name);
+		}
+	}
+
+	private void touch(String name) {
+		entries.get(name);
+		new File(dir, name).setLastModified(System.currentTimeMillis());
+	}
+
+	private void forget(String name) {
+		Long length = entries.remove(name);
+		if (length != null) totalBytes -= length;
+	}
+
+	/**
+	 * 최대 크기를 넘으면 오래 쓰지 않은 항목부터 지운다. keep은 방금 쓴 항목으로, 지우지 않는다.
+	 */
+	private void evict(String keep) {
+		for (Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator(); totalBytes > maxBytes && it.hasNext();) {
+			Map.Entry<String, Long> e = it.next();
+			if (e.getKey().equals(keep)) continue;
+			new File(dir, e.getKey()).delete();
+			totalBytes -= e.getValue();
+			it.remove();
+		}
+	}
+
+	public String toString() {
+		return "SignatureCache(" + dir + ", " + entries.size() + " entries, " + totalBytes + " / " + maxBytes + " bytes)";
+	}
+}
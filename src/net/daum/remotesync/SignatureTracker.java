@@ -0,0 +1,152 @@
+package net.daum.remotesync;
+
+import java.util.ArrayDeque;
+
+/**
+ * 목표파일을 쓰는 동안 그 파일의 {@link SourceCodeList}를 함께 만든다. {@link BuildCodePatcher}가
+ * 빌드코드마다 {@link #ref(int, int)}, {@link #raw(int)}를 먼저 알리고, 쓰는 내용을 같은 순서로 {@link #write(byte[], int, int)}에 넘긴다.
+ * <p>
+ * 참조블럭이 목표파일의 블럭 경계에 그대로 놓이면, 그 블럭의 해쉬코드는 원본 {@link SourceCodeList}의 것과 같으므로
+ * 복사만 하고 계산하지 않는다. raw 데이타가 섞이거나 위치가 밀린 블럭만 해쉬코드를 계산하므로,
+ * 큰 파일의 일부만 바뀌었다면 바뀐 크기만큼만 계산한다.
+ * </p>
+ * 파일 끝의 블럭크기보다 작은 나머지는 {@link SourceCodeList#create(java.io.InputStream, int)}와 마찬가지로 버린다.
+ *
+ * @author dante
+ */
+class SignatureTracker {
+	private final SourceCodeList source;
+	private final SourceCodeList next;
+	private final int blockSize;
+	private final boolean reusable;
+	private final StrongHash.Hasher hasher;
+	private final byte[] block;
+	private int fill = 0;
+
+	/*
+	 * 알려온 빌드코드 중 아직 다 쓰지 않은 것들. ref는 {시작블럭, 남은 바이트 수, 전체 바이트 수}, raw는 {-1, 남은 바이트 수, 0}
+	 */
+	private final ArrayDeque<long[]> segments = new ArrayDeque<long[]>();
+	private long skipping = 0;
+	private int hashed = 0;
+
+	/**
+	 * @param source 빌드코드가 참조하는 원본파일의 SourceCodeList. 해쉬값을 잘라서 받은 리스트면 모든 블럭을 계산한다.
+	 */
+	SignatureTracker(SourceCodeList source) {
+		this.source = source;
+		this.blockSize = source.getBlockSize();
+		this.next = SourceCodeList.allocate(blockSize, source.getStrongHash(), 0);
+		this.reusable = source.getStrongLength() == source.getStrongHash().getLength();
+		this.hasher = source.getStrongHash().newHasher();
+		this.block = new byte[blockSize];
+	}
+
+	/**
+	 * start번째부터 count개의 원본블럭을 쓸 것이다.
+	 */
+	void ref(int start, int count) {
+		long[] last = segments.peekLast();
+		long length = (long)count * blockSize;
+		if (last != null && last[0] >= 0 && last[0] + last[2] / blockSize == start) {
+			last[1] += length;
+			last[2] += length;
+		} else {
+			segments.addLast(new long[] {start, length, length});
+		}
+	}
+
+	/**
+	 * length 바이트의 raw 데이타를 쓸 것이다.
+	 */
+	void raw(int length) {
+		long[] last = segments.peekLast();
+		if (last != null && last[0] < 0) {
+			last[1] += length;
+		} else {
+			segments.addLast(new long[] {-1, length, 0});
+		}
+	}
+
+	/**
+	 * 다음에 쓸 내용이 블럭 경계에 놓인 참조블럭인지
+	 */
+	private boolean isAligned() {
+		long[] head = segments.peekFirst();
+		return reusable && fill == 0 && skipping == 0 && head != null && head[0] >= 0 && (head[2] - head[1]) % blockSize == 0;
+	}
+
+	/**
+	 * 목표파일에 쓰는 내용. 알려온 빌드코드의 순서와 같아야 한다.
+	 */
+	void write(byte[] buf, int offset, int length) {
+		while (length > 0) {
+			if (skipping > 0) {
+				int n = (int)Math.min(skipping, length);
+				skipping -= n;
+				offset += n;
+				length -= n;
+				continue;
+			}
+			long[] head = segments.peekFirst();
+			if (head == null) {
+				throw new IllegalStateException("unexpected output without a build code");
+			}
+			if (isAligned()) {
+				// 블럭 하나의 해쉬코드를 복사하고, 그 블럭의 내용은 버린다.
+				copy((int)(head[0] + (head[2] - head[1]) / blockSize), 1);
+				consume(head, blockSize);
+				skipping = blockSize;
+				continue;
+			}
+			int n = (int)Math.min(Math.min(length, head[1]), blockSize - fill);
+			System.arraycopy(buf, offset, block, fill, n);
+			fill += n;
+			offset += n;
+			length -= n;
+			consume(head, n);
+			if (fill == blockSize) {
+				int index = append(1);
+				next.fasts()[index] = Signature.fastSignature(block, 0, blockSize);
+				hasher.update(block, 0, blockSize);
+				hasher.digest(next.strongs(), index * next.getStrongLength());
+				fill = 0;
+				hashed++;
+			}
+		}
+	}
+
+	private void consume(long[] head, long n) {
+		head[1] -= n;
+		if (head[1] == 0) {
+			segments.removeFirst();
+		}
+	}
+
+	private void copy(int start, int count) {
+		int index = append(count);
+		int h = next.getStrongLength();
+		System.arraycopy(source.fasts(), start, next.fasts(), index, count);
+		System.arraycopy(source.strongs(), start * h, next.strongs(), index * h, count * h);
+	}
+
+	private int append(int count) {
+		int index = next.size();
+		next.setSize(index + count);
+		return index;
+	}
+
+	/**
+	 * 해쉬코드를 계산한 블럭 갯수. 나머지는 원본의 해쉬코드를 복사했다.
+	 */
+	int getHashedBlocks() {
+		return hashed;
+	}
+
+	/**
+	 * 지금까지 쓴 내용의 SourceCodeList
+	 */
+	SourceCodeList getSourceCodeList() {
+		return next;
+	}
+}
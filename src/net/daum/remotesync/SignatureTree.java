@@ -0,0 +1,330 @@
+package net.daum.remotesync;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+
+/**
+ * 블럭 해쉬코드 위에 쌓은 해쉬트리(Merkle tree). 상대방과 위에서부터 차례로 비교하며,
+ * 다른 부분만 한 단계씩 내려가 자세한 해쉬코드를 주고받는다.
+ * <ul>
+ * <li>level 0: 블럭마다 [빠른 해쉬값:32][정확한 해쉬값]. {@link SourceCodeList}와 같다.</li>
+ * <li>level L: 아래 단계의 fanout개 노드값을 이어붙인 것의 정확한 해쉬값</li>
+ * </ul>
+ * 대부분이 그대로인 큰 파일은 {@link SourceCodeList} 전체 대신, 바뀐 곳 근처의 해쉬코드만 주고받는다.
+ * 파일 전체의 길이와 해쉬코드도 처음에 보내므로, 두 파일이 같으면 한번에 끝난다.
+ * 노드는 파일에서의 위치로 비교하므로, 중간에 데이타가 끼워지거나 지워지면 그 뒤는 모두 다르게 보인다.
+ * 이 경우에도 다른 부분의 블럭 해쉬코드는 모두 받으므로, {@link RemoteSignatureTree}에서 옮겨진 블럭은 찾아낸다.
+ *
+ * <pre>
+ * machineA (원본파일):
+ *   SignatureTree tree = SignatureTree.create(srcIn, blockSize);
+ *   tree.packRoot(netOut);
+ *   while (tree.answer(netIn, netOut));
+ *   BuildCodeList.patch(netIn, src, newFileOut);
+ *
+ * machineB (목표파일):
+ *   RemoteSignatureTree remote = RemoteSignatureTree.unpackRoot(netIn);
+ *   remote.compareWith(SignatureTree.create(newFileIn, remote.getBlockSize(), remote.getFanout(), remote.getStrongHash()));
+ *   while (remote.packRequest(netOut)) remote.unpackNodes(netIn);
+ *   remote.generateBuildCodes(newFileIn2, new BuildCodeWriter(netOut, remote.getBlockSize()), rawLimit);
+ * </pre>
+ *
+ * 바이너리 포맷
+ * <pre>
+ * 루트:   [VERSION:8][blockSize][fanout][hashId:8][fileLength][fileDigest:160][blockCount][topLevel:8] [topLevel 노드값 ...]
+ * 요청:   [count] ([level:8] [첫 index] [index 증가분]*(count-1))?   count가 0이면 끝
+ * 응답:   요청한 노드마다 자식 노드값 (level - 1)
+ * </pre>
+ * 숫자는 모두 {@link PackOutput#writeNumber(long)}의 가변길이 정수. topLevel은 노드가 fanout개 이하인 가장 낮은 단계다.
+ *
+ * @author dante
+ * @see RemoteSignatureTree
+ */
+public class SignatureTree {
+	public static final int VERSION = 0x61;
+	public static final int DEFAULT_FANOUT = 16;
+
+	private final SourceCodeList leaves;
+	private final int fanout;
+	private final long length;
+	private final byte[] digest;
+	/*
+	 * levels[L]은 L단계 노드값들을 이어붙인 것. levels[0]은 leaves에 있으므로 null이다.
+	 * 노드가 하나가 될 때까지 쌓는다.
+	 */
+	private final byte[][] levels;
+
+	private SignatureTree(SourceCodeList leaves, int fanout, long length, byte[] digest) {
+		this.leaves = leaves;
+		this.fanout = fanout;
+		this.length = length;
+		this.digest = digest;
+
+		int h = leaves.getStrongLength();
+		int count = leaves.size();
+		int depth = 1;
+		for (long c = count; c > 1; c = (c + fanout - 1) / fanout) depth++;
+		this.levels = new byte[depth][];
+
+		StrongHash.Hasher hasher = leaves.getStrongHash().newHasher();
+		byte[] entry = new byte[entryLength(0)];
+		for (int level = 1; level < depth; level++) {
+			int children = count;
+			count = (count + fanout - 1) / fanout;
+			byte[] nodes = new byte[count * h];
+			for (int i = 0; i < count; i++) {
+				int end = (int)Math.min(children, (i + 1L) * fanout);
+				for (int c = (int)Math.min(children, (long)i * fanout); c < end; c++) {
+					if (level == 1) {
+						copyLeaf(c, entry, 0);
+						hasher.update(entry, 0, entry.length);
+					} else {
+						hasher.update(levels[level - 1], c * h, h);
+					}
+				}
+				hasher.digest(nodes, i * h);
+			}
+			levels[level] = nodes;
+		}
+	}
+
+	/**
+	 * 기본 fanout, SHA1으로 해쉬트리를 만든다.
+	 */
+	public static SignatureTree create(InputStream in, int blockSize) throws Exception {
+		return create(in, blockSize, DEFAULT_FANOUT, StrongHash.SHA1);
+	}
+
+	/**
+	 * 파일을 한번 읽으며 블럭 해쉬코드와 파일 전체의 해쉬코드를 함께 계산한다.
+	 * 상대방과 비교하려면 blockSize, fanout, strongHash가 모두 같아야 한다.
+	 * @param fanout 노드 하나의 자식 갯수 (2 이상)
+	 */
+	public static SignatureTree create(InputStream in, int blockSize, int fanout, StrongHash strongHash) throws Exception {
+		if (fanout < 2) {
+			throw new IllegalArgumentException("fanout must be 2 or more: " + fanout);
+		}
+		DigestCountingInputStream din = new DigestCountingInputStream(in);
+		SourceCodeList leaves = SourceCodeList.create(din, blockSize, strongHash);
+		byte[] rest = new byte[4096];
+		while (din.read(rest, 0, rest.length) >= 0);
+		return new SignatureTree(leaves, fanout, din.count, din.digest.digest());
+	}
+
+	public int getBlockSize() {
+		return leaves.getBlockSize();
+	}
+
+	public int getFanout() {
+		return fanout;
+	}
+
+	public StrongHash getStrongHash() {
+		return leaves.getStrongHash();
+	}
+
+	/**
+	 * 파일 크기
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * 파일 전체의 해쉬코드 ({@link Signature#fileDigest()})
+	 */
+	public byte[] getDigest() {
+		return digest.clone();
+	}
+
+	/**
+	 * 블럭별 해쉬코드
+	 */
+	public SourceCodeList getSourceCodeList() {
+		return leaves;
+	}
+
+	/**
+	 * 쌓은 단계의 수. 가장 위 단계는 노드가 하나다.
+	 */
+	public int getDepth() {
+		return levels.length;
+	}
+
+	/**
+	 * level 단계의 노드 갯수. 그 단계가 없으면 0
+	 */
+	public int getNodeCount(int level) {
+		if (level == 0) return leaves.size();
+		return level < levels.length ? levels[level].length / leaves.getStrongLength() : 0;
+	}
+
+	/**
+	 * 노드값의 바이트 수. level 0은 빠른 해쉬값 4바이트가 더 붙는다.
+	 */
+	int entryLength(int level) {
+		return (level == 0 ? 4 : 0) + leaves.getStrongLength();
+	}
+
+	private void copyLeaf(int index, byte[] dest, int offset) {
+		int fast = leaves.fasts()[index];
+		dest[offset] = (byte)(fast >>> 24);
+		dest[offset + 1] = (byte)(fast >>> 16);
+		dest[offset + 2] = (byte)(fast >>> 8);
+		dest[offset + 3] = (byte)fast;
+		int h = leaves.getStrongLength();
+		System.arraycopy(leaves.strongs(), index * h, dest, offset + 4, h);
+	}
+
+	/**
+	 * 노드값을 dest[offset]부터 {@link #entryLength(int)} 바이트에 복사한다.
+	 */
+	void copyEntry(int level, int index, byte[] dest, int offset) {
+		if (level == 0) {
+			copyLeaf(index, dest, offset);
+		} else {
+			int h = leaves.getStrongLength();
+			System.arraycopy(levels[level], index * h, dest, offset, h);
+		}
+	}
+
+	/**
+	 * 노드값이 buf[offset]부터의 값과 같은지. 이 트리에 없는 노드면 false
+	 */
+	boolean matches(int level, int index, byte[] buf, int offset) {
+		if (index >= getNodeCount(level)) return false;
+		int h = leaves.getStrongLength();
+		byte[] strongs = level == 0 ? leaves.strongs() : levels[level];
+		if (level == 0) {
+			int fast = (buf[offset] & 0xFF) << 24 | (buf[offset + 1] & 0xFF) << 16 | (buf[offset + 2] & 0xFF) << 8 | (buf[offset + 3] & 0xFF);
+			if (fast != leaves.fasts()[index]) return false;
+			offset += 4;
+		}
+		for (int i = 0; i < h; i++) {
+			if (strongs[index * h + i] != buf[offset + i]) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * 노드가 fanout개 이하인 가장 낮은 단계
+	 */
+	static int topLevel(long blockCount, int fanout) {
+		int level = 0;
+		for (long c = blockCount; c > fanout; c = (c + fanout - 1) / fanout) level++;
+		return level;
+	}
+
+	/**
+	 * 블럭이 blockCount개일 때 level 단계의 노드 갯수
+	 */
+	static long nodeCount(long blockCount, int fanout, int level) {
+		long c = blockCount;
+		for (int i = 0; i < level; i++) c = (c + fanout - 1) / fanout;
+		return c;
+	}
+
+	/**
+	 * 파일 정보와 가장 위 단계의 노드값들을 보낸다.
+	 * @return 출력한 바이트 수
+	 */
+	public long packRoot(OutputStream out) throws Exception {
+		PackOutput po = new PackOutput(out);
+		int top = topLevel(leaves.size(), fanout);
+		int count = getNodeCount(top);
+		po.write8bit(VERSION);
+		long written = 1 + po.writeNumber(getBlockSize()) + po.writeNumber(fanout);
+		po.write8bit(getStrongHash().getId());
+		written += 1 + po.writeNumber(length);
+		po.write(digest, 0, digest.length);
+		written += digest.length + po.writeNumber(leaves.size());
+		po.write8bit(top);
+		written += 1 + writeEntries(po, top, 0, count);
+		po.flush();
+		return written;
+	}
+
+	/**
+	 * 요청을 하나 읽어서, 요청한 노드들의 자식 노드값을 보낸다.
+	 * @return 끝을 알리는 요청이면 false
+	 */
+	public boolean answer(InputStream in, OutputStream out) throws Exception {
+		PackInput pi = new PackInput(in, null);
+		long count = pi.readNumber();
+		if (count == 0) return false;
+		int level = pi.readByte();
+		if (level < 1 || level >= levels.length || count > getNodeCount(level)) {
+			throw new RuntimeException("invalid signature tree request: level = " + level + ", count = " + count);
+		}
+		PackOutput po = new PackOutput(out);
+		long index = 0;
+		for (long i = 0; i < count; i++) {
+			long delta = pi.readNumber();
+			if (i > 0 && delta == 0) {
+				throw new RuntimeException("signature tree request must be in ascending order");
+			}
+			index += delta;
+			if (index >= getNodeCount(level)) {
+				throw new RuntimeException("invalid signature tree node: level = " + level + ", index = " + index);
+			}
+			int children = getNodeCount(level - 1);
+			writeEntries(po, level - 1, (int)(index * fanout), (int)Math.min(children, (index + 1) * fanout));
+		}
+		po.flush();
+		return true;
+	}
+
+	private long writeEntries(PackOutput out, int level, int start, int end) throws Exception {
+		int n = entryLength(level);
+		byte[] entry = new byte[n];
+		for (int i = start; i < end; i++) {
+			copyEntry(level, i, entry, 0);
+			out.write(entry, 0, n);
+		}
+		return (long)(end - start) * n;
+	}
+
+	public String toString() {
+		return "SignatureTree(blocks = " + leaves.size() + ", depth = " + levels.length + ", fanout = " + fanout + ")";
+	}
+
+	/**
+	 * 읽은 바이트 수와 파일 해쉬코드를 함께 계산한다.
+	 */
+	private static class DigestCountingInputStream extends FilterInputStream {
+		final MessageDigest digest = Signature.fileDigest();
+		long count = 0;
+
+		DigestCountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) {
+				digest.update((byte)b);
+				count++;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int r = super.read(b, off, len);
+			if (r > 0) {
+				digest.update(b, off, r);
+				count += r;
+			}
+			return r;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			throw new IOException("skip is not supported");
+		}
+	}
+}
@@ -0,0 +1,19 @@
+package net.daum.remotesync;
+
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * 원본파일의 특정 구간을 힙 배열을 거치지 않고 채널로 바로 옮길 수 있는 {@link SourceFileAccess}. 
+ * {@link BuildCodeList#patch(SourceFileAccess, WritableByteChannel)}는 원본이 이 인터페이스를 
+ * 구현하면, 참조블럭을 읽어 복사하는 대신 transferTo를 사용한다. 
+ * 
+ * @author dante
+ * @see SourceMappedFileAccess
+ */
+public interface SourceChannelAccess extends SourceFileAccess {
+	/**
+	 * 원본파일의 offset부터 length 바이트를 out으로 옮긴다. 
+	 * @return 옮긴 바이트 수. 원본이 그보다 짧거나 출력이 더 받지 않으면 length보다 적다.
+	 */
+	long transferTo(long offset, long length, WritableByteChannel out) throws Exception;
+}
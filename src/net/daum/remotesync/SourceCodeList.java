@@ -1,21 +1,27 @@
 package net.daum.remotesync;
 
-import static net.daum.remotesync.PackUtil.read16bit;
-import static net.daum.remotesync.PackUtil.read32bit;
-import static net.daum.remotesync.PackUtil.write16bit;
-import static net.daum.remotesync.PackUtil.write32bit;
+import static net.daum.remotesync.PackUtil.readBlock;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.ArrayList;
-
-import net.daum.disk.file.handler.stream.StreamHandler;
-import net.daum.disk.file.utils.StreamReadResult;
+import java.io.Serializable;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 
 /**
- * 원본 파일로 부터 계산한, 블럭별 해쉬코드 리스트로 ArrayList로 블럭별 {@link Signature}를 담고 있다.
+ * 원본 파일로 부터 계산한, 블럭별 해쉬코드 리스트로 블럭별 {@link Signature}를 담고 있다.
+ * 블럭마다 객체를 만들지 않고, 해쉬값들을 int[]와 byte[] 배열에 이어서 보관한다.
  * 이 객체를 기준으로 {@link BuildCodeList}를 만들어낼 수 있고, BuildCodeList와 SourceFile이 있으면, 
  * 목표파일을 생성해낼 수 있다. 
  * <ol>
@@ -57,16 +63,91 @@ import net.daum.disk.file.utils.StreamReadResult;
  * @see Signature
  */
 
-public class SourceCodeList extends ArrayList<Signature> {
+public class SourceCodeList extends AbstractList<Signature> implements RandomAccess, Serializable {
 	public static final int VERSION1 = 0x71;
+	/**
+	 * 헤더에 SHA1 해쉬값의 길이를 추가해, 해쉬값을 잘라서 보낼 수 있는 포맷.
+	 */
+	public static final int VERSION2 = 0x72;
+	/**
+	 * 헤더에 {@link StrongHash}의 번호를 추가해, SHA1이 아닌 해쉬값을 보낼 수 있는 포맷.
+	 */
+	public static final int VERSION3 = 0x73;
+	/**
+	 * VERSION3의 블럭크기와 블럭갯수를 가변길이 정수로 쓰는 포맷. 64KB보다 큰 블럭크기를 쓸 수 있다.
+	 */
+	public static final int VERSION4 = 0x74;
+	
+	/**
+	 * 잘라서 보낼 수 있는 해쉬값의 최소 길이 
+	 */
+	public static final int MIN_STRONG_LENGTH = 6;
+	/**
+	 * 해쉬값의 최대 길이 (SHA1 해쉬값의 전체 길이) 
+	 */
+	public static final int MAX_STRONG_LENGTH = 20;
 	
 	private static final long serialVersionUID = -5885331537042946256L;
+	
 	private int blockSize = RemoteSync.DEFAULT_BLOCK_SIZE;
+	private StrongHash strongHash = StrongHash.SHA1;
+	private int strongLength = MAX_STRONG_LENGTH;
+	
+	/*
+	 * 블럭별 해쉬코드는 Signature 객체 대신, 빠른 해쉬값 배열과 정확한 해쉬값을 이어붙인 배열에 담아둔다. 
+	 * i번째 블럭의 해쉬값은 strongs[i * strongLength]부터 strongLength 바이트. 
+	 */
+	private int size = 0;
+	private int[] fasts = new int[0];
+	private byte[] strongs = new byte[0];
 	
 	private SourceCodeList() {}
 	
-	private SourceCodeList(int blockSize) {
+	private SourceCodeList(int blockSize, StrongHash strongHash) {
 		this.blockSize = blockSize;
+		this.strongHash = strongHash;
+		this.strongLength = strongHash.getLength();
+	}
+	
+	/**
+	 * 해쉬값을 직접 채워넣을 size개짜리 빈 리스트. {@link #fasts()}, {@link #strongs()} 배열에 값을 채워서 쓴다. 
+	 */
+	static SourceCodeList allocate(int blockSize, StrongHash strongHash, int size) {
+		SourceCodeList sc = new SourceCodeList(blockSize, strongHash);
+		sc.setSize(size);
+		return sc;
+	}
+	
+	/**
+	 * 여러 리스트의 블럭을 차례로 이어붙인 리스트. 블럭크기와 해쉬코드 종류가 같아야 하며, 
+	 * 해쉬값의 길이는 가장 짧은 것에 맞춰 자른다. 
+	 * @see BasisSet
+	 */
+	static SourceCodeList concat(List<SourceCodeList> lists) {
+		SourceCodeList first = lists.get(0);
+		SourceCodeList sc = new SourceCodeList(first.blockSize, first.strongHash);
+		long total = 0;
+		for (SourceCodeList list: lists) {
+			if (list.blockSize != sc.blockSize || list.strongHash != sc.strongHash) {
+				throw new IllegalArgumentException("block size and strong hash must be the same: " + list.blockSize + ", " + list.strongHash);
+			}
+			sc.strongLength = Math.min(sc.strongLength, list.strongLength);
+			total += list.size;
+		}
+		if (total > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("too many blocks: " + total);
+		}
+		sc.setSize((int)total);
+		int index = 0;
+		int h = sc.strongLength;
+		for (SourceCodeList list: lists) {
+			System.arraycopy(list.fasts, 0, sc.fasts, index, list.size);
+			for (int i = 0; i < list.size; i++) {
+				System.arraycopy(list.strongs, i * list.strongLength, sc.strongs, (index + i) * h, h);
+			}
+			index += list.size;
+		}
+		return sc;
 	}
 	
 	/**
@@ -78,24 +159,28 @@ public class SourceCodeList extends ArrayList<Signature> {
 	 * @throws IOException
 	 */
 	public static final SourceCodeList create(InputStream orgFileIn, int blockSize) throws Exception {
+		return create(orgFileIn, blockSize, StrongHash.SHA1);
+	}
+	
+	/**
+	 * 원본파일로 부터 지정한 방식의 해쉬코드로 리스트를 생성한다. 
+	 * @param strongHash 블럭마다 계산할 정확한 해쉬코드. 예) 내부망에서는 {@link StrongHash#MURMUR3_128}
+	 * @see #create(InputStream, int)
+	 */
+	public static final SourceCodeList create(InputStream orgFileIn, int blockSize, StrongHash strongHash) throws Exception {
 		InputStream in = orgFileIn;
 		
-		SourceCodeList sc = new SourceCodeList(blockSize);
+		SourceCodeList sc = new SourceCodeList(blockSize, strongHash);
 		byte[] buf = new byte[blockSize];
 		int r = 0;
+		StrongHash.Hasher hasher = strongHash.newHasher();
 		
-		StreamReadResult readResult = new StreamReadResult();
-		while (true) {
-			StreamHandler.readIntoBufferBuffered(in, buf, blockSize, readResult);
-			r = readResult.readCount;
-			
-			if (r == blockSize) {
-				sc.add(new Signature(buf));
-			}
-			
-			if (readResult.noMoreToRead()) {
-				break;
-			}
+		while ((r = readBlock(in, buf, blockSize)) == blockSize) {
+			sc.ensureCapacity(sc.size + 1);
+			sc.fasts[sc.size] = Signature.fastSignature(buf);
+			hasher.update(buf, 0, blockSize);
+			hasher.digest(sc.strongs, sc.size * sc.strongLength);
+			sc.size++;
 		}
 		
 //		while ((r = in.read(buf)) > 0) {
@@ -106,6 +191,64 @@ public class SourceCodeList extends ArrayList<Signature> {
 		return sc;		
 	}
 
+	/**
+	 * 원본파일로 부터 해쉬코드리스트를 여러 쓰레드에서 나누어 생성한다. 파일을 블럭단위로 정렬된 
+	 * 조각으로 나누어 executor에서 동시에 계산하고, 순서대로 이어붙이므로 결과는 
+	 * {@link #create(InputStream, int)}와 같다. 
+	 * @param channel 원본파일의 FileChannel. 위치를 지정해 읽으므로 현재 position은 바뀌지 않는다.
+	 * @param blockSize 블럭크기
+	 * @param executor 해쉬코드를 계산할 쓰레드풀
+	 * @return 블럭별 {@link Signature}객체가 추가된 {@link SourceCodeList}
+	 */
+	public static final SourceCodeList create(FileChannel channel, int blockSize, ExecutorService executor) throws Exception {
+		return create(channel, blockSize, executor, StrongHash.SHA1);
+	}
+	
+	/**
+	 * 원본파일로 부터 지정한 방식의 해쉬코드로 리스트를 여러 쓰레드에서 나누어 생성한다. 
+	 * @param strongHash 블럭마다 계산할 정확한 해쉬코드
+	 * @see #create(FileChannel, int, ExecutorService)
+	 */
+	public static final SourceCodeList create(FileChannel channel, int blockSize, ExecutorService executor, StrongHash strongHash) throws Exception {
+		SourceCodeList sc = new SourceCodeList(blockSize, strongHash);
+		new ParallelSignatureBuilder(channel, blockSize).build(sc, executor);
+		return sc;
+	}
+	
+	/**
+	 * 원본파일로 부터 해쉬코드리스트를 생성한다. 블럭크기는 파일크기에 맞춰 {@link BlockSizePolicy}로 고른다. 
+	 * @param filename 원본파일 이름
+	 * @see BlockSizePolicy#forSize(long)
+	 */
+	public static final SourceCodeList create(String filename) throws Exception {
+		return create(filename, BlockSizePolicy.forSize(new File(filename).length()));
+	}
+	
+	/**
+	 * 원본파일로 부터 해쉬코드리스트를 CPU 갯수만큼의 쓰레드로 나누어 생성한다. 
+	 * @param filename 원본파일 이름
+	 * @param blockSize 블럭크기
+	 * @see #create(FileChannel, int, ExecutorService)
+	 */
+	public static final SourceCodeList create(String filename, int blockSize) throws Exception {
+		return create(filename, blockSize, StrongHash.SHA1);
+	}
+	
+	/**
+	 * 원본파일로 부터 지정한 방식의 해쉬코드로 리스트를 CPU 갯수만큼의 쓰레드로 나누어 생성한다. 
+	 * @see #create(FileChannel, int, ExecutorService, StrongHash)
+	 */
+	public static final SourceCodeList create(String filename, int blockSize, StrongHash strongHash) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		FileInputStream in = new FileInputStream(filename);
+		try {
+			return create(in.getChannel(), blockSize, executor, strongHash);
+		} finally {
+			in.close();
+			executor.shutdown();
+		}
+	}
+
 	/**
 	 * 해쉬코드를 생성하는데 사용된 블럭크기. 이후 작업의 기준점이 된다. 
 	 * @return 블럭크기 바이트 수
@@ -113,6 +256,95 @@ public class SourceCodeList extends ArrayList<Signature> {
 	public int getBlockSize() {
 		return blockSize;
 	}
+	
+	@Override
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * index번째 블럭의 해쉬코드. 내부 배열의 값을 복사한 {@link Signature} 객체를 돌려준다.
+	 */
+	@Override
+	public Signature get(int index) {
+		if (index < 0 || index >= size) throw new IndexOutOfBoundsException("index = " + index + ", size = " + size);
+		int offset = index * strongLength;
+		return new Signature(fasts[index], Arrays.copyOfRange(strongs, offset, offset + strongLength));
+	}
+	
+	/**
+	 * 블럭 해쉬코드를 뒤에 추가한다. 중간에 끼워넣을 수는 없다.
+	 */
+	@Override
+	public void add(int index, Signature sign) {
+		if (index != size) throw new UnsupportedOperationException("SourceCodeList only supports appending");
+		ensureCapacity(size + 1);
+		fasts[size] = sign.getFast();
+		System.arraycopy(sign.getStrong(), 0, strongs, size * strongLength, strongLength);
+		size++;
+		modCount++;
+	}
+	
+	/**
+	 * index번째 블럭의 빠른 해쉬값. 
+	 */
+	public int getFast(int index) {
+		if (index >= size) throw new IndexOutOfBoundsException("index = " + index + ", size = " + size);
+		return fasts[index];
+	}
+	
+	/**
+	 * 블럭마다 계산한 정확한 해쉬코드의 종류. 목표파일을 비교할 때도 같은 방식으로 계산한다. 
+	 */
+	public StrongHash getStrongHash() {
+		return strongHash;
+	}
+	
+	/**
+	 * 보관중인 해쉬값의 길이. 잘라서 보낸 리스트를 unpack했다면 {@link StrongHash#getLength()}보다 짧다. 
+	 */
+	public int getStrongLength() {
+		return strongLength;
+	}
+	
+	/**
+	 * 빠른 해쉬값 배열. 앞에서부터 size()개만 유효하다. 복사하지 않으므로 수정하면 안된다. 
+	 */
+	int[] fasts() {
+		return fasts;
+	}
+	
+	/**
+	 * 정확한 해쉬값을 이어붙인 배열. 앞에서부터 size() * getStrongLength() 바이트만 유효하다. 
+	 * 복사하지 않으므로 수정하면 안된다. 
+	 */
+	byte[] strongs() {
+		return strongs;
+	}
+	
+	/**
+	 * 최소 capacity개의 블럭을 담을 수 있게 배열을 늘린다. 
+	 */
+	void ensureCapacity(int capacity) {
+		if (capacity <= fasts.length) return;
+		// 정확한 해쉬값을 하나의 배열에 이어붙이므로, 블럭 갯수는 배열 크기의 한계를 넘을 수 없다.
+		int max = (Integer.MAX_VALUE - 8) / strongLength;
+		if (capacity > max) {
+			throw new IllegalArgumentException("too many blocks: " + capacity + ", use a larger block size");
+		}
+		int grown = (int)Math.min(max, Math.max(capacity, fasts.length + (fasts.length >> 1) + 16L));
+		fasts = Arrays.copyOf(fasts, grown);
+		strongs = Arrays.copyOf(strongs, grown * strongLength);
+	}
+	
+	/**
+	 * 블럭 갯수를 지정한다. 배열에 값을 직접 채워넣은 뒤에 사용한다. 
+	 */
+	void setSize(int size) {
+		ensureCapacity(size);
+		this.size = size;
+		modCount++;
+	}
 
 	
 	/**
@@ -122,48 +354,238 @@ public class SourceCodeList extends ArrayList<Signature> {
 	 * @throws IOException
 	 */
 	public static final SourceCodeList unpack(InputStream in, OutputStream fileOut) throws Exception {
-		int version = in.read();
-		if (version != VERSION1) {
-			throw new RuntimeException("SOURCE_CODES Version mismatch");
+		return unpack(new PackInput(in, fileOut));
+	}
+	
+	/**
+	 * 채널에서 수신한 binary data로 부터 SourceCodeList 만들기. 
+	 * @param fileOut 읽은 내용을 그대로 복사해둘 채널. 필요없으면 null
+	 * @see #unpack(InputStream, OutputStream)
+	 */
+	public static final SourceCodeList unpack(ReadableByteChannel in, WritableByteChannel fileOut) throws Exception {
+		return unpack(new PackInput(in, fileOut));
+	}
+	
+	static SourceCodeList unpack(PackInput in) throws Exception {
+		return unpack(in, Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * @param maxBlocks 받아들이는 최대 블럭갯수. 헤더의 갯수가 이보다 많으면 배열을 만들기 전에 실패한다.
+	 */
+	static SourceCodeList unpack(PackInput in, long maxBlocks) throws Exception {
+		Reader reader = new Reader(in, maxBlocks);
+		reader.read(reader.getCount());
+		return reader.getSourceCodeList();
+	}
+	
+	/**
+	 * 수신중인 리스트를 나누어 읽는다. 헤더를 읽을 때 블럭 갯수만큼 배열을 미리 늘려두므로, 
+	 * 읽는 동안 {@link #fasts()}, {@link #strongs()} 배열은 바뀌지 않는다. 
+	 * 받은 블럭부터 색인에 넣을 수 있다. ({@link ReferenceTable#add(int)})
+	 * 헤더의 블럭 갯수는 상대편이 보낸 값이므로, 만든 쪽이 정한 최대 갯수를 넘으면 배열을 늘리기 전에 실패한다. 
+	 */
+	static class Reader {
+		private final PackInput in;
+		private final SourceCodeList list;
+		private final int count;
+		
+		/**
+		 * @param maxBlocks 받아들이는 최대 블럭갯수. 예) {@link RemoteSync#MAX_REMOTE_BLOCKS}
+		 */
+		Reader(PackInput in, long maxBlocks) throws Exception {
+			this.in = in;
+			int version = in.readByte();
+			if (version != VERSION1 && version != VERSION2 && version != VERSION3 && version != VERSION4) {
+				throw new RuntimeException("SOURCE_CODES Version mismatch");
+			}
+			long blockSize = version == VERSION4 ? in.readNumber() : in.read16bit();
+			if (blockSize <= 0 || blockSize > Integer.MAX_VALUE) {
+				throw new RuntimeException("invalid block size = " + blockSize);
+			}
+			StrongHash strongHash = StrongHash.SHA1;
+			if (version == VERSION3 || version == VERSION4) {
+				strongHash = StrongHash.forId(in.readByte());
+			}
+			int strongLength = strongHash.getLength();
+			if (version != VERSION1) {
+				strongLength = in.readByte();
+				if (strongLength < MIN_STRONG_LENGTH || strongLength > strongHash.getLength()) {
+					throw new RuntimeException("invalid strong signature length = " + strongLength);
+				}
+			}
+			long count = version == VERSION4 ? in.readNumber() : in.read32bit();
+			if (count > Integer.MAX_VALUE || count > maxBlocks) {
+				throw new RuntimeException("too many blocks = " + count);
+			}
+			list = new SourceCodeList((int)blockSize, strongHash);
+			list.strongLength = strongLength;
+			list.ensureCapacity((int)count);
+			this.count = (int)count;
+			
+			// 남은 길이를 알고 있으므로, 버퍼크기만큼씩 미리 읽어 배열에 나누어 담는다.
+			in.setRemaining(count * (4 + strongLength));
 		}
-		int blockSize = read16bit(in, fileOut);
-		long count = read32bit(in, fileOut);
-		SourceCodeList sc = new SourceCodeList(blockSize);
-		for (long i = 0; i < count; i++) {
-			sc.add(Signature.unpack(in, fileOut));
+		
+		/**
+		 * 헤더에 적힌 블럭 갯수
+		 */
+		int getCount() {
+			return count;
+		}
+		
+		/**
+		 * 지금까지 읽은 리스트
+		 */
+		SourceCodeList getSourceCodeList() {
+			return list;
+		}
+		
+		boolean isComplete() {
+			return list.size == count;
+		}
+		
+		/**
+		 * 최대 max개의 블럭을 더 읽는다. 
+		 * @return 읽은 블럭 갯수
+		 */
+		int read(int max) throws Exception {
+			int end = (int)Math.min(count, (long)list.size + max);
+			int start = list.size;
+			int h = list.strongLength;
+			while (list.size < end) {
+				list.fasts[list.size] = in.readInt();
+				in.readFully(list.strongs, list.size * h, h);
+				list.size++;
+			}
+			list.modCount++;
+			return end - start;
 		}
-		return sc;
 	}
 	
 	/**
-	 * 네트워크로 송신하기 위한 binary data 만들기.
+	 * 네트워크로 송신하기 위한 binary data 만들기. 보관중인 해쉬값을 모두 보낸다.  
 	 * @param out 바이너리 데이타를 쓸 OutputStream (주로, 네트워크 아웃풋스트림)
 	 * @return 쓴 바이트 수 
 	 * @throws IOException
 	 */
 	public long pack(OutputStream out) throws Exception {
-		out.write(VERSION1);
-		write16bit(out, blockSize);
-		write32bit(out, this.size());
-		
-		long written = 1 + 2 + 4;
-		OutputStream debugOut = null; // had been here for debug purpose.
-		
-		for (Signature sign: this) {
-			write32bit(out, sign.getFast());
-			out.write(sign.getStrong());
-			if (debugOut != null) {
-				debugOut.write(sign.getStrongBase64().getBytes());
-			}
-			written += 24;
+		return pack(out, strongLength);
+	}
+	
+	/**
+	 * 네트워크로 송신하기 위한 binary data 만들기. 블럭마다 해쉬값의 앞부분 strongLength 바이트만 보낸다.
+	 * SHA1 해쉬값 전체를 보낼 때는 이전 버전과 호환되는 {@link #VERSION1}, 잘라서 보낼 때는 {@link #VERSION2}, 
+	 * SHA1이 아닌 해쉬값은 {@link #VERSION3} 포맷을 쓴다. 블럭크기가 64KB보다 크면 {@link #VERSION4} 포맷을 쓴다. 
+	 * <pre>
+	 * VERSION3: [VERSION3][blockSize:16][strongHash:8][strongLength:8][count:32] ([fast:32][strong])*
+	 * VERSION4: [VERSION4][blockSize][strongHash:8][strongLength:8][count] ([fast:32][strong])*
+	 * </pre>
+	 * VERSION4의 blockSize와 count는 가변길이 정수다. ({@link PackOutput#writeNumber(long)})
+	 * <p>
+	 * 해쉬값을 잘라 보내면 서로 다른 블럭이 같은 블럭으로 판단될 확률이 커지므로, 받는 쪽에서는 
+	 * 파일 전체의 해쉬값으로 결과를 확인해야 한다. 일치하지 않으면 전체 길이로 다시 보내 동기화한다.
+	 * </p>
+	 * @param out 바이너리 데이타를 쓸 OutputStream (주로, 네트워크 아웃풋스트림)
+	 * @param strongLength 보낼 해쉬값의 길이. {@link #chooseStrongLength}참조.
+	 * @return 쓴 바이트 수 
+	 */
+	public long pack(OutputStream out, int strongLength) throws Exception {
+		return pack(new PackOutput(out, packedLength(strongLength)), strongLength);
+	}
+	
+	/**
+	 * 채널로 송신하기 위한 binary data 만들기. 
+	 * @see #pack(OutputStream, int)
+	 */
+	public long pack(WritableByteChannel out, int strongLength) throws Exception {
+		return pack(new PackOutput(out, packedLength(strongLength)), strongLength);
+	}
+	
+	private long packedLength(int strongLength) {
+		return 1 + 9 + 1 + 1 + 9 + (long)size * (4 + strongLength);
+	}
+	
+	private long pack(PackOutput out, int strongLength) throws Exception {
+		long written = packHeader(out, strongLength, size) + packBlocks(out, strongLength, 0, size);
+		out.flush();
+		return written;
+	}
+	
+	/**
+	 * 헤더만 출력한다. 해쉬값은 {@link #packBlocks}로 나누어 출력할 수 있다. 
+	 * @param count 헤더에 쓸 블럭 갯수. 해쉬값을 조금씩 계산해서 보낼 때는 이 리스트의 size()보다 클 수 있다. 
+	 * @return 쓴 바이트 수
+	 */
+	long packHeader(PackOutput out, int strongLength, int count) throws Exception {
+		if (strongLength < MIN_STRONG_LENGTH || strongLength > this.strongLength) {
+			throw new IllegalArgumentException("invalid strong signature length = " + strongLength);
 		}
-		
-		if (debugOut != null) {
-			debugOut.close();
+		long written;
+		if (blockSize > BuildCodeList.MAX_BLOCK_SIZE_V2) {
+			out.write8bit(VERSION4);
+			written = 1 + out.writeNumber(blockSize);
+			out.write8bit(strongHash.getId());
+			out.write8bit(strongLength);
+			written += 1 + 1 + out.writeNumber(count);
+		} else if (strongHash != StrongHash.SHA1) {
+			out.write8bit(VERSION3);
+			out.write16bit(blockSize);
+			out.write8bit(strongHash.getId());
+			out.write8bit(strongLength);
+			out.write32bit(count);
+			written = 1 + 2 + 1 + 1 + 4;
+		} else if (strongLength == MAX_STRONG_LENGTH) {
+			out.write8bit(VERSION1);
+			out.write16bit(blockSize);
+			out.write32bit(count);
+			written = 1 + 2 + 4;
+		} else {
+			out.write8bit(VERSION2);
+			out.write16bit(blockSize);
+			out.write8bit(strongLength);
+			out.write32bit(count);
+			written = 1 + 2 + 1 + 4;
 		}
 		return written;
 	}
 	
+	/**
+	 * from번째부터 to 앞까지 블럭의 해쉬값을 출력한다. 
+	 * @return 쓴 바이트 수
+	 */
+	long packBlocks(PackOutput out, int strongLength, int from, int to) throws Exception {
+		for (int i = from; i < to; i++) {
+			out.write32bit(fasts[i]);
+			out.write(strongs, i * this.strongLength, strongLength);
+		}
+		return (long)(to - from) * (4 + strongLength);
+	}
+	
+	/**
+	 * 동기화에 충분한 해쉬값의 길이를 고른다. Rsync와 같은 방식으로, 파일크기와 블럭 갯수로부터 
+	 * 서로 다른 블럭을 같다고 판단할 확률이 충분히 작아지는 비트수를 계산한다. 
+	 * (10 + 2 * log2(파일크기) - log2(블럭크기) - 빠른해쉬 32비트 + 1) 
+	 * @return {@link #MIN_STRONG_LENGTH} ~ {@link #MAX_STRONG_LENGTH} 사이의 바이트 수 
+	 */
+	public static int chooseStrongLength(long fileSize, int blockSize) {
+		int bits = 10 + 2 * log2(fileSize) - log2(blockSize) - 32 + 1;
+		int bytes = (bits + 7) / 8;
+		return Math.max(MIN_STRONG_LENGTH, Math.min(MAX_STRONG_LENGTH, bytes));
+	}
+	
+	/**
+	 * 이 리스트에 알맞은 해쉬값의 길이. 
+	 * @see #chooseStrongLength(long, int)
+	 */
+	public int chooseStrongLength() {
+		return Math.min(strongLength, chooseStrongLength((long)size * blockSize, blockSize));
+	}
+	
+	private static int log2(long n) {
+		return n <= 1 ? 0 : 63 - Long.numberOfLeadingZeros(n);
+	}
+	
 	/**
 	 * 목표파일을 읽어서, 소스코드와의 차이점 분석.
 	 * @param newFileIn 목표파일의 InputStream
@@ -176,6 +598,68 @@ public class SourceCodeList extends ArrayList<Signature> {
 		return BuildCodeList.create(this, newFileIn, rawLimit, oversizeCheck);
 	}
 	
+	/**
+	 * 목표파일을 읽어서, 빌드코드가 결정되는 즉시 sink로 넘긴다. {@link BuildCodeList}를 만들지 않으므로
+	 * 목표파일의 크기와 상관없이 블럭크기 + rawLimit 정도의 메모리만 사용한다.
+	 * @param newFileIn 목표파일의 InputStream
+	 * @param sink 빌드코드를 받을 객체. 마지막에 {@link BuildCodeSink#finish(byte[])}가 목표파일의 해쉬코드와 함께 호출된다.
+	 * @param rawLimit 일치하지 않는 부분의 최대크기.
+	 * @return 목표파일에서 읽은 바이트 수
+	 */
+	public long generateBuildCodes(InputStream newFileIn, BuildCodeSink sink, long rawLimit) throws Exception {
+		return BuildCodeList.generate(this, newFileIn, rawLimit, sink);
+	}
+	
+	/**
+	 * 목표파일을 읽어서, 빌드코드를 바로 바이너리 포맷({@link BuildCodeList#STREAM_VERSION2})으로 출력한다. 
+	 * 블럭크기나 블럭갯수, rawLimit이 STREAM_VERSION2로 표현할 수 없을만큼 크면 {@link BuildCodeList#STREAM_VERSION3}으로 출력한다. 
+	 * 받는 쪽에서는 {@link BuildCodeList#unpack}으로 읽을 수 있다. 
+	 * @param newFileIn 목표파일의 InputStream
+	 * @param netOut 빌드코드를 쓸 출력스트림 (주로, 네트워크 아웃풋스트림)
+	 * @param rawLimit 일치하지 않는 부분의 최대크기. 4MB 이상이면 STREAM_VERSION3으로 출력한다. 
+	 * @return 쓴 바이트 수
+	 */
+	public long generateBuildCodes(InputStream newFileIn, OutputStream netOut, long rawLimit) throws Exception {
+		return generateBuildCodes(newFileIn, netOut, rawLimit, null);
+	}
+	
+	/**
+	 * 목표파일을 읽어서, raw 데이타를 압축한 빌드코드를 바로 바이너리 포맷({@link BuildCodeList#STREAM_VERSION2})으로 출력한다. 
+	 * @param compression raw 데이타의 압축설정. null이면 압축하지 않는다.
+	 * @return 쓴 바이트 수
+	 * @see #generateBuildCodes(InputStream, OutputStream, long)
+	 */
+	public long generateBuildCodes(InputStream newFileIn, OutputStream netOut, long rawLimit, RawCompression compression) throws Exception {
+		BuildCodeWriter writer = new BuildCodeWriter(netOut, blockSize, BuildCodeList.streamVersionFor(blockSize, size, rawLimit), compression);
+		generateBuildCodes(newFileIn, writer, rawLimit);
+		return writer.getWritten();
+	}
+	
+	public long generateBuildCodes(InputStream newFileIn, OutputStream netOut) throws Exception {
+		return generateBuildCodes(newFileIn, netOut, RemoteSync.DEFAULT_RAW_LIMIT);
+	}
+	
+	/**
+	 * 목표파일을 큰 구간으로 나누어 executor의 여러 쓰레드에서 함께 비교한다. 구간 경계에 걸친 블럭도 찾아서 이어붙이므로,
+	 * 결과는 {@link #generateBuildCodes(InputStream, BuildCodeSink, long)}로 순서대로 읽은 것과 같다.
+	 * 이어붙일 때까지 구간의 결과를 메모리에 두므로, 쓰레드 갯수의 두배 정도의 구간(하나에 8MB)만큼의 메모리를 더 쓴다.
+	 * @param target 목표파일의 채널. 위치를 지정해서 읽으므로 채널의 position은 바뀌지 않는다.
+	 * @param sink 빌드코드를 받을 객체. 호출한 쓰레드에서 순서대로 호출된다.
+	 * @param executor 구간을 처리할 쓰레드풀
+	 * @return 목표파일의 크기
+	 */
+	public long generateBuildCodes(FileChannel target, BuildCodeSink sink, long rawLimit, ExecutorService executor) throws Exception {
+		return new ParallelBuildCodeGenerator(this, target, executor).generate(sink, rawLimit);
+	}
+	
+	/**
+	 * 목표파일을 여러 쓰레드에서 함께 비교해서 {@link BuildCodeList}를 만든다.
+	 * @see #generateBuildCodes(FileChannel, BuildCodeSink, long, ExecutorService)
+	 */
+	public BuildCodeList generateBuildCodes(FileChannel target, ExecutorService executor) throws Exception {
+		return BuildCodeList.create(this, target, RemoteSync.DEFAULT_RAW_LIMIT, executor, ParallelBuildCodeGenerator.SEGMENT_SIZE);
+	}
+	
 	/**
 	 * 목표파일을 읽어서, 소스코드와의 차이점 분석. 일치하지 않는 부분의 최대크기는 4MB - 1byte로 최대값 지정.
 	 * @param targetFileIn 목표파일 InputStream
@@ -0,0 +1,74 @@
+package net.daum.remotesync;
+
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * FileChannel을 이용한 {@link SourceFileAccess}. 파일을 일정크기의 MappedByteBuffer 구간으로 
+ * 나누어 매핑해두고 읽으므로, 블럭마다 seek/read 시스템콜을 부르지 않는다. 
+ * 채널로 출력할 때는 {@link #transferTo}로 원본 데이타가 힙을 거치지 않고 바로 복사된다. 
+ * 
+ * @author dante
+ */
+public class SourceMappedFileAccess implements SourceChannelAccess {
+	/**
+	 * 한번에 매핑하는 구간의 크기. 
+	 */
+	public static final int WINDOW_SIZE = 64 * 1024 * 1024;
+	
+	private final RandomAccessFile f;
+	private final FileChannel channel;
+	private final long size;
+	
+	private MappedByteBuffer window;
+	private long windowStart = -1;
+	private long pos = 0;
+
+	public SourceMappedFileAccess(String filename) throws Exception {
+		f = new RandomAccessFile(filename, "r");
+		channel = f.getChannel();
+		size = channel.size();
+	}
+
+	@Override
+	public void seek(long offset) throws Exception {
+		pos = offset;
+	}
+
+	@Override
+	public long read(byte[] buf) throws Exception {
+		int read = 0;
+		while (read < buf.length && pos < size) {
+			if (window == null || pos < windowStart || pos >= windowStart + window.capacity()) {
+				windowStart = pos - pos % WINDOW_SIZE;
+				window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(WINDOW_SIZE, size - windowStart));
+			}
+			int offset = (int)(pos - windowStart);
+			int length = Math.min(buf.length - read, window.capacity() - offset);
+			window.position(offset);
+			window.get(buf, read, length);
+			read += length;
+			pos += length;
+		}
+		return read;
+	}
+
+	@Override
+	public long transferTo(long offset, long length, WritableByteChannel out) throws Exception {
+		long transferred = 0;
+		while (transferred < length) {
+			long r = channel.transferTo(offset + transferred, length - transferred, out);
+			// 열어둔 뒤에 파일이 줄었거나 출력이 더 받지 않으면, 옮긴 만큼만 돌려준다.
+			if (r <= 0) break;
+			transferred += r;
+		}
+		return transferred;
+	}
+	
+	public void close() throws Exception {
+		window = null;
+		f.close();
+	}
+}
@@ -9,6 +9,13 @@ public class SourceRandomFileAccess implements SourceFileAccess {
 		f = new RandomAccessFile(filename, "r");
 	}
 	
+	/**
+	 * 이미 연 파일을 읽는다. close하면 f도 닫힌다.
+	 */
+	SourceRandomFileAccess(RandomAccessFile f) {
+		this.f = f;
+	}
+	
 	@Override
 	public void seek(long offset) throws Exception {
 		f.seek(offset);
@@ -0,0 +1,258 @@
+package net.daum.remotesync;
+
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * 블럭이 정말 일치하는지 확인하는 정확한 해쉬코드의 계산방식. {@link SourceCodeList}마다 하나를 골라 쓰고,
+ * 바이너리 포맷의 헤더에 {@link #getId()}로 기록한다.
+ * <ul>
+ * <li>{@link #SHA1}: 기본값. 이전 버전과 호환된다.</li>
+ * <li>{@link #MURMUR3_128}: 암호학적으로 안전하지 않은 128비트 해쉬. SHA1보다 훨씬 빠르므로,
+ *     블럭내용을 일부러 충돌시킬 염려가 없는 내부망에서 사용한다.</li>
+ * </ul>
+ * 해쉬값 계산은 {@link Hasher}로 하며, Hasher는 쓰레드간에 공유할 수 없다.
+ * 쓰레드마다 하나씩 재사용하려면 {@link #hash(byte[], int, int)}를 쓴다.
+ *
+ * @author dante
+ * @see SourceCodeList#create(java.io.InputStream, int, StrongHash)
+ */
+public abstract class StrongHash implements Serializable {
+	private static final long serialVersionUID = 4168244385621870871L;
+
+	/**
+	 * 블럭 해쉬값을 계산하는 객체. 내부상태를 재사용하므로, 한 쓰레드에서만 사용해야 한다.
+	 */
+	public interface Hasher {
+		void update(byte[] buf, int offset, int length);
+
+		/**
+		 * 지금까지 넣은 데이타의 해쉬값을 dest[offset]부터 {@link StrongHash#getLength()} 바이트에 쓰고, 처음 상태로 돌아간다.
+		 */
+		void digest(byte[] dest, int offset);
+	}
+
+	/**
+	 * SHA1 (20바이트).
+	 */
+	public static final StrongHash SHA1 = new StrongHash(0, "SHA-1", 20) {
+		private static final long serialVersionUID = -8050089751592622549L;
+
+		@Override
+		public Hasher newHasher() {
+			final MessageDigest md;
+			try {
+				md = MessageDigest.getInstance("SHA-1");
+			} catch (NoSuchAlgorithmException e) {
+				throw new RuntimeException("there is no SHA1 module");
+			}
+			return new Hasher() {
+				public void update(byte[] buf, int offset, int length) {
+					md.update(buf, offset, length);
+				}
+				public void digest(byte[] dest, int offset) {
+					try {
+						md.digest(dest, offset, 20);
+					} catch (DigestException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+		}
+	};
+
+	/**
+	 * MurmurHash3 x64 128비트 (16바이트, seed 0).
+	 */
+	public static final StrongHash MURMUR3_128 = new StrongHash(1, "MurmurHash3-128", 16) {
+		private static final long serialVersionUID = 6000313540394087339L;
+
+		@Override
+		public Hasher newHasher() {
+			return new Murmur3Hasher();
+		}
+	};
+
+	private final int id;
+	private final String name;
+	private final int length;
+	private transient ThreadLocal<Hasher> hashers;
+
+	private StrongHash(int id, String name, int length) {
+		this.id = id;
+		this.name = name;
+		this.length = length;
+	}
+
+	/**
+	 * 바이너리 포맷에 기록하는 번호
+	 */
+	public int getId() {
+		return id;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * 해쉬값의 바이트 수
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * 새로운 {@link Hasher}.
+	 */
+	public abstract Hasher newHasher();
+
+	/**
+	 * 호출한 쓰레드의 {@link Hasher}를 재사용해서 해쉬값을 계산한다.
+	 * 블럭마다 MessageDigest를 찾아 만드는 비용이 없다.
+	 * @return 새로 만든 {@link #getLength()} 바이트 배열
+	 */
+	public byte[] hash(byte[] buf, int offset, int len) {
+		Hasher hasher = threadLocalHasher();
+		hasher.update(buf, offset, len);
+		byte[] result = new byte[length];
+		hasher.digest(result, 0);
+		return result;
+	}
+
+	private synchronized Hasher threadLocalHasher() {
+		if (hashers == null) {
+			hashers = new ThreadLocal<Hasher>() {
+				@Override
+				protected Hasher initialValue() {
+					return newHasher();
+				}
+			};
+		}
+		return hashers.get();
+	}
+
+	/**
+	 * 바이너리 포맷에 기록된 번호로 계산방식 찾기.
+	 */
+	public static StrongHash forId(int id) {
+		if (id == SHA1.id) return SHA1;
+		if (id == MURMUR3_128.id) return MURMUR3_128;
+		throw new RuntimeException("unknown strong hash = " + id);
+	}
+
+	protected Object readResolve() throws ObjectStreamException {
+		return forId(id);
+	}
+
+	public String toString() {
+		return name;
+	}
+
+	/**
+	 * MurmurHash3_x64_128을 나누어 넣을 수 있게 구현했다. 16바이트가 안되는 나머지는 모아두었다가 다음 데이타와 이어서 계산한다.
+	 */
+	static class Murmur3Hasher implements Hasher {
+		private static final long C1 = 0x87c37b91114253d5L;
+		private static final long C2 = 0x4cf5ad432745937fL;
+
+		private long h1, h2;
+		private long total;
+		private final byte[] tail = new byte[16];
+		private int tailSize;
+
+		public void update(byte[] buf, int offset, int length) {
+			total += length;
+			int end = offset + length;
+			if (tailSize > 0) {
+				int n = Math.min(16 - tailSize, length);
+				System.arraycopy(buf, offset, tail, tailSize, n);
+				tailSize += n;
+				offset += n;
+				if (tailSize < 16) return;
+				mix(getLong(tail, 0), getLong(tail, 8));
+				tailSize = 0;
+			}
+			while (end - offset >= 16) {
+				mix(getLong(buf, offset), getLong(buf, offset + 8));
+				offset += 16;
+			}
+			tailSize = end - offset;
+			System.arraycopy(buf, offset, tail, 0, tailSize);
+		}
+
+		private void mix(long k1, long k2) {
+			h1 ^= mixK1(k1);
+			h1 = Long.rotateLeft(h1, 27);
+			h1 += h2;
+			h1 = h1 * 5 + 0x52dce729;
+
+			h2 ^= mixK2(k2);
+			h2 = Long.rotateLeft(h2, 31);
+			h2 += h1;
+			h2 = h2 * 5 + 0x38495ab5;
+		}
+
+		public void digest(byte[] dest, int offset) {
+			long k1 = 0, k2 = 0;
+			for (int i = tailSize - 1; i >= 8; i--) {
+				k2 = (k2 << 8) | (tail[i] & 0xFF);
+			}
+			for (int i = Math.min(tailSize, 8) - 1; i >= 0; i--) {
+				k1 = (k1 << 8) | (tail[i] & 0xFF);
+			}
+			h1 ^= mixK1(k1);
+			h2 ^= mixK2(k2);
+
+			h1 ^= total;
+			h2 ^= total;
+			h1 += h2;
+			h2 += h1;
+			h1 = fmix(h1);
+			h2 = fmix(h2);
+			h1 += h2;
+			h2 += h1;
+
+			putLong(dest, offset, h1);
+			putLong(dest, offset + 8, h2);
+			h1 = h2 = total = 0;
+			tailSize = 0;
+		}
+
+		private static long mixK1(long k1) {
+			k1 *= C1;
+			k1 = Long.rotateLeft(k1, 31);
+			return k1 * C2;
+		}
+
+		private static long mixK2(long k2) {
+			k2 *= C2;
+			k2 = Long.rotateLeft(k2, 33);
+			return k2 * C1;
+		}
+
+		private static long fmix(long k) {
+			k ^= k >>> 33;
+			k *= 0xff51afd7ed558ccdL;
+			k ^= k >>> 33;
+			k *= 0xc4ceb9fe1a85ec53L;
+			k ^= k >>> 33;
+			return k;
+		}
+
+		private static long getLong(byte[] buf, int offset) {
+			return (buf[offset] & 0xFFL) | (buf[offset + 1] & 0xFFL) << 8 | (buf[offset + 2] & 0xFFL) << 16
+					| (buf[offset + 3] & 0xFFL) << 24 | (buf[offset + 4] & 0xFFL) << 32 | (buf[offset + 5] & 0xFFL) << 40
+					| (buf[offset + 6] & 0xFFL) << 48 | (buf[offset + 7] & 0xFFL) << 56;
+		}
+
+		private static void putLong(byte[] buf, int offset, long v) {
+			for (int i = 0; i < 8; i++) {
+				buf[offset + i] = (byte)(v >>> (8 * i));
+			}
+		}
+	}
+}
@@ -0,0 +1,238 @@
+package net.daum.remotesync;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 여러 클라이언트의 {@link ChannelSync#upload(ByteChannel, String, File)}를 함께 처리하는 서버.
+ * <ul>
+ * <li>접속마다 세션 하나를 쓰레드 풀에서 처리한다. 동시에 처리하는 세션은 maxSessions개이고, 나머지는 접속한 순서대로 기다린다.
+ *     세션마다 쓰레드를 하나씩 쓰는 executor(예: 가상 쓰레드)를 줄 수도 있다. 이때도 메모리와 CPU는 {@link SessionScheduler}가 제한한다.</li>
+ * <li>세션은 원본파일의 블럭크기가 정해지면 {@link ChannelSync#sessionMemory(int)}만큼을 {@link SessionScheduler}에 예약한다.
+ *     세션 하나의 메모리는 파일 크기와 상관없으므로, 서버 전체의 메모리는 예산을 넘지 않는다.</li>
+ * <li>해쉬코드 계산은 조각마다 CPU 자리를 얻어서 하므로, 큰 파일과 작은 파일의 세션이 번갈아 처리된다.</li>
+ * </ul>
+ *
+ * <pre>
+ * SyncServer server = new SyncServer(rootDir, 64 * 1024 * 1024, 256);
+ * InetSocketAddress address = server.start(new InetSocketAddress(8730));
+ * ...
+ * server.close();
+ * </pre>
+ *
+ * @author dante
+ * @see ChannelSync
+ * @see SessionScheduler
+ */
+public class SyncServer {
+	private final File root;
+	private final SessionScheduler scheduler;
+	private final ExecutorService sessions;
+	private final AtomicInteger queued = new AtomicInteger();
+	private final AtomicInteger active = new AtomicInteger();
+	private final AtomicInteger peakActive = new AtomicInteger();
+	private final AtomicInteger completed = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+	private final AtomicLong written = new AtomicLong();
+	private volatile Exception lastFailure;
+	private ServerSocketChannel server;
+	private Thread acceptor;
+
+	/**
+	 * CPU 자리는 프로세서 갯수만큼 둔다.
+	 * @see #SyncServer(File, long, int, int)
+	 */
+	public SyncServer(File root, long memoryBudget, int maxSessions) {
+		this(root, memoryBudget, maxSessions, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param root 원본파일들의 디렉토리
+	 * @param memoryBudget 모든 세션이 함께 쓸 수 있는 메모리 바이트 수
+	 * @param maxSessions 동시에 처리하는 세션 수
+	 * @param cpuSlots 해쉬코드를 동시에 계산할 수 있는 세션 수
+	 */
+	public SyncServer(File root, long memoryBudget, int maxSessions, int cpuSlots) {
+		this(root, new SessionScheduler(memoryBudget, cpuSlots), fixedPool(maxSessions));
+	}
+
+	/**
+	 * 세션을 실행할 executor를 직접 준다. 
+	 * 예) Java 21의 Executors.newVirtualThreadPerTaskExecutor()를 주면, 접속마다 가상 쓰레드에서 처리하고 
+	 * 메모리 예산과 CPU 자리만으로 동시에 처리하는 세션을 제한한다. 
+	 * @param scheduler 모든 세션이 함께 쓰는 메모리 예산과 CPU 자리
+	 * @param sessions 세션을 실행할 executor. {@link #close()}에서 shutdown한다.
+	 */
+	public SyncServer(File root, SessionScheduler scheduler, ExecutorService sessions) {
+		this.root = root;
+		this.scheduler = scheduler;
+		this.sessions = sessions;
+	}
+
+	private static ExecutorService fixedPool(int maxSessions) {
+		if (maxSessions < 1) {
+			throw new IllegalArgumentException("maxSessions = " + maxSessions);
+		}
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(maxSessions, maxSessions, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	/**
+	 * 주소에 바인드하고, 데몬 쓰레드에서 접속을 받기 시작한다.
+	 * @return 바인드한 주소. 포트를 0으로 주면 정해진 포트를 알 수 있다.
+	 */
+	public synchronized InetSocketAddress start(InetSocketAddress address) throws Exception {
+		if (server != null) {
+			throw new IllegalStateException("already started");
+		}
+		server = ServerSocketChannel.open();
+		server.socket().bind(address);
+		final ServerSocketChannel s = server;
+		acceptor = new Thread("SyncServer-" + s.socket().getLocalPort()) {
+			public void run() {
+				long backoff = 0;
+				while (s.isOpen()) {
+					try {
+						submit(s.accept());
+						backoff = 0;
+					} catch (Exception e) {
+						// close()로 닫혔거나 접속을 받지 못했다. 닫히지 않았으면 다음 접속을 받는다.
+						// 파일 디스크립터가 모자랄 때처럼 계속 실패하면 바로 다시 받지 않고, 최대 1초까지 기다리는 시간을 늘린다.
+						if (!s.isOpen()) break;
+						lastFailure = e;
+						backoff = Math.min(Math.max(backoff * 2, 10), 1000);
+						try {
+							Thread.sleep(backoff);
+						} catch (InterruptedException ie) {
+							break;
+						}
+					}
+				}
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+		return (InetSocketAddress)s.socket().getLocalSocketAddress();
+	}
+
+	/**
+	 * 접속 하나를 세션으로 처리한다. 처리가 끝나면 채널을 닫는다.
+	 * @throws RejectedExecutionException executor가 세션을 받지 않으면 채널을 닫고 던진다. 예) {@link #close()}한 뒤
+	 */
+	public void submit(final ByteChannel channel) {
+		queued.incrementAndGet();
+		try {
+			execute(channel);
+		} catch (RejectedExecutionException e) {
+			queued.decrementAndGet();
+			try {
+				channel.close();
+			} catch (Exception ignored) {
+			}
+			throw e;
+		}
+	}
+
+	private void execute(final ByteChannel channel) {
+		sessions.execute(new Runnable() {
+			public void run() {
+				queued.decrementAndGet();
+				int n = active.incrementAndGet();
+				int peak;
+				while (n > (peak = peakActive.get()) && !peakActive.compareAndSet(peak, n)) {
+				}
+				try {
+					if (channel instanceof SocketChannel) {
+						((SocketChannel)channel).socket().setTcpNoDelay(true);
+					}
+					written.addAndGet(ChannelSync.serve(channel, root, scheduler));
+					completed.incrementAndGet();
+				} catch (Exception e) {
+					lastFailure = e;
+					failed.incrementAndGet();
+				} finally {
+					active.decrementAndGet();
+					try {
+						channel.close();
+					} catch (Exception ignored) {
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * 접속을 더 받지 않고, 처리 중인 세션과 기다리는 세션이 끝날 때까지 기다린다.
+	 */
+	public void close() throws Exception {
+		synchronized (this) {
+			if (server != null) server.close();
+		}
+		if (acceptor != null) acceptor.join();
+		sessions.shutdown();
+		sessions.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+	}
+
+	public SessionScheduler getScheduler() {
+		return scheduler;
+	}
+
+	/**
+	 * 처리 중인 세션 수
+	 */
+	public int getActiveSessions() {
+		return active.get();
+	}
+
+	/**
+	 * 처리 중인 세션 수의 최대값
+	 */
+	public int getPeakActiveSessions() {
+		return peakActive.get();
+	}
+
+	/**
+	 * 자리가 나기를 기다리는 세션 수
+	 */
+	public int getQueuedSessions() {
+		return queued.get();
+	}
+
+	public int getCompletedSessions() {
+		return completed.get();
+	}
+
+	public int getFailedSessions() {
+		return failed.get();
+	}
+
+	/**
+	 * 마지막으로 실패한 세션, 또는 접속을 받지 못했을 때의 예외. 없으면 null
+	 */
+	public Exception getLastFailure() {
+		return lastFailure;
+	}
+
+	/**
+	 * 세션들이 만든 파일 크기의 합
+	 */
+	public long getWritten() {
+		return written.get();
+	}
+
+	public String toString() {
+		return "SyncServer(" + root + ", active = " + getActiveSessions() + ", queued = " + getQueuedSessions()
+				+ ", completed = " + getCompletedSessions() + ", failed = " + getFailedSessions() + ", " + scheduler + ")";
+	}
+}
@@ -0,0 +1,279 @@
+package net.daum.remotesync;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 디렉토리 아래 모든 파일의 목록. 파일마다 상대경로, 크기, 수정시각, 파일 전체의 해쉬코드({@link Signature#fileDigest()})를 담는다.
+ * {@link DirectorySync}에서 최신본을 가진 쪽이 먼저 보내며, 받는 쪽은 이 목록만으로 바뀌지 않은 파일을 건너뛴다.
+ * <p>
+ * 경로는 '/'로 구분하고 정렬해서 보내며, 앞 경로와 같은 앞부분은 길이만 보낸다.
+ * 빈 디렉토리는 담지 않는다.
+ * </p>
+ * 바이너리 포맷
+ * <pre>
+ * [VERSION:8][count] ([shared][suffixLength][suffix:UTF-8][size][lastModified][digest:160])*count
+ * </pre>
+ * shared는 앞 경로와 같은 앞부분의 바이트 수, 숫자는 모두 {@link PackOutput#writeNumber(long)}의 가변길이 정수다.
+ *
+ * @author dante
+ * @see DirectorySync
+ */
+public class TreeManifest implements Packable {
+	public static final int VERSION = 0xA1;
+	static final int DIGEST_LENGTH = 20;
+
+	/**
+	 * 파일 하나의 정보
+	 */
+	public static final class Entry {
+		private final String path;
+		private final long size;
+		private final long lastModified;
+		private final byte[] digest;
+
+		Entry(String path, long size, long lastModified, byte[] digest) {
+			this.path = path;
+			this.size = size;
+			this.lastModified = lastModified;
+			this.digest = digest;
+		}
+
+		/**
+		 * 디렉토리에서의 상대경로. '/'로 구분한다.
+		 */
+		public String getPath() {
+			return path;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		public byte[] getDigest() {
+			return digest.clone();
+		}
+
+		boolean hasDigest(byte[] other) {
+			return Arrays.equals(digest, other);
+		}
+
+		public String toString() {
+			return path + "(" + size + ")";
+		}
+	}
+
+	private final List<Entry> entries;
+	private final Map<String, Integer> indices;
+
+	private TreeManifest(List<Entry> entries) {
+		this.entries = entries;
+		this.indices = new HashMap<String, Integer>(entries.size() * 2);
+		for (int i = 0; i < entries.size(); i++) {
+			indices.put(entries.get(i).path, i);
+		}
+	}
+
+	/**
+	 * 디렉토리 아래 모든 파일을 읽어서 목록을 만든다.
+	 */
+	public static TreeManifest scan(File root) throws Exception {
+		return scan(root, null);
+	}
+
+	/**
+	 * 이전 목록에서 크기와 수정시각이 같은 파일은 해쉬코드를 다시 계산하지 않는다.
+	 * @param previous 같은 디렉토리로 만든 이전 목록. null이면 모든 파일을 읽는다.
+	 */
+	public static TreeManifest scan(File root, TreeManifest previous) throws Exception {
+		if (!root.isDirectory()) {
+			throw new IllegalArgumentException("not a directory: " + root);
+		}
+		List<String> paths = scanPaths(root);
+		List<Entry> entries = new ArrayList<Entry>(paths.size());
+		for (String path: paths) {
+			File f = new File(root, path);
+			long size = f.length();
+			long lastModified = f.lastModified();
+			Entry old = previous != null ? previous.get(path) : null;
+			if (old != null && old.size == size && old.lastModified == lastModified) {
+				entries.add(old);
+			} else {
+				entries.add(new Entry(path, size, lastModified, digest(f)));
+			}
+		}
+		return new TreeManifest(entries);
+	}
+
+	/**
+	 * 디렉토리 아래 모든 파일의 상대경로. 정렬해서 돌려준다.
+	 * 심볼릭 링크인 디렉토리는 따라가지 않는다. 위쪽 디렉토리를 가리키는 링크를 따라가면 경로 길이의 한계까지 끝없이 내려간다.
+	 */
+	static List<String> scanPaths(File root) throws Exception {
+		List<String> paths = new ArrayList<String>();
+		list(root, "", paths);
+		Collections.sort(paths);
+		return paths;
+	}
+
+	private static void list(File dir, String prefix, List<String> paths) throws Exception {
+		File[] files = dir.listFiles();
+		if (files == null) return;
+		for (File f: files) {
+			if (f.isDirectory()) {
+				if (!isSymlink(f)) list(f, prefix + f.getName() + "/", paths);
+			} else if (f.isFile()) {
+				paths.add(prefix + f.getName());
+			}
+		}
+	}
+
+	/**
+	 * java.io로는 링크를 알 수 없으므로, 부모 디렉토리의 실제 경로 아래의 이름과 그 이름의 실제 경로를 비교한다.
+	 */
+	static boolean isSymlink(File f) throws Exception {
+		File inCanonicalDir = new File(f.getParentFile().getCanonicalFile(), f.getName());
+		return !inCanonicalDir.getCanonicalFile().equals(inCanonicalDir.getAbsoluteFile());
+	}
+
+	static byte[] digest(File f) throws Exception {
+		InputStream in = new FileInputStream(f);
+		try {
+			return Signature.fileSignature(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public Entry get(int index) {
+		return entries.get(index);
+	}
+
+	/**
+	 * @return 경로의 파일 정보. 없으면 null
+	 */
+	public Entry get(String path) {
+		Integer index = indices.get(path);
+		return index != null ? entries.get(index) : null;
+	}
+
+	/**
+	 * @return 경로의 순서. 없으면 -1
+	 */
+	public int indexOf(String path) {
+		Integer index = indices.get(path);
+		return index != null ? index : -1;
+	}
+
+	public List<Entry> getEntries() {
+		return Collections.unmodifiableList(entries);
+	}
+
+	/**
+	 * 파일 전체의 크기 합
+	 */
+	public long getTotalSize() {
+		long total = 0;
+		for (Entry e: entries) {
+			total += e.size;
+		}
+		return total;
+	}
+
+	@Override
+	public long pack(OutputStream out) throws Exception {
+		PackOutput po = new PackOutput(out);
+		po.write8bit(VERSION);
+		long written = 1 + po.writeNumber(entries.size());
+		byte[] last = new byte[0];
+		for (Entry e: entries) {
+			byte[] path = e.path.getBytes("UTF-8");
+			int shared = 0;
+			while (shared < last.length && shared < path.length && last[shared] == path[shared]) shared++;
+			written += po.writeNumber(shared) + po.writeNumber(path.length - shared);
+			po.write(path, shared, path.length - shared);
+			written += path.length - shared + po.writeNumber(e.size) + po.writeNumber(e.lastModified);
+			po.write(e.digest, 0, DIGEST_LENGTH);
+			written += DIGEST_LENGTH;
+			last = path;
+		}
+		po.flush();
+		return written;
+	}
+
+	public static TreeManifest unpack(InputStream in) throws Exception {
+		return unpack(new PackInput(in, null));
+	}
+
+	static TreeManifest unpack(PackInput in) throws Exception {
+		if (in.readByte() != VERSION) {
+			throw new RuntimeException("TREE_MANIFEST Version mismatch");
+		}
+		long count = in.readNumber();
+		if (count > Integer.MAX_VALUE) {
+			throw new RuntimeException("too many files = " + count);
+		}
+		List<Entry> entries = new ArrayList<Entry>((int)Math.min(count, 65536));
+		byte[] path = new byte[256];
+		int length = 0;
+		String last = null;
+		for (long i = 0; i < count; i++) {
+			long shared = in.readNumber();
+			long suffix = in.readNumber();
+			if (shared > length || shared + suffix > 65535) {
+				throw new RuntimeException("invalid path length = " + shared + " + " + suffix);
+			}
+			length = (int)(shared + suffix);
+			if (length > path.length) {
+				path = Arrays.copyOf(path, Math.max(length, path.length * 2));
+			}
+			in.readFully(path, (int)shared, (int)suffix);
+			String p = checkPath(new String(path, 0, length, "UTF-8"));
+			if (last != null && last.compareTo(p) >= 0) {
+				throw new RuntimeException("paths must be in ascending order: " + p);
+			}
+			long size = in.readNumber();
+			long lastModified = in.readNumber();
+			byte[] digest = new byte[DIGEST_LENGTH];
+			in.readFully(digest, 0, DIGEST_LENGTH);
+			entries.add(new Entry(p, size, lastModified, digest));
+			last = p;
+		}
+		return new TreeManifest(entries);
+	}
+
+	/**
+	 * 받은 경로가 디렉토리 밖을 가리키지 않는지 확인한다.
+	 */
+	static String checkPath(String path) {
+		if (path.length() == 0 || path.startsWith("/") || path.endsWith("/") || path.indexOf('\\') >= 0 || path.indexOf('\0') >= 0) {
+			throw new RuntimeException("invalid path: " + path);
+		}
+		for (String name: path.split("/")) {
+			if (name.length() == 0 || name.equals(".") || name.equals("..")) {
+				throw new RuntimeException("invalid path: " + path);
+			}
+		}
+		return path;
+	}
+
+	public String toString() {
+		return "TreeManifest(" + entries.size() + " files, " + getTotalSize() + " bytes)";
+	}
+}
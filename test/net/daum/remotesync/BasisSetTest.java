@@ -0,0 +1,59 @@
+package net.daum.remotesync;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class BasisSetTest {
+	@Test
+	public void testMultipleBases() throws Exception {
+		Random random = new Random(23);
+		byte[][] files = new byte[3][];
+		for (int i = 0; i < files.length; i++) {
+			files[i] = new byte[20000 + i * 1000];
+			random.nextBytes(files[i]);
+		}
+		byte[] empty = new byte[100];
+		List<SourceCodeList> lists = new ArrayList<SourceCodeList>();
+		for (byte[] f: new byte[][] {files[0], empty, files[1], files[2]}) {
+			lists.add(SourceCodeList.create(new ByteArrayInputStream(f), 512));
+		}
+		BasisSet basis = new BasisSet(lists);
+		assertEquals(39 + 0 + 41 + 42, basis.getSourceCodeList().size());
+		assertEquals(2, basis.basisOf(39));
+		assertEquals(0, basis.localIndex(39));
+		assertEquals(3, basis.basisOf(basis.getSourceCodeList().size() - 1));
+		
+		// 다른 파일들을 옮기고 이어붙인 목표파일. 두 원본파일에 걸친 블럭도 있다.
+		ByteArrayOutputStream target = new ByteArrayOutputStream();
+		target.write(files[2], 0, files[2].length);
+		target.write(files[0], 512 * 30, 512 * 9);
+		target.write(files[1], 0, 512 * 10);
+		target.write("raw".getBytes());
+		target.write(files[0], 0, 512 * 20);
+		
+		ByteArrayOutputStream packed = new ByteArrayOutputStream();
+		basis.pack(packed);
+		BasisSet received = BasisSet.unpack(new ByteArrayInputStream(packed.toByteArray()));
+		assertEquals(4, received.getBasisCount());
+		BuildCodeList list = received.generateBuildCodes(new ByteArrayInputStream(target.toByteArray()));
+		long raw = 0;
+		for (BuildCode code: list) {
+			if (code instanceof RawBuildCode) raw += ((RawBuildCode)code).getData().length;
+		}
+		assertTrue(raw < 512 * 2);
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		list.patch(new MultiSourceFileAccess(basis, new ByteArraySourceFileAccess(files[0]), new ByteArraySourceFileAccess(empty),
+				new ByteArraySourceFileAccess(files[1]), new ByteArraySourceFileAccess(files[2])), out);
+		assertArrayEquals(target.toByteArray(), out.toByteArray());
+	}
+}
@@ -0,0 +1,28 @@
+package net.daum.remotesync;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class BlockSizePolicyTest {
+	@Test
+	public void testBlockSizePolicy() {
+		BlockSizePolicy policy = new BlockSizePolicy();
+		assertEquals(BlockSizePolicy.MIN_BLOCK_SIZE, policy.choose(1000));
+		assertEquals(1 << 15, policy.choose(1L << 30));
+		assertEquals(1 << 19, policy.choose(500L << 30));
+		assertEquals(BlockSizePolicy.MAX_BLOCK_SIZE, policy.choose(4000L << 30));
+		assertEquals(0xFFFF, new BlockSizePolicy(700, 0xFFFF).choose(500L << 30));
+		
+		// 수정된 곳이 많았던 파일은 작은 블럭, 거의 바뀌지 않은 파일은 큰 블럭을 쓴다.
+		policy.record("a", 24 * 64);
+		policy.record("b", 0);
+		assertEquals(1 << 12, policy.choose("a", 1L << 30));
+		assertEquals(1 << 18, policy.choose("b", 1L << 30));
+		assertEquals(1 << 15, policy.choose("c", 1L << 30));
+		policy.record("a", 0);
+		policy.record("a", 0);
+		assertEquals(1 << 13, policy.choose("a", 1L << 30));
+		assertEquals(2, policy.getHistorySize());
+	}
+}
@@ -1,12 +1,21 @@
 package net.daum.remotesync;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -20,7 +29,7 @@ public class BuildCodeListTest extends TestUtils {
 	@Before
 	public void setUp() throws Exception {
 		SourceCodeList sc = SourceCodeList.create(istream(src), 3);
-		bc = sc.generateBuildCodes(istream(dst), 4);		
+		bc = sc.generateBuildCodes(istream(dst), 4, false);		
 	}
 	@Test
 	public void testCreate() throws Exception {
@@ -60,7 +69,7 @@ public class BuildCodeListTest extends TestUtils {
 	public void testPatchSampleFile() throws Exception {
 		long ts = System.currentTimeMillis();
 		FileInputStream sourceCodeIn = new FileInputStream("scala-2.8.0.sourcecodes");
-		SourceCodeList sc = SourceCodeList.unpack(sourceCodeIn);
+		SourceCodeList sc = SourceCodeList.unpack(sourceCodeIn, null);
 		sourceCodeIn.close();
 		
 		System.out.println("unpacking SourceCodeList in msec: " + (System.currentTimeMillis() - ts));
@@ -80,39 +89,531 @@ public class BuildCodeListTest extends TestUtils {
 
 	
 	@Test
-	public void testPackAndUnpack() throws IOException {
+	public void testPackAndUnpack() throws Exception {
 		ByteArrayOutputStream out = new ByteArrayOutputStream();
 		bc.pack(out);
 		
-		// A 012 B34C 5 678 9 345 DEFG H
-		assertEquals((1+2+4+4) + (4+3+7+4+3+4+3+7+4), out.size());
+		// A 012 B34C 5 678 9 345 DEFG H + digest
+		assertEquals((1+2+4+4) + (4+3+7+4+3+4+3+7+4) + (3+20), out.size());
 	
 		ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
 		/* pack test */ {
-			assertEquals(BuildCodeList.VERSION1, in.read());
+			assertEquals(BuildCodeList.VERSION2, in.read());
 			assertEquals(0, in.read());
 			assertEquals(3, in.read());
 			assertEquals(0, in.read());
 			assertEquals(0, in.read());
 			assertEquals(0, in.read());
-			assertEquals(9, in.read());
+			assertEquals(10, in.read());
 			assertEquals(0, in.read());
 			assertEquals(0, in.read());
 			assertEquals(0, in.read());
-			assertEquals(39, in.read());
+			assertEquals(39 + 23, in.read());
 		}
 		
 		/* unpack test */ {
 			in.reset();
-			BuildCodeList unpacked = BuildCodeList.unpack(in);
+			BuildCodeList unpacked = BuildCodeList.unpack(in, null);
 			assertEquals(9, unpacked.size());
+			assertArrayEquals(Signature.fileSignature(istream(dst)), unpacked.getDigest());
 			assertEquals(RefBuildCode.class, bc.get(4).getClass());
 			assertEquals(2, ((RefBuildCode)bc.get(4)).getIndex());
 		}
 		
-	}	
+	}
 	
+	@Test
+	public void testStreamGenerate() throws Exception {
+		SourceCodeList sc = SourceCodeList.create(istream(src), 3);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		long written = sc.generateBuildCodes(istream(dst), out, 4);
+		
+		// A 012 B34C 5 678 9 345 DEFG H + digest + END + count + length
+		assertEquals((1+2) + (4+3+7+4+3+4+3+7+4) + (3+20) + (3+4+4), written);
+		assertEquals(written, out.size());
+		assertEquals(BuildCodeList.STREAM_VERSION2, out.toByteArray()[0] & 0xFF);
+		
+		BuildCodeList unpacked = BuildCodeList.unpack(new ByteArrayInputStream(out.toByteArray()), null);
+		assertEquals(bc.toString(), unpacked.toString());
+		
+		ByteArrayOutputStream patched = new ByteArrayOutputStream();
+		unpacked.patch(new ByteArraySourceFileAccess(src.getBytes()), patched);
+		assertEquals(dst, patched.toString());
+	}
+	
+	@Test
+	public void testPatchFromStream() throws Exception {
+		ByteArrayOutputStream packed = new ByteArrayOutputStream();
+		bc.pack(packed);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		long r = BuildCodeList.patch(new ByteArrayInputStream(packed.toByteArray()), new ByteArraySourceFileAccess(src.getBytes()), out);
+		assertEquals(dst.length(), r);
+		assertEquals(dst, out.toString());
+		
+		packed.reset();
+		SourceCodeList.create(istream(src), 3).generateBuildCodes(istream(dst), packed, 4);
+		out.reset();
+		r = BuildCodeList.patch(new ByteArrayInputStream(packed.toByteArray()), new ByteArraySourceFileAccess(src.getBytes()), out);
+		assertEquals(dst.length(), r);
+		assertEquals(dst, out.toString());
+	}
+	
+	@Test
+	public void testPatchToChannel() throws Exception {
+		File srcFile = File.createTempFile("remotesync", ".src");
+		File newFile = File.createTempFile("remotesync", ".new");
+		srcFile.deleteOnExit();
+		newFile.deleteOnExit();
+		FileOutputStream srcOut = new FileOutputStream(srcFile);
+		srcOut.write(src.getBytes());
+		srcOut.close();
+		
+		SourceMappedFileAccess sfa = new SourceMappedFileAccess(srcFile.getPath());
+		FileOutputStream newFileOut = new FileOutputStream(newFile);
+		long r = bc.patch(sfa, newFileOut.getChannel());
+		newFileOut.close();
+		sfa.close();
+		
+		assertEquals(dst.length(), r);
+		byte[] patched = new byte[dst.length()];
+		FileInputStream in = new FileInputStream(newFile);
+		assertEquals(dst.length(), in.read(patched));
+		in.close();
+		assertEquals(dst, new String(patched));
+		
+		// 연 뒤에 원본파일이 줄면, 남은 만큼만 옮기고 돌아온다.
+		sfa = new SourceMappedFileAccess(srcFile.getPath());
+		RandomAccessFile shrink = new RandomAccessFile(srcFile, "rw");
+		shrink.setLength(5);
+		shrink.close();
+		newFileOut = new FileOutputStream(newFile);
+		assertEquals(5, sfa.transferTo(0, src.length(), newFileOut.getChannel()));
+		newFileOut.close();
+		sfa.close();
+	}
+	
+	@Test
+	public void testRangeCode() throws Exception {
+		SourceCodeList sc = SourceCodeList.create(istream(src), 3);
+		BuildCodeList ranged = sc.generateBuildCodes(istream("X012345678Y"), 4, false);
+		
+		// X 012345678 Y
+		assertEquals(3, ranged.size());
+		assertEquals(RangeBuildCode.class, ranged.get(1).getClass());
+		assertEquals(0, ((RangeBuildCode)ranged.get(1)).getStart());
+		assertEquals(3, ((RangeBuildCode)ranged.get(1)).getCount());
+		
+		ByteArrayOutputStream packed = new ByteArrayOutputStream();
+		assertEquals((1+2+4+4) + (4+6+4) + (3+20), ranged.pack(packed));
+		assertEquals(BuildCodeList.VERSION2, packed.toByteArray()[0] & 0xFF);
+		
+		BuildCodeList unpacked = BuildCodeList.unpack(new ByteArrayInputStream(packed.toByteArray()), null);
+		assertEquals(ranged.toString(), unpacked.toString());
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		unpacked.patch(new ByteArraySourceFileAccess(src.getBytes()), out);
+		assertEquals("X012345678Y", out.toString());
+	}
 	
+	@Test
+	public void testPatchWithDigest() throws Exception {
+		byte[] digest = Signature.fileSignature(istream(dst));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(dst.length(), bc.patch(new ByteArraySourceFileAccess(src.getBytes()), out, digest));
+		assertEquals(dst, out.toString());
+		
+		try {
+			bc.patch(new ByteArraySourceFileAccess("X123456789".getBytes()), new ByteArrayOutputStream(), digest);
+			fail("patched from a different source");
+		} catch (RemoteSyncException e) {
+			assertEquals(RemoteSyncException.Type.INTEGRITY, e.getType());
+		}
+	}
+
+	@Test
+	public void testPatchFromStreamWithWrongSource() throws Exception {
+		ByteArrayOutputStream packed = new ByteArrayOutputStream();
+		SourceCodeList.create(istream(src), 3).generateBuildCodes(istream(dst), packed, 4);
+		try {
+			BuildCodeList.patch(new ByteArrayInputStream(packed.toByteArray()), new ByteArraySourceFileAccess("X123456789".getBytes()), new ByteArrayOutputStream());
+			fail("patched from a different source");
+		} catch (RemoteSyncException e) {
+			assertEquals(RemoteSyncException.Type.INTEGRITY, e.getType());
+		}
+	}
 	
+	@Test
+	public void testPatchFromShortReadingSource() throws Exception {
+		// 한번에 두 바이트까지만 읽히는 원본
+		SourceFileAccess slow = new ByteArraySourceFileAccess(src.getBytes()) {
+			@Override
+			public long read(byte[] buf) {
+				byte[] part = new byte[Math.min(2, buf.length)];
+				long r = super.read(part);
+				System.arraycopy(part, 0, buf, 0, (int)r);
+				return r;
+			}
+		};
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(dst.length(), bc.patch(slow, out));
+		assertEquals(dst, out.toString());
 
+		try {
+			// 678 블럭의 일부만 남은 원본
+			bc.patch(new ByteArraySourceFileAccess("0123456".getBytes()), new ByteArrayOutputStream());
+			fail("patched from a truncated source");
+		} catch (RuntimeException e) {
+			assertTrue(e.getMessage().startsWith("source file ended"));
+		}
+	}
+
+	@Test
+	public void testPrefilterStats() throws Exception {
+		PrefilterStats stats = bc.getPrefilterStats();
+		assertEquals(ReferenceTable.MIN_FILTER_BITS, stats.getFilterBits());
+		assertEquals(3, stats.getHits());
+		assertEquals(stats.getLookups(), stats.getRejected() + stats.getFalsePositives() + stats.getCollisions() + stats.getHits());
+		
+		// 관계없는 내용이면 거의 모든 위치가 비트맵에서 걸러진다.
+		Random random = new Random(11);
+		byte[] source = new byte[1000 * 1000];
+		byte[] target = new byte[100 * 1000];
+		random.nextBytes(source);
+		random.nextBytes(target);
+		SourceCodeList sc = SourceCodeList.create(new ByteArrayInputStream(source), 1000);
+		stats = sc.generateBuildCodes(new ByteArrayInputStream(target)).getPrefilterStats();
+		assertEquals(0, stats.getHits());
+		assertTrue(stats.getFalsePositiveRate() < 0.01);
+	}
+	
+	@Test
+	public void testPackAndUnpackWithChannels() throws Exception {
+		ByteArrayOutputStream packed = new ByteArrayOutputStream();
+		assertEquals(bc.pack(Channels.newChannel(packed)), packed.size());
+		
+		ByteArrayOutputStream mirror = new ByteArrayOutputStream();
+		BuildCodeList unpacked = BuildCodeList.unpack(Channels.newChannel(new ByteArrayInputStream(packed.toByteArray())), Channels.newChannel(mirror));
+		assertEquals(bc.toString(), unpacked.toString());
+		assertArrayEquals(packed.toByteArray(), mirror.toByteArray());
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		BuildCodeList.patch(Channels.newChannel(new ByteArrayInputStream(packed.toByteArray())), new ByteArraySourceFileAccess(src.getBytes()), Channels.newChannel(out));
+		assertEquals(dst, out.toString());
+	}
+	
+	@Test
+	public void testUnpackLeavesTrailingData() throws Exception {
+		ByteArrayOutputStream packed = new ByteArrayOutputStream();
+		bc.pack(packed);
+		SourceCodeList.create(istream(src), 3).generateBuildCodes(istream(dst), packed, 4);
+		packed.write("tail".getBytes());
+		
+		// 리스트 뒤의 데이타는 읽지 않는다.
+		ByteArrayInputStream in = new ByteArrayInputStream(packed.toByteArray());
+		ByteArrayOutputStream mirror = new ByteArrayOutputStream();
+		assertEquals(bc.toString(), BuildCodeList.unpack(in, mirror).toString());
+		assertEquals(bc.toString(), BuildCodeList.unpack(in, mirror).toString());
+		assertEquals(packed.size() - 4, mirror.size());
+		assertEquals(4, in.available());
+	}
+	
+	@Test
+	public void testUnpackTruncatedCode() throws Exception {
+		byte[] range = {0x40, 0, 5, 0, 0, 7};
+		ByteArrayOutputStream mirror = new ByteArrayOutputStream();
+		RangeBuildCode code = (RangeBuildCode)BuildCode.unpack(new ByteArrayInputStream(range), mirror);
+		assertEquals(5, code.getStart());
+		assertEquals(7, code.getCount());
+		assertArrayEquals(range, mirror.toByteArray());
+		
+		// 길이가 모자라면 -1을 값으로 읽지 않고 실패한다.
+		byte[][] truncated = {
+				Arrays.copyOf(range, 5),
+				{(byte)(BuildCode.END_HEADER | BuildCode.COMPRESSED_OP), RawCompressor.METHOD_DEFLATE, 0, 0, 1},
+				{0, 0, 1}};
+		for (int i = 0; i < truncated.length; i++) {
+			try {
+				if (i < 2) {
+					BuildCode.unpack(new ByteArrayInputStream(truncated[i]), null);
+				} else {
+					Signature.unpack(new ByteArrayInputStream(truncated[i]), null);
+				}
+				fail("unpacked a truncated code");
+			} catch (RuntimeException e) {
+				assertEquals("unexpected end of stream", e.getMessage());
+			}
+		}
+	}
+	
+	@Test
+	public void testCompressedRawCodes() throws Exception {
+		StringBuilder source = new StringBuilder();
+		StringBuilder target = new StringBuilder();
+		for (int i = 0; i < 2000; i++) {
+			String line = "line " + i + ": the quick brown fox jumps over the lazy dog\n";
+			source.append(line);
+			target.append(i % 50 == 0 ? line.toUpperCase() + line.replace("fox", "cat") : line);
+		}
+		SourceCodeList sc = SourceCodeList.create(istream(source.toString()), 256);
+		ByteArraySourceFileAccess sfa = new ByteArraySourceFileAccess(source.toString().getBytes());
+		
+		ByteArrayOutputStream plain = new ByteArrayOutputStream();
+		sc.generateBuildCodes(istream(target.toString()), plain, 4096);
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		long written = sc.generateBuildCodes(istream(target.toString()), compressed, 4096, new RawCompression(6, true));
+		assertEquals(compressed.size(), written);
+		assertTrue(compressed.size() < plain.size());
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		BuildCodeList.patch(new ByteArrayInputStream(compressed.toByteArray()), sfa, out);
+		assertEquals(target.toString(), out.toString());
+		
+		// 원본블럭을 사전으로 썼으므로, 원본파일 없이는 풀 수 없다.
+		BuildCodeList expected = BuildCodeList.unpack(new ByteArrayInputStream(plain.toByteArray()), null);
+		try {
+			BuildCodeList.unpack(new ByteArrayInputStream(compressed.toByteArray()), null);
+			fail("decompressed without the dictionary");
+		} catch (RuntimeException e) {
+		}
+		assertEquals(expected.toString(), BuildCodeList.unpack(new ByteArrayInputStream(compressed.toByteArray()), null, sfa).toString());
+		
+		// 리스트를 압축해서 pack하면 사전 없이 압축한다.
+		ByteArrayOutputStream packed = new ByteArrayOutputStream();
+		written = expected.pack(packed, RawCompression.FAST);
+		assertEquals(packed.size(), written);
+		assertTrue(packed.size() < plain.size());
+		assertEquals(expected.toString(), BuildCodeList.unpack(new ByteArrayInputStream(packed.toByteArray()), null).toString());
+		out.reset();
+		BuildCodeList.patch(new ByteArrayInputStream(packed.toByteArray()), sfa, out);
+		assertEquals(target.toString(), out.toString());
+	}
+	
+	@Test
+	public void testIncompressibleRawCodes() throws Exception {
+		Random random = new Random(5);
+		byte[] target = new byte[100 * 1000];
+		random.nextBytes(target);
+		SourceCodeList sc = SourceCodeList.create(istream(src), 3);
+		
+		ByteArrayOutputStream plain = new ByteArrayOutputStream();
+		sc.generateBuildCodes(new ByteArrayInputStream(target), plain, 1000);
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		sc.generateBuildCodes(new ByteArrayInputStream(target), compressed, 1000, RawCompression.FAST);
+		assertArrayEquals(plain.toByteArray(), compressed.toByteArray());
+	}
+	
+	@Test
+	public void testRejectOversizedCodes() throws Exception {
+		// 풀었을 때의 크기, 압축한 크기, 해쉬코드 길이를 부풀린 VERSION3 코드들. 배열을 만들기 전에 거부해야 한다.
+		long[][] codes = {
+				{BuildCode.TAG_COMPRESSED, Integer.MAX_VALUE, Integer.MAX_VALUE},
+				{BuildCode.TAG_COMPRESSED, BuildCodeReader.MAX_COMPRESSED_RAW + 1, 100},
+				{BuildCode.TAG_COMPRESSED, 100, 1000},
+				{BuildCode.TAG_DIGEST, Integer.MAX_VALUE}};
+		for (long[] code: codes) {
+			ByteArrayOutputStream packed = new ByteArrayOutputStream();
+			PackOutput out = new PackOutput(packed);
+			out.write8bit(BuildCodeList.STREAM_VERSION3);
+			out.writeNumber(3);
+			BuildCode.packTag(out, (int)code[0], code[1]);
+			if (code[0] == BuildCode.TAG_COMPRESSED) {
+				out.write8bit(RawCompressor.METHOD_DEFLATE);
+				out.writeNumber(0);
+				out.writeNumber(code[2]);
+			}
+			out.flush();
+			try {
+				BuildCodeList.patch(new ByteArrayInputStream(packed.toByteArray()), new ByteArraySourceFileAccess(src.getBytes()), new ByteArrayOutputStream());
+				fail("accepted an oversized code");
+			} catch (RuntimeException e) {
+				assertTrue(e.getMessage(), e.getMessage().startsWith("compressed raw code out of range") || e.getMessage().startsWith("invalid digest length"));
+			}
+		}
+		
+		// raw 길이만 부풀리고 데이타가 없는 코드. unpack은 길이만큼의 배열을 미리 만들지 않고, 입력이 끝나면 실패한다.
+		ByteArrayOutputStream packed = new ByteArrayOutputStream();
+		PackOutput out = new PackOutput(packed);
+		out.write8bit(BuildCodeList.STREAM_VERSION3);
+		out.writeNumber(3);
+		BuildCode.packTag(out, BuildCode.TAG_RAW, Integer.MAX_VALUE);
+		out.write("012".getBytes(), 0, 3);
+		out.flush();
+		try {
+			BuildCodeList.unpack(new ByteArrayInputStream(packed.toByteArray()), null);
+			fail("accepted a truncated raw code");
+		} catch (RuntimeException e) {
+			assertEquals("couldn't read enough bytes for the raw code", e.getMessage());
+		}
+	}
+	
+	@Test
+	public void testLargeBlockSize() throws Exception {
+		Random random = new Random(7);
+		byte[] source = new byte[20 * 100000];
+		random.nextBytes(source);
+		byte[] target = source.clone();
+		random.nextBytes(target);
+		System.arraycopy(source, 0, target, 0, 5 * 100000);
+		System.arraycopy(source, 12 * 100000, target, 10 * 100000, 8 * 100000);
+		SourceCodeList sc = SourceCodeList.create(new ByteArrayInputStream(source), 100000);
+		
+		ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+		sc.generateBuildCodes(new ByteArrayInputStream(target), streamed, RemoteSync.DEFAULT_RAW_LIMIT);
+		assertEquals(BuildCodeList.STREAM_VERSION3, streamed.toByteArray()[0] & 0xFF);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		BuildCodeList.patch(new ByteArrayInputStream(streamed.toByteArray()), new ByteArraySourceFileAccess(source), out);
+		assertArrayEquals(target, out.toByteArray());
+		
+		BuildCodeList list = sc.generateBuildCodes(new ByteArrayInputStream(target));
+		assertEquals(list.toString(), BuildCodeList.unpack(new ByteArrayInputStream(streamed.toByteArray()), null).toString());
+		ByteArrayOutputStream packed = new ByteArrayOutputStream();
+		long written = list.pack(packed);
+		assertEquals(packed.size(), written);
+		assertEquals(BuildCodeList.VERSION3, packed.toByteArray()[0] & 0xFF);
+		BuildCodeList unpacked = BuildCodeList.unpack(new ByteArrayInputStream(packed.toByteArray()), null);
+		assertEquals(100000, unpacked.getBlockSize());
+		assertEquals(list.toString(), unpacked.toString());
+		out.reset();
+		unpacked.patch(new ByteArraySourceFileAccess(source), out);
+		assertArrayEquals(target, out.toByteArray());
+	}
+	
+	@Test
+	public void testVersion3Codes() throws Exception {
+		byte[] data = new byte[RawBuildCode.MAX_LENGTH + 10];
+		new Random(8).nextBytes(data);
+		ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+		BuildCodeWriter writer = new BuildCodeWriter(streamed, 1024, BuildCodeList.STREAM_VERSION3);
+		writer.ref(3);
+		writer.ref(RefBuildCode.MAX_INDEX + 1);
+		writer.refRange(Integer.MAX_VALUE - 10, RangeBuildCode.MAX_COUNT + 1);
+		writer.raw(data, 0, data.length);
+		writer.finish(null);
+		assertEquals(streamed.size(), writer.getWritten());
+		
+		BuildCodeList list = BuildCodeList.unpack(new ByteArrayInputStream(streamed.toByteArray()), null);
+		assertEquals(4, list.size());
+		assertEquals("{ref:3}", list.get(0).toString());
+		assertEquals("{ref:" + (RefBuildCode.MAX_INDEX + 1) + "}", list.get(1).toString());
+		assertEquals("{range:" + (Integer.MAX_VALUE - 10) + "+" + (RangeBuildCode.MAX_COUNT + 1) + "}", list.get(2).toString());
+		assertArrayEquals(data, ((RawBuildCode)list.get(3)).getData());
+		
+		// VERSION2로 표현할 수 없는 코드가 있으면 VERSION3으로 pack한다.
+		ByteArrayOutputStream packed = new ByteArrayOutputStream();
+		assertEquals((1+3+1+4) + 1 + (1+3) + (1+4+1+4) + (1+3) + data.length, list.pack(packed));
+		assertEquals(BuildCodeList.VERSION3, packed.toByteArray()[0] & 0xFF);
+		assertEquals(list.toString(), BuildCodeList.unpack(new ByteArrayInputStream(packed.toByteArray()), null).toString());
+		
+		try {
+			new BuildCodeWriter(new ByteArrayOutputStream(), 1024, BuildCodeList.STREAM_VERSION2).ref(RefBuildCode.MAX_INDEX + 1);
+			fail("wrote a 23 bit index in STREAM_VERSION2");
+		} catch (RuntimeException e) {
+		}
+		
+		// 포맷을 지정하지 않으면 STREAM_VERSION3으로 쓰므로, 한계를 넘는 코드도 쓸 수 있다.
+		streamed.reset();
+		writer = new BuildCodeWriter(streamed, 1024);
+		writer.ref(RefBuildCode.MAX_INDEX + 1);
+		writer.raw(data, 0, data.length);
+		writer.finish(null);
+		assertEquals(BuildCodeList.STREAM_VERSION3, streamed.toByteArray()[0] & 0xFF);
+		BuildCodeList unpacked = BuildCodeList.unpack(new ByteArrayInputStream(streamed.toByteArray()), null);
+		assertEquals("{ref:" + (RefBuildCode.MAX_INDEX + 1) + "}", unpacked.get(0).toString());
+		assertArrayEquals(data, ((RawBuildCode)unpacked.get(1)).getData());
+	}
+	
+	@Test
+	public void testPatchAndSign() throws Exception {
+		byte[] source = new byte[64 * 1024];
+		new Random(20).nextBytes(source);
+		SourceCodeList sc = SourceCodeList.create(new ByteArrayInputStream(source), 1024);
+		
+		// 같은 위치를 덮어쓰면 그 블럭만 계산하고, 끼워넣으면 뒤쪽 블럭도 계산한다.
+		byte[] overwritten = source.clone();
+		Arrays.fill(overwritten, 5000, 5100, (byte)1);
+		ByteArrayOutputStream inserted = new ByteArrayOutputStream();
+		inserted.write(source, 0, 30000);
+		inserted.write("inserted".getBytes());
+		inserted.write(source, 30000, source.length - 30000 - 100);
+		
+		for (byte[] target: new byte[][] {overwritten, inserted.toByteArray()}) {
+			SourceCodeList expected = SourceCodeList.create(new ByteArrayInputStream(target), 1024);
+			BuildCodeList list = sc.generateBuildCodes(new ByteArrayInputStream(target));
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			assertSameSignatures(expected, list.patchAndSign(new ByteArraySourceFileAccess(source), out, sc));
+			assertArrayEquals(target, out.toByteArray());
+			
+			ByteArrayOutputStream packed = new ByteArrayOutputStream();
+			sc.generateBuildCodes(new ByteArrayInputStream(target), packed);
+			out.reset();
+			SourceCodeList streamed = BuildCodeList.patchAndSign(new ByteArrayInputStream(packed.toByteArray()), new ByteArraySourceFileAccess(source), out, sc);
+			assertSameSignatures(expected, streamed);
+			assertArrayEquals(target, out.toByteArray());
+		}
+		
+		SignatureTracker tracker = new SignatureTracker(sc);
+		BuildCodePatcher patcher = new BuildCodePatcher(new ByteArraySourceFileAccess(source), 1024, new ByteArrayOutputStream(), false);
+		patcher.setTracker(tracker);
+		for (BuildCode code: sc.generateBuildCodes(new ByteArrayInputStream(overwritten))) {
+			code.emit(patcher);
+		}
+		patcher.finish(null);
+		assertEquals(64, tracker.getSourceCodeList().size());
+		assertEquals(1, tracker.getHashedBlocks());
+	}
+	
+	@Test
+	public void testParallelGenerate() throws Exception {
+		byte[] source = new byte[64 * 1024];
+		new Random(21).nextBytes(source);
+		SourceCodeList sc = SourceCodeList.create(new ByteArrayInputStream(source), 512);
+		
+		// 구간 경계 근처에 끼워넣기, 지우기, 긴 raw 데이타, 반복되는 블럭을 둔다.
+		ByteArrayOutputStream edited = new ByteArrayOutputStream();
+		edited.write(source, 0, 4000);
+		edited.write("seam".getBytes());
+		edited.write(source, 4000, 12000);
+		edited.write(source, 20000, 10000);
+		byte[] noise = new byte[9000];
+		new Random(22).nextBytes(noise);
+		edited.write(noise);
+		edited.write(source, 512, 4096);
+		edited.write(source, 512, 4096);
+		edited.write(source, 40000, source.length - 40000 - 77);
+		
+		byte[][] targets = {source, edited.toByteArray(), noise, Arrays.copyOf(source, 5000)};
+		File f = File.createTempFile("parallel", ".bin");
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			for (byte[] target: targets) {
+				FileOutputStream fo = new FileOutputStream(f);
+				fo.write(target);
+				fo.close();
+				for (long rawLimit: new long[] {1000, RemoteSync.DEFAULT_RAW_LIMIT}) {
+					BuildCodeList expected = sc.generateBuildCodes(new ByteArrayInputStream(target), rawLimit, false);
+					for (long segmentSize: new long[] {2048, 4096, 5000, 1 << 20}) {
+						FileInputStream in = new FileInputStream(f);
+						BuildCodeList actual = BuildCodeList.create(sc, in.getChannel(), rawLimit, executor, segmentSize);
+						in.close();
+						ByteArrayOutputStream a = new ByteArrayOutputStream();
+						ByteArrayOutputStream b = new ByteArrayOutputStream();
+						expected.pack(a);
+						actual.pack(b);
+						assertArrayEquals(a.toByteArray(), b.toByteArray());
+						assertTrue(actual.getPrefilterStats().getLookups() >= expected.getPrefilterStats().getLookups());
+					}
+				}
+			}
+		} finally {
+			executor.shutdown();
+			f.delete();
+		}
+	}
+	
+	private void assertSameSignatures(SourceCodeList expected, SourceCodeList actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(expected.getFast(i), actual.getFast(i));
+			assertEquals(expected.get(i).getStrongBase64(), actual.get(i).getStrongBase64());
+		}
+	}
 }
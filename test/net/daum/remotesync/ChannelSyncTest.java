@@ -0,0 +1,108 @@
+package net.daum.remotesync;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ChannelSyncTest extends TestUtils {
+	@Test
+	public void testChannelSync() throws Exception {
+		File base = File.createTempFile("channelsync", "");
+		base.delete();
+		final File serverDir = new File(base, "server");
+		File clientDir = new File(base, "client");
+		final ServerSocketChannel server = ServerSocketChannel.open();
+		try {
+			server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+			Random random = new Random(24);
+			byte[] basis = new byte[3 * 1024 * 1024];
+			random.nextBytes(basis);
+			ByteArrayOutputStream edited = new ByteArrayOutputStream();
+			edited.write(basis, 0, 1000000);
+			edited.write("inserted".getBytes());
+			edited.write(basis, 1000000, basis.length - 1000000);
+			writeFile(serverDir, "data/file.bin", basis, 1000000L);
+			writeFile(clientDir, "file.bin", edited.toByteArray(), 1000000L);
+			writeFile(clientDir, "new.txt", "new file".getBytes(), 1000000L);
+			
+			for (String[] upload: new String[][] {{"file.bin", "data/file.bin"}, {"new.txt", "new/dir/new.txt"}}) {
+				final long[] served = new long[1];
+				Thread t = new Thread() {
+					public void run() {
+						try {
+							SocketChannel channel = server.accept();
+							try {
+								served[0] = ChannelSync.serve(channel, serverDir);
+							} finally {
+								channel.close();
+							}
+						} catch (Exception e) {
+							served[0] = -1;
+						}
+					}
+				};
+				t.start();
+				File target = new File(clientDir, upload[0]);
+				SocketChannel client = SocketChannel.open(server.socket().getLocalSocketAddress());
+				long sent;
+				try {
+					sent = ChannelSync.upload(client, upload[1], target);
+				} finally {
+					client.close();
+				}
+				t.join();
+				assertEquals(target.length(), served[0]);
+				assertArrayEquals(TreeManifest.digest(target), TreeManifest.digest(new File(serverDir, upload[1])));
+				if (target.length() > basis.length) {
+					assertTrue(sent < basis.length / 100);
+				}
+			}
+			assertEquals("[data/file.bin, new/dir/new.txt]", TreeManifest.scanPaths(serverDir).toString());
+		} finally {
+			server.close();
+			deleteTree(base);
+		}
+	}
+	
+	@Test
+	public void testPatchWithinSessionBudget() throws Exception {
+		StringBuilder target = new StringBuilder();
+		for (int i = 0; i < 2000; i++) {
+			target.append("line " + i + ": the quick brown fox jumps over the lazy dog\n");
+		}
+		String src = "0123456789";
+		SourceCodeList sc = SourceCodeList.create(istream(src), 256);
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		sc.generateBuildCodes(istream(target.toString()), compressed, 100000, RawCompression.FAST);
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		BuildCodeList.patch(Channels.newChannel(new ByteArrayInputStream(compressed.toByteArray())), new ByteArraySourceFileAccess(src.getBytes()),
+				Channels.newChannel(out), 256, 100000);
+		assertEquals(target.toString(), out.toString());
+		
+		// 세션에 예약한 것보다 크게 풀리는 압축 코드나, 다른 블럭크기는 거부한다.
+		String[][] cases = {{"256", "50000", "compressed raw code out of range"}, {"512", "100000", "block size mismatch"}};
+		for (String[] c: cases) {
+			try {
+				BuildCodeList.patch(Channels.newChannel(new ByteArrayInputStream(compressed.toByteArray())), new ByteArraySourceFileAccess(src.getBytes()),
+						Channels.newChannel(new ByteArrayOutputStream()), Integer.parseInt(c[0]), Integer.parseInt(c[1]));
+				fail("patched beyond the session budget");
+			} catch (RuntimeException e) {
+				assertTrue(e.getMessage(), e.getMessage().startsWith(c[2]));
+			}
+		}
+		assertTrue(ChannelSync.sessionMemory(1024) > 2L * ChannelSync.MAX_COMPRESSED_RAW);
+	}
+}
@@ -0,0 +1,152 @@
+package net.daum.remotesync;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class DirectorySyncTest extends TestUtils {
+	@Test
+	public void testDirectorySync() throws Exception {
+		File base = File.createTempFile("dirsync", "");
+		base.delete();
+		File dirA = new File(base, "a");
+		File dirB = new File(base, "b");
+		try {
+			Random random = new Random(22);
+			byte[] big = new byte[300 * 1024];
+			random.nextBytes(big);
+			byte[] edited = big.clone();
+			Arrays.fill(edited, 100000, 100100, (byte)7);
+			
+			writeFile(dirA, "same.txt", "unchanged".getBytes(), 1000000L);
+			writeFile(dirB, "same.txt", "unchanged".getBytes(), 1000000L);
+			writeFile(dirA, "touched.txt", "same content".getBytes(), 1000000L);
+			writeFile(dirB, "touched.txt", "same content".getBytes(), 2000000L);
+			writeFile(dirA, "big.bin", big, 1000000L);
+			writeFile(dirB, "big.bin", edited, 2000000L);
+			writeFile(dirB, "sub/dir/new.txt", "new file".getBytes(), 3000000L);
+			writeFile(dirB, "sub/empty", new byte[0], 3000000L);
+			writeFile(dirA, "old.txt", "deleted".getBytes(), 1000000L);
+			
+			TreeManifest manifest = TreeManifest.scan(dirB);
+			assertEquals(5, manifest.size());
+			assertEquals("sub/dir/new.txt", manifest.get(2).getPath());
+			
+			DirectorySync sync = new DirectorySync(dirA);
+			sync.setDelete(true);
+			long[] sizes = syncDirectory(sync, dirB, manifest);
+			assertEquals(2, sync.getUnchangedCount());
+			assertEquals(3, sync.getPatchedCount());
+			assertEquals(1, sync.getDeletedCount());
+			// 바뀐 큰 파일은 SourceCodeList와 바뀐 부분만 주고받는다.
+			assertTrue(sizes[1] < big.length / 10);
+			
+			assertEquals(TreeManifest.scanPaths(dirB), TreeManifest.scanPaths(dirA));
+			for (TreeManifest.Entry e: manifest.getEntries()) {
+				File f = new File(dirA, e.getPath());
+				assertArrayEquals(e.getDigest(), TreeManifest.digest(f));
+				assertEquals(e.getLastModified(), f.lastModified());
+			}
+			
+			// 다시 동기화하면 목록만 주고받는다.
+			sync = new DirectorySync(dirA);
+			sizes = syncDirectory(sync, dirB, TreeManifest.scan(dirB, manifest));
+			assertEquals(5, sync.getUnchangedCount());
+			assertEquals(0, sync.getRequestCount());
+			assertEquals(1, sizes[0]);
+		} finally {
+			deleteTree(base);
+		}
+	}
+	
+	@Test
+	public void testDirectorySyncOverSocket() throws Exception {
+		File base = File.createTempFile("dirsync", "");
+		base.delete();
+		File dirA = new File(base, "a");
+		final File dirB = new File(base, "b");
+		// 요청과 응답 모두 소켓 버퍼보다 훨씬 크다.
+		Random random = new Random(26);
+		for (int i = 0; i < 30; i++) {
+			byte[] content = new byte[100000];
+			random.nextBytes(content);
+			writeFile(dirA, "f" + i, content, 1000000L);
+			random.nextBytes(content);
+			writeFile(dirB, "f" + i, content, 2000000L);
+		}
+		final ServerSocket server = new ServerSocket();
+		server.setReceiveBufferSize(8192);
+		server.bind(new InetSocketAddress("127.0.0.1", 0));
+		final Socket a = new Socket();
+		try {
+			final Exception[] answered = new Exception[1];
+			Thread machineB = new Thread() {
+				public void run() {
+					try {
+						Socket b = server.accept();
+						try {
+							b.setSendBufferSize(8192);
+							TreeManifest manifest = TreeManifest.scan(dirB);
+							OutputStream out = new BufferedOutputStream(b.getOutputStream());
+							manifest.pack(out);
+							out.flush();
+							DirectorySync.answerChanges(dirB, manifest, new BufferedInputStream(b.getInputStream()), out);
+						} finally {
+							b.close();
+						}
+					} catch (Exception e) {
+						answered[0] = e;
+					}
+				}
+			};
+			machineB.start();
+			a.setReceiveBufferSize(8192);
+			a.setSendBufferSize(8192);
+			a.connect(server.getLocalSocketAddress());
+			a.setSoTimeout(60000);
+			InputStream in = new BufferedInputStream(a.getInputStream());
+			DirectorySync sync = new DirectorySync(dirA);
+			sync.readManifest(in);
+			assertEquals(30, sync.sync(in, new BufferedOutputStream(a.getOutputStream())));
+			machineB.join();
+			if (answered[0] != null) throw answered[0];
+			for (int i = 0; i < 30; i++) {
+				assertArrayEquals(TreeManifest.digest(new File(dirB, "f" + i)), TreeManifest.digest(new File(dirA, "f" + i)));
+			}
+		} finally {
+			a.close();
+			server.close();
+			deleteTree(base);
+		}
+	}
+	
+	/**
+	 * @return {요청 스트림 크기, 응답 스트림 크기}
+	 */
+	private long[] syncDirectory(DirectorySync sync, File dirB, TreeManifest manifest) throws Exception {
+		ByteArrayOutputStream manifestOut = new ByteArrayOutputStream();
+		manifest.pack(manifestOut);
+		sync.readManifest(new ByteArrayInputStream(manifestOut.toByteArray()));
+		ByteArrayOutputStream requests = new ByteArrayOutputStream();
+		sync.requestChanges(requests);
+		ByteArrayOutputStream answers = new ByteArrayOutputStream();
+		DirectorySync.answerChanges(dirB, manifest, new ByteArrayInputStream(requests.toByteArray()), answers);
+		sync.applyChanges(new ByteArrayInputStream(answers.toByteArray()));
+		return new long[] {requests.size(), answers.size()};
+	}
+}
@@ -0,0 +1,84 @@
+package net.daum.remotesync;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class ReferenceTableTest {
+	@Test
+	public void testDuplicateBlocks() throws Exception {
+		// 같은 블럭이 여러번 나오면, HashMap에 차례로 put하던 때처럼 마지막 인덱스를 찾는다.
+		ReferenceTable table = new ReferenceTable(blocks(new int[] {7, 9, 7}, new int[] {1, 2, 1}));
+		assertEquals(2, table.lookup(probe(7, 1)));
+		assertEquals(1, table.lookup(probe(9, 2)));
+	}
+
+	@Test
+	public void testSameFastHash() throws Exception {
+		// 빠른 해쉬가 같고 정확한 해쉬가 다른 블럭
+		ReferenceTable table = new ReferenceTable(blocks(new int[] {5, 5, 5}, new int[] {1, 2, 3}));
+		assertEquals(0, table.lookup(probe(5, 1)));
+		assertEquals(1, table.lookup(probe(5, 2)));
+		assertEquals(2, table.lookup(probe(5, 3)));
+		assertEquals(-1, table.lookup(probe(5, 4)));
+		assertEquals(1, table.getStats().getCollisions());
+	}
+
+	@Test
+	public void testEmpty() throws Exception {
+		ReferenceTable table = new ReferenceTable(blocks(new int[0], new int[0]));
+		assertEquals(-1, table.lookup(probe(5, 1)));
+	}
+
+	@Test
+	public void testWrapAround() throws Exception {
+		// 블럭 4개는 8칸짜리 테이블에 들어간다. 마지막 칸에서 시작하는 블럭들은 테이블 처음으로 넘어가서 놓인다.
+		int fast = 0;
+		while ((ReferenceTable.slotOf(fast) & 7) != 7) fast++;
+		ReferenceTable table = new ReferenceTable(blocks(new int[] {fast, fast, fast, fast}, new int[] {1, 2, 3, 4}));
+		assertEquals(3, table.lookup(probe(fast, 4)));
+		assertEquals(-1, table.lookup(probe(fast, 5)));
+		assertEquals(-1, table.lookup(probe(fast + 1, 1)));
+	}
+
+	/**
+	 * 빠른 해쉬값과, strong 바이트로 채운 SHA1 해쉬값을 가진 블럭들. VERSION1 포맷으로 써서 unpack한다.
+	 */
+	private static SourceCodeList blocks(int[] fasts, int[] strongs) throws Exception {
+		ByteArrayOutputStream packed = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(packed);
+		out.writeByte(SourceCodeList.VERSION1);
+		out.writeShort(4);
+		out.writeInt(fasts.length);
+		for (int i = 0; i < fasts.length; i++) {
+			out.writeInt(fasts[i]);
+			out.write(strong(strongs[i]));
+		}
+		return SourceCodeList.unpack(new ByteArrayInputStream(packed.toByteArray()), null);
+	}
+
+	private static byte[] strong(int strong) {
+		byte[] b = new byte[20];
+		Arrays.fill(b, (byte)strong);
+		return b;
+	}
+
+	private static RollingSignature probe(final int fast, final int strong) {
+		return new RollingSignature() {
+			@Override
+			public int getFast() {
+				return fast;
+			}
+
+			@Override
+			public byte[] getStrong() {
+				return strong(strong);
+			}
+		};
+	}
+}
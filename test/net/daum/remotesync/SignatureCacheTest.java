@@ -0,0 +1,122 @@
+package net.daum.remotesync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.FileInputStream;
+import java.io.RandomAccessFile;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class SignatureCacheTest extends TestUtils {
+	@Test
+	public void testSignatureCache() throws Exception {
+		File dir = File.createTempFile("remotesync", ".cache");
+		dir.delete();
+		File file = File.createTempFile("remotesync", ".src");
+		file.deleteOnExit();
+		byte[] content = new byte[100 * 1024 + 10];
+		new Random(19).nextBytes(content);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.write(content);
+		raf.close();
+		
+		SignatureCache cache = new SignatureCache(dir, 1L << 20);
+		SourceCodeList first = cache.get(file, 1024);
+		SourceCodeList second = cache.get(file, 1024);
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+		assertEquals(100, second.size());
+		assertEquals(first.get(99).getStrongBase64(), second.get(99).getStrongBase64());
+		
+		// 프로세스를 다시 시작해도 캐쉬파일을 읽는다.
+		cache = new SignatureCache(dir, 1L << 20);
+		assertEquals(1, cache.getEntryCount());
+		cache.get(file, 1024);
+		assertEquals(1, cache.getHits());
+		
+		// 일부를 덮어쓰고 덧붙이면, 그 부분만 다시 계산해도 전체를 계산한 것과 같다.
+		raf = new RandomAccessFile(file, "rw");
+		raf.seek(5000);
+		raf.write(new byte[3000]);
+		raf.seek(content.length);
+		raf.write(new byte[2048]);
+		raf.close();
+		file.setLastModified(file.lastModified() + 2000);
+		SourceCodeList updated = cache.update(file, 1024, StrongHash.SHA1, 5000, 3000);
+		SourceCodeList expected = SourceCodeList.create(new FileInputStream(file), 1024);
+		assertEquals(expected.size(), updated.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(expected.get(i).getStrongBase64(), updated.get(i).getStrongBase64());
+			assertEquals(expected.getFast(i), updated.getFast(i));
+		}
+		cache.get(file, 1024);
+		assertEquals(2, cache.getHits());
+		
+		// 최대 크기를 넘으면 오래 쓰지 않은 항목부터 지운다.
+		cache.get(file, 512);
+		long size = cache.getSize();
+		cache = new SignatureCache(dir, size - 1);
+		assertEquals(1, cache.getEntryCount());
+		cache.remove(file);
+		assertEquals(0, cache.getEntryCount());
+		assertEquals(0, cache.getSize());
+		dir.delete();
+	}
+	
+	@Test
+	public void testConcurrentGet() throws Exception {
+		final File dir = File.createTempFile("remotesync", ".cache");
+		dir.delete();
+		final File[] files = new File[4];
+		for (int i = 0; i < files.length; i++) {
+			files[i] = File.createTempFile("remotesync", ".src");
+			files[i].deleteOnExit();
+			byte[] content = new byte[64 * 1024];
+			new Random(i).nextBytes(content);
+			writeFile(files[i].getParentFile(), files[i].getName(), content, files[i].lastModified());
+		}
+		final SignatureCache cache = new SignatureCache(dir, 1L << 20);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++) {
+			final int n = t;
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						for (int i = 0; i < 10; i++) {
+							File file = files[(n + i) % files.length];
+							SourceCodeList sc = cache.get(file, 1024);
+							assertEquals(64, sc.size());
+						}
+					} catch (Throwable e) {
+						failure.set(e);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread t : threads) t.join();
+		assertNull(failure.get());
+		assertEquals(80, cache.getHits() + cache.getMisses());
+		assertEquals(files.length, cache.getEntryCount());
+		assertEquals(0, dir.list(new FilenameFilter() {
+			public boolean accept(File d, String name) {
+				return name.endsWith(".tmp");
+			}
+		}).length);
+		
+		// 크기나 수정시각이 다르면 리스트를 읽지 않고 다시 계산한다.
+		long misses = cache.getMisses();
+		writeFile(files[0].getParentFile(), files[0].getName(), new byte[2048], files[0].lastModified() + 2000);
+		assertEquals(2, cache.get(files[0], 1024).size());
+		assertEquals(misses + 1, cache.getMisses());
+		assertEquals(files.length, cache.getEntryCount());
+		for (File f : files) cache.remove(f);
+		dir.delete();
+	}
+}
@@ -1,7 +1,11 @@
 package net.daum.remotesync;
 
 import static javax.xml.bind.DatatypeConverter.printBase64Binary;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
 import net.daum.remotesync.Signature;
 
 import org.junit.Test;
@@ -25,4 +29,45 @@ public class SignatureTest {
 
 	}
 	
+	@Test
+	public void testRollingSignature() {
+		byte[] data = "0123456789ABCDEF".getBytes();
+		RollingSignature sign = new RollingSignature();
+		sign.init(Arrays.copyOfRange(data, 0, 4));
+		for (int i = 4; i <= data.length; i++) {
+			byte[] block = Arrays.copyOfRange(data, i - 4, i);
+			assertEquals(block[0], sign.getFirst());
+			assertEquals(Signature.fastSignature(block), sign.getFast());
+			assertArrayEquals(Signature.strongSignature(block), sign.getStrong());
+			assertArrayEquals(block, sign.getContent());
+			if (i < data.length) sign.roll(data[i]);
+		}
+	}
+	
+	@Test
+	public void testMurmur3() {
+		byte[] data = "The quick brown fox jumps over the lazy dog".getBytes();
+		assertEquals("bBsHvHu8S+NHk5rEqTxDeg==", printBase64Binary(StrongHash.MURMUR3_128.hash(data, 0, data.length)));
+		
+		// 나누어 넣어도 같은 해쉬값
+		StrongHash.Hasher hasher = StrongHash.MURMUR3_128.newHasher();
+		byte[] chunked = new byte[16];
+		hasher.update(data, 0, 5);
+		hasher.update(data, 5, 20);
+		hasher.update(data, 25, data.length - 25);
+		hasher.digest(chunked, 0);
+		assertArrayEquals(StrongHash.MURMUR3_128.hash(data, 0, data.length), chunked);
+	}
+	
+	@Test
+	public void testRollingSignatureWithStrongHash() {
+		byte[] data = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ".getBytes();
+		RollingSignature sign = new RollingSignature(StrongHash.MURMUR3_128);
+		sign.init(Arrays.copyOfRange(data, 0, 20));
+		for (int i = 20; i <= data.length; i++) {
+			assertArrayEquals(StrongHash.MURMUR3_128.hash(data, i - 20, 20), sign.getStrong());
+			if (i < data.length) sign.roll(data[i]);
+		}
+	}
+	
 }
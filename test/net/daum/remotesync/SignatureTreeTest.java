@@ -0,0 +1,84 @@
+package net.daum.remotesync;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class SignatureTreeTest {
+	@Test
+	public void testSignatureTree() throws Exception {
+		byte[] source = new byte[1024 * 1024 + 100];
+		new Random(18).nextBytes(source);
+		File srcFile = File.createTempFile("remotesync", ".src");
+		srcFile.deleteOnExit();
+		FileOutputStream fout = new FileOutputStream(srcFile);
+		fout.write(source);
+		fout.close();
+		
+		// 같은 위치에서 세군데를 덮어쓰면, 바뀐 곳 근처의 해쉬코드만 받는다.
+		byte[] target = source.clone();
+		for (int pos: new int[] {1000, 500000, 1000000}) {
+			Arrays.fill(target, pos, pos + 10, (byte)7);
+		}
+		RemoteSignatureTree remote = exchangeSignatureTree(source, target);
+		assertFalse(remote.isIdentical());
+		assertEquals(2, remote.getRounds());
+		assertEquals(4 * 20 + 3 * 16 * 20 + 3 * 16 * 24, remote.getReceivedBytes());
+		assertTrue(remote.getReceivedBytes() * 10 < source.length / 1024 * 24);
+		
+		BuildCodeList bc = remote.generateBuildCodes(new ByteArrayInputStream(target));
+		ByteArrayOutputStream patched = new ByteArrayOutputStream();
+		bc.patch(new SourceRandomFileAccess(srcFile.getPath()), patched);
+		assertArrayEquals(target, patched.toByteArray());
+		
+		// 중간에 끼워넣으면 뒤쪽은 모두 다르게 보이지만, 옮겨진 블럭은 찾아낸다.
+		ByteArrayOutputStream inserted = new ByteArrayOutputStream();
+		inserted.write(source, 0, 300000);
+		inserted.write("inserted".getBytes());
+		inserted.write(source, 300000, source.length - 300000);
+		target = inserted.toByteArray();
+		remote = exchangeSignatureTree(source, target);
+		bc = remote.generateBuildCodes(new ByteArrayInputStream(target));
+		patched.reset();
+		bc.patch(new SourceRandomFileAccess(srcFile.getPath()), patched);
+		assertArrayEquals(target, patched.toByteArray());
+		
+		// 같은 파일은 루트만 받고 끝난다.
+		remote = exchangeSignatureTree(source, source);
+		assertTrue(remote.isIdentical());
+		assertEquals(0, remote.getRounds());
+		assertEquals(4 * 20, remote.getReceivedBytes());
+	}
+	
+	/**
+	 * 원본쪽 SignatureTree와 목표쪽 RemoteSignatureTree가 요청/응답을 주고받는다.
+	 */
+	private RemoteSignatureTree exchangeSignatureTree(byte[] source, byte[] target) throws Exception {
+		SignatureTree tree = SignatureTree.create(new ByteArrayInputStream(source), 1024);
+		ByteArrayOutputStream toTarget = new ByteArrayOutputStream();
+		tree.packRoot(toTarget);
+		RemoteSignatureTree remote = RemoteSignatureTree.unpackRoot(new ByteArrayInputStream(toTarget.toByteArray()));
+		remote.compareWith(SignatureTree.create(new ByteArrayInputStream(target), remote.getBlockSize(), remote.getFanout(), remote.getStrongHash()));
+		while (true) {
+			ByteArrayOutputStream toSource = new ByteArrayOutputStream();
+			boolean requested = remote.packRequest(toSource);
+			toTarget.reset();
+			assertEquals(requested, tree.answer(new ByteArrayInputStream(toSource.toByteArray()), toTarget));
+			if (!requested) break;
+			ByteArrayInputStream in = new ByteArrayInputStream(toTarget.toByteArray());
+			remote.unpackNodes(in);
+			assertEquals(0, in.available());
+		}
+		return remote;
+	}
+}
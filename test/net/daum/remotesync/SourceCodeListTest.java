@@ -1,12 +1,15 @@
 package net.daum.remotesync;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.IOException;
+import java.util.Random;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -28,7 +31,7 @@ public class SourceCodeListTest extends TestUtils {
 	}
 	
 	@Test
-	public void testPackAndUnpack() throws IOException {
+	public void testPackAndUnpack() throws Exception {
 		ByteArrayOutputStream out = new ByteArrayOutputStream();
 		sc.pack(out);
 		assertEquals(1+2+4+24*6, out.size());
@@ -46,7 +49,7 @@ public class SourceCodeListTest extends TestUtils {
 		
 		/* unpack test */ {
 			in.reset();
-			SourceCodeList unpacked = SourceCodeList.unpack(in);
+			SourceCodeList unpacked = SourceCodeList.unpack(in, null);
 			assertEquals(6, unpacked.size());
 			assertEquals(Signature.fastSignature("345".getBytes()), unpacked.get(1).getFast());
 		}
@@ -64,4 +67,134 @@ public class SourceCodeListTest extends TestUtils {
 		System.out.println("generating SourceCodeList in msec: " + (System.currentTimeMillis() - ts));
 		
 	}
+	
+	@Test
+	public void testCreateParallel() throws Exception {
+		File file = File.createTempFile("remotesync", ".src");
+		file.deleteOnExit();
+		byte[] content = new byte[9 * 1024 * 1024 + 123];
+		new Random(1).nextBytes(content);
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(content);
+		out.close();
+		
+		SourceCodeList sequential = SourceCodeList.create(new ByteArrayInputStream(content), 1000);
+		SourceCodeList parallel = SourceCodeList.create(file.getPath(), 1000);
+		
+		assertEquals(sequential.size(), parallel.size());
+		for (int i = 0; i < sequential.size(); i++) {
+			assertEquals(sequential.get(i).getFast(), parallel.get(i).getFast());
+			assertArrayEquals(sequential.get(i).getStrong(), parallel.get(i).getStrong());
+		}
+	}
+	
+	@Test
+	public void testPackAndUnpackManyBlocks() throws Exception {
+		byte[] content = new byte[8 * 10000 + 5];
+		new Random(2).nextBytes(content);
+		SourceCodeList many = SourceCodeList.create(new ByteArrayInputStream(content), 8);
+		assertEquals(10000, many.size());
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(1+2+4+24*10000, many.pack(out));
+		SourceCodeList unpacked = SourceCodeList.unpack(new ByteArrayInputStream(out.toByteArray()), null);
+		assertEquals(many.size(), unpacked.size());
+		assertEquals(many.get(9999).getStrongBase64(), unpacked.get(9999).getStrongBase64());
+		
+		ByteArrayOutputStream repacked = new ByteArrayOutputStream();
+		unpacked.pack(repacked);
+		assertArrayEquals(out.toByteArray(), repacked.toByteArray());
+	}
+	
+	@Test
+	public void testPackTruncated() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(1+2+1+4+(4+8)*6, sc.pack(out, 8));
+		assertEquals(SourceCodeList.VERSION2, out.toByteArray()[0] & 0xFF);
+		
+		SourceCodeList unpacked = SourceCodeList.unpack(new ByteArrayInputStream(out.toByteArray()), null);
+		assertEquals(8, unpacked.getStrongLength());
+		assertEquals(6, unpacked.size());
+		assertEquals(sc.get(5).getFast(), unpacked.get(5).getFast());
+		
+		// 잘라낸 해쉬값으로도 같은 빌드코드를 만든다. 
+		String dst = "x0123456789ABCDEFGHIy";
+		assertEquals(sc.generateBuildCodes(istream(dst)).toString(), unpacked.generateBuildCodes(istream(dst)).toString());
+	}
+	
+	@Test
+	public void testStrongHash() throws Exception {
+		SourceCodeList murmur = SourceCodeList.create(istream("0123456789ABCDEFGHI"), 3, StrongHash.MURMUR3_128);
+		assertEquals(16, murmur.getStrongLength());
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(1+2+1+1+4+(4+16)*6, murmur.pack(out));
+		assertEquals(SourceCodeList.VERSION3, out.toByteArray()[0] & 0xFF);
+		
+		SourceCodeList unpacked = SourceCodeList.unpack(new ByteArrayInputStream(out.toByteArray()), null);
+		assertEquals(StrongHash.MURMUR3_128, unpacked.getStrongHash());
+		assertEquals(6, unpacked.size());
+		
+		String dst = "x0123456789ABCDEFGHIy";
+		assertEquals(sc.generateBuildCodes(istream(dst)).toString(), unpacked.generateBuildCodes(istream(dst)).toString());
+	}
+	
+	@Test
+	public void testPackLargeBlockSize() throws Exception {
+		byte[] content = new byte[3 * 100000 + 7];
+		new Random(3).nextBytes(content);
+		SourceCodeList large = SourceCodeList.create(new ByteArrayInputStream(content), 100000);
+		assertEquals(3, large.size());
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(1+4+1+1+1+(4+20)*3, large.pack(out));
+		assertEquals(SourceCodeList.VERSION4, out.toByteArray()[0] & 0xFF);
+		
+		SourceCodeList unpacked = SourceCodeList.unpack(new ByteArrayInputStream(out.toByteArray()), null);
+		assertEquals(100000, unpacked.getBlockSize());
+		assertEquals(large.get(2).getStrongBase64(), unpacked.get(2).getStrongBase64());
+	}
+	
+	@Test
+	public void testUnpackLeavesTrailingData() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		sc.pack(out);
+		sc.pack(out, 8);
+		out.write("tail".getBytes());
+		
+		ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+		assertEquals(sc.size(), SourceCodeList.unpack(in, null).size());
+		assertEquals(8, SourceCodeList.unpack(in, null).getStrongLength());
+		assertEquals(4, in.available());
+	}
+	
+	@Test
+	public void testUnpackBlockLimit() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		sc.pack(out);
+		assertEquals(sc.size(), SourceCodeList.unpack(new PackInput(new ByteArrayInputStream(out.toByteArray()), null), sc.size()).size());
+	
+		// 블럭 갯수만 부풀린 헤더. 배열을 늘리기 전에 거부해야 한다.
+		out.reset();
+		PackOutput po = new PackOutput(out);
+		po.write8bit(SourceCodeList.VERSION4);
+		po.writeNumber(1024);
+		po.write8bit(StrongHash.SHA1.getId());
+		po.write8bit(20);
+		po.writeNumber(100 * 1000 * 1000);
+		po.flush();
+		try {
+			SourceCodeList.unpack(new PackInput(new ByteArrayInputStream(out.toByteArray()), null), RemoteSync.MAX_REMOTE_BLOCKS);
+			fail("accepted too many blocks");
+		} catch (RuntimeException e) {
+			assertEquals("too many blocks = 100000000", e.getMessage());
+		}
+	}
+	
+	@Test
+	public void testChooseStrongLength() {
+		assertEquals(SourceCodeList.MIN_STRONG_LENGTH, SourceCodeList.chooseStrongLength(1L << 30, 1024));
+		assertEquals(9, SourceCodeList.chooseStrongLength(1L << 50, 1024));
+		assertEquals(13, SourceCodeList.chooseStrongLength(Long.MAX_VALUE, 1));
+	}
 }
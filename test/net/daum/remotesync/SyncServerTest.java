@@ -0,0 +1,116 @@
+package net.daum.remotesync;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+public class SyncServerTest extends TestUtils {
+	@Test
+	public void testSyncServer() throws Exception {
+		File base = File.createTempFile("syncserver", "");
+		base.delete();
+		File serverDir = new File(base, "server");
+		final File clientDir = new File(base, "client");
+		// 세션 둘의 메모리만 예약할 수 있으므로, 나머지 세션은 예산을 기다린다.
+		SyncServer server = new SyncServer(serverDir, 2 * ChannelSync.sessionMemory(BlockSizePolicy.forSize(0)), 4, 2);
+		try {
+			final InetSocketAddress address = server.start(new InetSocketAddress("127.0.0.1", 0));
+			Random random = new Random(25);
+			final int sessions = 20;
+			for (int i = 0; i < sessions; i++) {
+				byte[] basis = new byte[1 + random.nextInt(300000)];
+				random.nextBytes(basis);
+				if (i % 2 == 0) writeFile(serverDir, "f" + i, basis, 1000000L);
+				basis[basis.length / 2] ^= 1;
+				writeFile(clientDir, "f" + i, basis, 1000000L);
+			}
+			final Exception[] failures = new Exception[sessions];
+			Thread[] clients = new Thread[sessions];
+			for (int i = 0; i < sessions; i++) {
+				final int session = i;
+				clients[i] = new Thread() {
+					public void run() {
+						try {
+							SocketChannel client = SocketChannel.open(address);
+							try {
+								ChannelSync.upload(client, "f" + session, new File(clientDir, "f" + session));
+							} finally {
+								client.close();
+							}
+						} catch (Exception e) {
+							failures[session] = e;
+						}
+					}
+				};
+				clients[i].start();
+			}
+			for (Thread t: clients) {
+				t.join();
+			}
+			for (Exception e: failures) {
+				if (e != null) throw e;
+			}
+			for (int i = 0; i < sessions; i++) {
+				assertArrayEquals(TreeManifest.digest(new File(clientDir, "f" + i)), TreeManifest.digest(new File(serverDir, "f" + i)));
+			}
+		} finally {
+			server.close();
+			deleteTree(base);
+		}
+		assertEquals(20, server.getCompletedSessions());
+		assertEquals(0, server.getFailedSessions());
+		assertTrue(server.getPeakActiveSessions() <= 4);
+		assertEquals(0, server.getActiveSessions());
+		assertEquals(0, server.getScheduler().getMemoryInUse());
+		assertEquals(0, server.getScheduler().getCpuRunning());
+		// 세션들이 예약한 메모리는 한번도 예산을 넘지 않았다.
+		assertTrue(server.getScheduler().getPeakMemoryInUse() > 0);
+		assertTrue(server.getScheduler().getPeakMemoryInUse() <= server.getScheduler().getMemoryBudget());
+	}
+	
+	@Test
+	public void testSessionExecutor() throws Exception {
+		File base = File.createTempFile("syncserver", "");
+		base.delete();
+		File serverDir = new File(base, "server");
+		File clientDir = new File(base, "client");
+		// 세션마다 쓰레드를 하나씩 쓰는 executor. 동시에 처리하는 세션은 메모리 예산으로만 제한된다.
+		SessionScheduler scheduler = new SessionScheduler(ChannelSync.sessionMemory(BlockSizePolicy.forSize(0)), 1);
+		SyncServer server = new SyncServer(serverDir, scheduler, Executors.newCachedThreadPool());
+		try {
+			InetSocketAddress address = server.start(new InetSocketAddress("127.0.0.1", 0));
+			writeFile(clientDir, "f", "0123456789".getBytes(), 1000000L);
+			SocketChannel client = SocketChannel.open(address);
+			try {
+				ChannelSync.upload(client, "f", new File(clientDir, "f"));
+			} finally {
+				client.close();
+			}
+			
+			// 버전이 맞지 않는 요청은 실패한 세션으로 세고, 그 예외를 남겨둔다.
+			client = SocketChannel.open(address);
+			client.write(ByteBuffer.wrap(new byte[] {0}));
+			client.close();
+		} finally {
+			server.close();
+		}
+		try {
+			assertArrayEquals(TreeManifest.digest(new File(clientDir, "f")), TreeManifest.digest(new File(serverDir, "f")));
+			assertEquals(1, server.getCompletedSessions());
+			assertEquals(1, server.getFailedSessions());
+			assertEquals("CHANNEL_SYNC Version mismatch", server.getLastFailure().getMessage());
+			assertEquals(0, server.getQueuedSessions());
+		} finally {
+			deleteTree(base);
+		}
+	}
+}
@@ -1,10 +1,31 @@
 package net.daum.remotesync;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.InputStream;
 
 class TestUtils {
 	protected InputStream istream(String s) {
 		return new ByteArrayInputStream(s.getBytes());
 	}
+	
+	protected void writeFile(File dir, String path, byte[] content, long lastModified) throws Exception {
+		File f = new File(dir, path);
+		f.getParentFile().mkdirs();
+		FileOutputStream out = new FileOutputStream(f);
+		out.write(content);
+		out.close();
+		f.setLastModified(lastModified);
+	}
+	
+	protected void deleteTree(File f) {
+		File[] files = f.listFiles();
+		if (files != null) {
+			for (File child: files) {
+				deleteTree(child);
+			}
+		}
+		f.delete();
+	}
 }
@@ -0,0 +1,51 @@
+package net.daum.remotesync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class TreeManifestTest extends TestUtils {
+	@Test
+	public void testTreeManifestPaths() throws Exception {
+		for (String path: new String[] {"../etc/passwd", "/abs", "a//b", "a/./b", "a/", ""}) {
+			try {
+				TreeManifest.checkPath(path);
+				fail(path);
+			} catch (RuntimeException e) {
+			}
+		}
+		assertEquals("a/b.txt", TreeManifest.checkPath("a/b.txt"));
+		
+		// 다른 포맷의 스트림은 버전 바이트로 거부한다.
+		ByteArrayOutputStream packed = new ByteArrayOutputStream();
+		SourceCodeList.create(istream("0123456789"), 3).pack(packed);
+		try {
+			TreeManifest.unpack(new ByteArrayInputStream(packed.toByteArray()));
+			fail("unpacked a SourceCodeList as a TreeManifest");
+		} catch (RuntimeException e) {
+			assertEquals("TREE_MANIFEST Version mismatch", e.getMessage());
+		}
+	}
+	
+	@Test
+	public void testSymlinkedDirectory() throws Exception {
+		File base = File.createTempFile("manifest", "");
+		base.delete();
+		try {
+			writeFile(base, "a/f", "0123456789".getBytes(), 1000000L);
+			// 위쪽 디렉토리를 가리키는 링크. java.io로는 링크를 만들 수 없으므로 ln을 쓰고, 없으면 건너뛴다.
+			if (Runtime.getRuntime().exec(new String[] {"ln", "-s", base.getPath(), new File(base, "a/loop").getPath()}).waitFor() != 0) return;
+			assertEquals(Arrays.asList("a/f"), TreeManifest.scanPaths(base));
+			assertEquals(1, TreeManifest.scan(base).size());
+		} finally {
+			new File(base, "a/loop").delete();
+			deleteTree(base);
+		}
+	}
+}